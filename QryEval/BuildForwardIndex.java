@@ -0,0 +1,255 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A commandline utility that builds the forward index files that
+ * ForwardIndex reads, one file per field (FIELD.fwd) in an output
+ * directory.  By default every field that has term vectors is indexed.
+ */
+public class BuildForwardIndex {
+
+        private static final String USAGE =
+                "Usage:  java BuildForwardIndex -index INDEX_PATH -out DIR [-fields FIELD,FIELD,...]\n\n";
+
+        /**
+         * The name of the forward index file of a field.
+         * @param dir forward index directory
+         * @param field field name
+         * @return the file
+         */
+        public static File fileName(String dir, String field) {
+                return new File(dir, field + ".fwd");
+        }
+
+        /**
+         * The fields of an index that have term vectors.
+         * @param reader the index
+         * @return field names
+         */
+        public static String[] termVectorFields(IndexReader reader) {
+                List<String> fields = new ArrayList<>();
+                for (FieldInfo fi: FieldInfos.getMergedFieldInfos(reader)) {
+                        if (fi.hasVectors()) {
+                                fields.add(fi.name);
+                        }
+                }
+                return fields.toArray(new String[0]);
+        }
+
+        /**
+         * Build forward index files for several fields.
+         * @param reader the index
+         * @param dir output directory
+         * @param fields fields to index
+         * @throws IOException Error accessing the Lucene index or writing a file
+         */
+        public static void build(IndexReader reader, String dir, String[] fields) throws IOException {
+                new File(dir).mkdirs();
+                for (String field: fields) {
+                        build(reader, field, fileName(dir, field));
+                }
+        }
+
+        /**
+         * Build the forward index file of a field.
+         * @param reader the index
+         * @param field field name
+         * @param file the file to write
+         * @throws IOException Error accessing the Lucene index or writing the file
+         */
+        public static void build(IndexReader reader, String field, File file) throws IOException {
+                int numDocs = reader.maxDoc();
+
+                //  The term dictionary, in Lucene term order.  Term ids are ranks.
+
+                Map<BytesRef, Integer> termIds = new HashMap<>();
+                long[] ctf = new long[1024];
+                int[] df = new int[1024];
+                ByteList termBytes = new ByteList();
+                int[] termOffsets = new int[1025];
+                int numTerms = 0;
+                Terms terms = MultiTerms.getTerms(reader, field);
+                if (terms != null) {
+                        TermsEnum te = terms.iterator();
+                        BytesRef term;
+                        while ((term = te.next()) != null) {
+                                if (numTerms == ctf.length) {
+                                        ctf = Arrays.copyOf(ctf, numTerms * 2);
+                                        df = Arrays.copyOf(df, numTerms * 2);
+                                        termOffsets = Arrays.copyOf(termOffsets, numTerms * 2 + 1);
+                                }
+                                termIds.put(BytesRef.deepCopyOf(term), numTerms);
+                                ctf[numTerms] = te.totalTermFreq();
+                                df[numTerms] = te.docFreq();
+                                termBytes.add(term.bytes, term.offset, term.length);
+                                termOffsets[numTerms + 1] = termBytes.size();
+                                numTerms++;
+                        }
+                }
+
+                //  Encode each document's term vector into a temporary file.
+
+                File postingsFile = new File(file.getPath() + ".tmp");
+                long[] docOffsets = new long[numDocs + 1];
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(postingsFile), 1 << 16))) {
+                        long offset = 0;
+                        int[] ids = new int[256];
+                        int[] tfs = new int[256];
+                        for (int docid = 0; docid < numDocs; docid++) {
+                                docOffsets[docid] = offset;
+                                int numStems = 0;
+                                int lastPosition = -1;
+                                Terms tv = reader.getTermVector(docid, field);
+                                if (tv != null) {
+                                        TermsEnum te = tv.iterator();
+                                        PostingsEnum positions = null;
+                                        BytesRef term;
+                                        while ((term = te.next()) != null) {
+                                                if (numStems == ids.length) {
+                                                        ids = Arrays.copyOf(ids, numStems * 2);
+                                                        tfs = Arrays.copyOf(tfs, numStems * 2);
+                                                }
+                                                ids[numStems] = termIds.get(term);
+                                                tfs[numStems] = (int) te.totalTermFreq();
+                                                positions = te.postings(positions, PostingsEnum.POSITIONS);
+                                                positions.nextDoc();
+                                                for (int j = 0; j < positions.freq(); j++) {
+                                                        lastPosition = Math.max(lastPosition, positions.nextPosition());
+                                                }
+                                                numStems++;
+                                        }
+                                }
+                                offset += writeVInt(out, numStems);
+                                offset += writeVInt(out, (numStems == 0) ? 0 : lastPosition + 1);
+                                int previous = 0;
+                                for (int i = 0; i < numStems; i++) {
+                                        offset += writeVInt(out, ids[i] - previous);
+                                        offset += writeVInt(out, tfs[i]);
+                                        previous = ids[i];
+                                }
+                        }
+                        docOffsets[numDocs] = offset;
+                }
+
+                //  Write the header, dictionary and document offsets, then append the postings.
+
+                try (FileOutputStream fos = new FileOutputStream(file)) {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                        out.writeInt(ForwardIndex.MAGIC);
+                        out.writeInt(ForwardIndex.VERSION);
+                        out.writeInt(numDocs);
+                        out.writeInt(numTerms);
+                        for (int i = 0; i < numTerms; i++) {
+                                out.writeLong(ctf[i]);
+                        }
+                        for (int i = 0; i < numTerms; i++) {
+                                out.writeInt(df[i]);
+                        }
+                        for (int i = 0; i <= numTerms; i++) {
+                                out.writeInt(termOffsets[i]);
+                        }
+                        out.write(termBytes.bytes, 0, termBytes.size());
+                        for (long o: docOffsets) {
+                                out.writeLong(o);
+                        }
+                        out.flush();
+                        try (FileInputStream in = new FileInputStream(postingsFile);
+                             FileChannel src = in.getChannel()) {
+                                FileChannel dst = fos.getChannel();
+                                long size = src.size();
+                                for (long pos = 0; pos < size; ) {
+                                        pos += src.transferTo(pos, size - pos, dst);
+                                }
+                        }
+                }
+                postingsFile.delete();
+                System.out.println("Forward index for " + field + ": " + numDocs + " documents, " + numTerms + " terms, "
+                        + file.length() + " bytes");
+        }
+
+        /**
+         * Write a varint.
+         * @param out output
+         * @param v a non-negative value
+         * @return the number of bytes written
+         * @throws IOException Error writing
+         */
+        private static int writeVInt(DataOutputStream out, int v) throws IOException {
+                int n = 1;
+                while ((v & ~0x7f) != 0) {
+                        out.writeByte((v & 0x7f) | 0x80);
+                        v >>>= 7;
+                        n++;
+                }
+                out.writeByte(v);
+                return n;
+        }
+
+        /**
+         * A growable byte array.
+         */
+        private static class ByteList {
+                private byte[] bytes = new byte[1 << 16];
+                private int size = 0;
+
+                private void add(byte[] b, int offset, int length) {
+                        if (size + length > bytes.length) {
+                                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+                        }
+                        System.arraycopy(b, offset, bytes, size, length);
+                        size += length;
+                }
+
+                private int size() {
+                        return size;
+                }
+        }
+
+        public static void main(String[] args) throws IOException {
+                String indexPath = null;
+                String out = null;
+                String fields = null;
+                for (int i = 0; i + 1 < args.length; i += 2) {
+                        if ("-index".equals(args[i])) {
+                                indexPath = args[i + 1];
+                        } else if ("-out".equals(args[i])) {
+                                out = args[i + 1];
+                        } else if ("-fields".equals(args[i])) {
+                                fields = args[i + 1];
+                        }
+                }
+                if (indexPath == null || out == null) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+
+                Timer timer = new Timer();
+                timer.start();
+                IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+                build(reader, out, (fields != null) ? fields.split(",") : termVectorFields(reader));
+                reader.close();
+                timer.stop();
+                System.out.println("Forward index for " + indexPath + " written to " + out + " in " + timer);
+        }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The candidate documents of a query and the statistics that Indri and
+ * BM25 scores are computed from, extracted once so that the query can
+ * be rescored for many parameter settings (e.g., a sweep of Indri mu
+ * and lambda, or BM25 k_1 and b) without evaluating it again.
+ * <p>
+ * The query must be flat: a SCORE operator, or an Indri #AND or BM25
+ * #SUM of SCORE operators, whose arguments are terms or other inverted
+ * list operators (e.g., #NEAR).  The candidates are the documents that
+ * match at least one argument, which does not depend on the parameters.
+ * Each candidate row holds its docid, the tf of each argument, and its
+ * length in each field.  Each column holds the argument's ctf, df and
+ * field statistics.
+ * </p>
+ * <p>
+ * Scores are computed with the same expressions, in the same order, as
+ * QrySopScore, QrySopAnd and QrySopSum, so rankings are identical to
+ * those of QryEval.processQuery.
+ * </p>
+ */
+public class CandidateMatrix {
+
+        private final SearchContext ctx;
+        /**
+         * True for an Indri #AND (geometric mean); false for a sum.
+         */
+        private final boolean geometricMean;
+        private final int numColumns;
+        private final int numRows;
+        private final int[] docids;
+        /**
+         * tf of each argument in each candidate, row-major.
+         */
+        private final int[] tfs;
+        /**
+         * Length of each field in each candidate, row-major.
+         */
+        private final double[] docLengths;
+        private final int numFields;
+        private final int[] columnField;
+        private final double[] ctf;
+        private final double[] df;
+        private final double[] sumOfFieldLengths;
+        private final double[] docCount;
+
+        private CandidateMatrix(SearchContext ctx, boolean geometricMean, List<QryIop> columns) throws IOException {
+                this.ctx = ctx;
+                this.geometricMean = geometricMean;
+                numColumns = columns.size();
+
+                //  Fields, and field statistics.
+
+                String[] fields = new String[numColumns];
+                int n = 0;
+                columnField = new int[numColumns];
+                ctf = new double[numColumns];
+                df = new double[numColumns];
+                for (int j = 0; j < numColumns; j++) {
+                        QryIop q = columns.get(j);
+                        int f = 0;
+                        while (f < n && !fields[f].equals(q.getField())) {
+                                f++;
+                        }
+                        if (f == n) {
+                                fields[n++] = q.getField();
+                        }
+                        columnField[j] = f;
+                        ctf[j] = q.invertedList.ctf;
+                        df[j] = q.getDf();
+                }
+                numFields = n;
+                sumOfFieldLengths = new double[numFields];
+                docCount = new double[numFields];
+                for (int f = 0; f < numFields; f++) {
+                        sumOfFieldLengths[f] = (double) ctx.getSumOfFieldLengths(fields[f]);
+                        docCount[f] = (double) ctx.getDocCount(fields[f]);
+                }
+
+                //  The candidates are the union of the inverted lists.
+
+                int total = 0;
+                for (QryIop q: columns) {
+                        total += q.invertedList.df;
+                }
+                int[] all = new int[total];
+                total = 0;
+                for (QryIop q: columns) {
+                        for (int i = 0; i < q.invertedList.df; i++) {
+                                all[total++] = q.invertedList.getDocid(i);
+                        }
+                }
+                Arrays.sort(all);
+                int rows = 0;
+                for (int i = 0; i < total; i++) {
+                        if (rows == 0 || all[i] != all[rows - 1]) {
+                                all[rows++] = all[i];
+                        }
+                }
+                numRows = rows;
+                docids = Arrays.copyOf(all, numRows);
+
+                tfs = new int[numRows * numColumns];
+                for (int j = 0; j < numColumns; j++) {
+                        InvList list = columns.get(j).invertedList;
+                        int row = 0;
+                        for (int i = 0; i < list.df; i++) {
+                                int docid = list.getDocid(i);
+                                while (docids[row] != docid) {
+                                        row++;
+                                }
+                                tfs[row * numColumns + j] = list.getTf(i);
+                        }
+                }
+
+                docLengths = new double[numRows * numFields];
+                for (int row = 0; row < numRows; row++) {
+                        for (int f = 0; f < numFields; f++) {
+                                docLengths[row * numFields + f] = (double) ctx.getFieldLength(fields[f], docids[row]);
+                        }
+                }
+        }
+
+        /**
+         * Initialize a query and extract its candidates, if it is flat.
+         * @param ctx the request context
+         * @param q the query, which has not been initialized
+         * @param model an Indri or BM25 model; its parameters don't matter
+         * @return the candidates, or null if the query is not flat or the
+         *         model is not Indri or BM25
+         * @throws IOException Error accessing the Lucene index
+         */
+        public static CandidateMatrix extract(SearchContext ctx, Qry q, RetrievalModel model) throws IOException {
+                boolean indri = model instanceof RetrievalModelIndri;
+                if (q == null || !(indri || model instanceof RetrievalModelBM25)) {
+                        return null;
+                }
+                List<Qry> scores;
+                if (q instanceof QrySopScore) {
+                        scores = List.of(q);
+                } else if ((indri && q.getClass() == QrySopAnd.class) || (!indri && q.getClass() == QrySopSum.class)) {
+                        scores = q.args;
+                } else {
+                        return null;
+                }
+                for (Qry s: scores) {
+                        if (!(s instanceof QrySopScore) || !(s.args.get(0) instanceof QryIop)) {
+                                return null;
+                        }
+                }
+
+                q.initialize(ctx, model);
+                QryIop[] columns = new QryIop[scores.size()];
+                for (int j = 0; j < columns.length; j++) {
+                        columns[j] = (QryIop) scores.get(j).args.get(0);
+                }
+                return new CandidateMatrix(ctx, indri, Arrays.asList(columns));
+        }
+
+        /**
+         * @return the number of candidate documents
+         */
+        public int size() {
+                return numRows;
+        }
+
+        /**
+         * Score the candidates.
+         * @param model an Indri model, if the query was extracted with
+         *              one, otherwise a BM25 model
+         * @param k the number of results to keep, or 0 to keep all
+         * @return the results, sorted; at least the best k
+         * @throws IOException Error accessing the Lucene index
+         */
+        public ScoreList score(RetrievalModel model, int k) throws IOException {
+                double[] scores = geometricMean ? scoreIndri((RetrievalModelIndri) model)
+                                                : scoreBM25((RetrievalModelBM25) model);
+                //  NaN scores (e.g., a field that no document has) order
+                //  differently in a heap than in a sort, so sort them.
+
+                boolean sortAll = (k <= 0);
+                for (int row = 0; row < numRows && !sortAll; row++) {
+                        sortAll = Double.isNaN(scores[row]);
+                }
+                if (!sortAll) {
+                        TopKCollector topK = new TopKCollector(ctx, k);
+                        for (int row = 0; row < numRows; row++) {
+                                topK.collect(docids[row], scores[row]);
+                        }
+                        return topK.getScoreList();
+                }
+                ScoreList results = new ScoreList(ctx);
+                for (int row = 0; row < numRows; row++) {
+                        results.add(docids[row], scores[row]);
+                }
+                results.sort();
+                return results;
+        }
+
+        /**
+         * Indri: the geometric mean of the two-stage smoothed term
+         * scores (QrySopAnd.getScoreIndri, QrySopScore.getScoreIndri and
+         * QrySopScore.getDefaultScore).  An unmatched term has tf 0,
+         * which gives the default score.
+         */
+        private double[] scoreIndri(RetrievalModelIndri model) {
+                double mu = model.getMu();
+                double lambda = model.getLambda();
+                double oneMinusLambda = 1.0 - lambda;
+                double exponent = 1.0 / numColumns;
+                double[] muMLE = new double[numColumns];
+                double[] lambdaMLE = new double[numColumns];
+                for (int j = 0; j < numColumns; j++) {
+                        double MLE = ctf[j] / sumOfFieldLengths[columnField[j]];
+                        muMLE[j] = mu * MLE;
+                        lambdaMLE[j] = lambda * MLE;
+                }
+
+                double[] scores = new double[numRows];
+                for (int row = 0; row < numRows; row++) {
+                        int t = row * numColumns;
+                        int d = row * numFields;
+                        double geometricMean = 1.0;
+                        for (int j = 0; j < numColumns; j++) {
+                                double doclen = docLengths[d + columnField[j]];
+                                double score = oneMinusLambda * (tfs[t + j] + muMLE[j]) / (mu + doclen) + lambdaMLE[j];
+                                geometricMean *= (numColumns == 1) ? score : Math.pow(score, exponent);
+                        }
+                        scores[row] = geometricMean;
+                }
+                return scores;
+        }
+
+        /**
+         * BM25: the sum of the RSJ-weighted tf weights of the matched
+         * terms (QrySopSum.getScoreBM25 and QrySopScore.getScoreBM25).
+         */
+        private double[] scoreBM25(RetrievalModelBM25 model) {
+                double k_1 = model.getK_1();
+                double b = model.getB();
+                double oneMinusB = 1 - b;
+                double N = (double) ctx.getNumDocs();
+                double[] idf = new double[numColumns];
+                for (int j = 0; j < numColumns; j++) {
+                        idf[j] = Math.max(0.0, Math.log((N - df[j] + 0.5) / (df[j] + 0.5)));
+                }
+                double[] avgDoclen = new double[numFields];
+                for (int f = 0; f < numFields; f++) {
+                        avgDoclen[f] = sumOfFieldLengths[f] / docCount[f];
+                }
+
+                double[] scores = new double[numRows];
+                for (int row = 0; row < numRows; row++) {
+                        int t = row * numColumns;
+                        int d = row * numFields;
+                        double sum = 0.0;
+                        for (int j = 0; j < numColumns; j++) {
+                                double tf = tfs[t + j];
+                                if (tf > 0) {
+                                        int f = columnField[j];
+                                        double tfWeight = tf / (tf + k_1 * (oneMinusB + b * docLengths[d + f] / avgDoclen[f]));
+                                        sum += idf[j] * tfWeight;
+                                }
+                        }
+                        scores[row] = sum;
+                }
+                return scores;
+        }
+}
@@ -12,17 +12,6 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class Diversification {
 
-        public class Algorithm {
-                private int docid;
-                private double score;
-
-                // constructor for class Algorithm
-                public Algorithm(int docid, double score) {
-                        this.docid = docid;
-                        this.score = score;
-                }
-        }
-
         /**
          * PM-2 or xQuAD algorithm.
          */
@@ -36,14 +25,6 @@ public class Diversification {
          * the number of documents in the diversified ranking that your software will produce.
          */
         private int maxResultRankingLength;
-        /**
-         * the number of intent.
-         */
-        private static int numOfIntent;
-        /**
-         * a list of query intents.
-         */
-        private static List<String> queryIntent;
         /**
          * Balance between relevance and diversity.
          */
@@ -60,11 +41,31 @@ public class Diversification {
 
         /**
          * Produce Diversified Ranking.
+         * @param ctx the request context; its intents are the query's intents
          * @param documentRanking
          * @return a scorelist of diversified ranking result
          */
-        public ScoreList produceDiversifiedRanking(List<Map<Integer, Double>> documentRanking) {
-                ScoreList s = new ScoreList();
+        public ScoreList produceDiversifiedRanking(SearchContext ctx, List<Map<Integer, Double>> documentRanking) {
+                ScoreList s = new ScoreList(ctx);
+                prepareRankings(documentRanking);
+
+                // two choices of algorithms
+                IntentMatrix m = new IntentMatrix(documentRanking, ctx.getNumIntents());
+                if (algorithm.equals("xQuAD")) {
+                        s = toScoreList(ctx, m, DiversificationEngine.xQuAD(m, maxResultRankingLength, lambda));
+                } else if (algorithm.equals("PM2")) {
+                        s = toScoreList(ctx, m, DiversificationEngine.PM2(m, maxResultRankingLength, lambda));
+                }
+                return s;
+        }
+
+
+        /**
+         * Remove intent ranking documents that are not in the relevance
+         * ranking, and scale all of the rankings by the same value.
+         * @param documentRanking the relevance ranking followed by one ranking per intent; updated in place
+         */
+        static void prepareRankings(List<Map<Integer, Double>> documentRanking) {
                 Set<Integer> initialDocSet = new HashSet<>();
                 initialDocSet = documentRanking.get(0).keySet();
                 int size = documentRanking.size();
@@ -118,198 +119,92 @@ public class Diversification {
                                 }
                         }
                 }
-
-                // get initial ranking
-                Map<Integer, Double> initialRanking = documentRanking.get(0);
-                // two choices of algorithms
-                if (algorithm.equals("xQuAD")) {
-                        s = xQuADMethod(documentRanking, initialRanking, maxResultRankingLength, lambda, numOfIntent);
-                } else if (algorithm.equals("PM2")) {
-                        s = PM2Method(documentRanking, initialRanking, maxResultRankingLength, lambda, numOfIntent);
-                }
-                return s;
         }
 
 
         /**
-         * Explicit Query Aspect Diversification.
-         * @param documentRanking a set of query intents
-         * @param initialRanking initial ranking
+         * Convert a diversified ranking of candidate positions to a scorelist.
+         * @param ctx the request context
+         * @param m the candidates
+         * @param r the diversified ranking
          * @return a scorelist
          */
-        private ScoreList xQuADMethod(List<Map<Integer, Double>> documentRanking, Map<Integer, Double> initialRanking, int maxResultRankingLength, double lambda, int numOfIntent) {
-                ScoreList s = new ScoreList();
-                // component: intent weight, score for d for intent qi, how well S already covers intent qi
-                // while size < desired length of diversified ranking...
-                while (s.size() < maxResultRankingLength) {
-                        Algorithm ad = new Algorithm(-1, -1.0);
-                        // intent weight
-                        double intentWeight = 1.0 / (double) numOfIntent;
-
-                        for (Integer id: initialRanking.keySet()) {
-                                double relevance = (1.0 - lambda) * initialRanking.get(id);
-                                double diversity = 0.0;
-                                for (int i = 1; i <= numOfIntent; i++) {
-                                        Map<Integer, Double> currMap = documentRanking.get(i);
-
-                                        double newScore = 0.0;
-
-                                        if (currMap.get(id) == null) {
-                                                newScore = 0.0;
-                                        } else {
-                                                newScore = currMap.get(id);
-                                        }
-
-                                        for (int j = 0; j < s.size(); j++) {
-                                                int did = s.getDocid(j);
-                                                if (currMap.get(did) != null) {
-                                                        newScore *= 1.0 - currMap.get(did);
-                                                } else {
-                                                        newScore *= 1.0;
-                                                }
-                                        }
-                                        diversity += newScore;
-                                }
-                                // scale score
-                                diversity = diversity * lambda * intentWeight;
-                                if ((relevance + diversity) > ad.score) {
-                                        ad.score = relevance + diversity;
-                                        ad.docid = id;
-                                }
-                        }
-                        initialRanking.remove(ad.docid);
-                        s.add(ad.docid, ad.score);
+        private static ScoreList toScoreList(SearchContext ctx, IntentMatrix m, DiversificationEngine.Ranking r) {
+                ScoreList s = new ScoreList(ctx);
+                for (int k = 0; k < r.size; k++) {
+                        s.add(m.docid(r.candidates[k]), r.scores[k]);
                 }
                 return s;
         }
 
 
         /**
-         * Proportionality Model 2.
-         * @param documentRanking a set of query intents
-         * @param initialRanking initial ranking
-         * @return a scorelist
+         * Process query and get back scores.  The intent queries are
+         * independent, so they run concurrently on the worker pool, each
+         * in its own subrequest, and each keeps only its top
+         * maxInputRankingsLength documents.  Their wall time is the
+         * query's INTENTS stage.
+         * @param ctx the request context; its intents are the query's intents
+         * @param s the relevance ranking of the query
+         * @param model
+         * @return list of map with document score
+         * @throws IOException
          */
-        private ScoreList PM2Method(List<Map<Integer, Double>> documentRanking, Map<Integer, Double> initialRanking, int maxResultRankingLength, double lambda, int numOfIntent) {
-                ScoreList PM2Scores = new ScoreList();
-                // desired ranks for qi = diversified ranking size / number of intents
-                double desiredRanks = (double) maxResultRankingLength  / numOfIntent;
-                // quotient scores
-                double qt[] = new double[numOfIntent];
-                // slots assigned
-                double s[] = new double[numOfIntent];
-                while (PM2Scores.size() < maxResultRankingLength) {
-                        // select the query intent qi that must be covered next to
-                        // maintain proportional coverage of intents in the ranking
-                        Algorithm ad = new Algorithm(-1, -1.0);
-                        int cnt = 0;
-                        while (cnt < numOfIntent) {
-                                // priority of each intent now
-                                qt[cnt] = desiredRanks / (2.0 * s[cnt] + 1.0);
-                                cnt++;
-                        }
-                        // get next intent
-                        double updateScore = 0.0;
-                        int nextIntent = -1;
-                        for (int i = 0; i < numOfIntent; i++) {
-                                double currRank = qt[i];
-                                if (currRank > updateScore) {
-                                        updateScore = currRank;
-                                        nextIntent = i;
-                                }
-                        }
-                        // select a document d that covers intent qi
-                        for (Integer id: initialRanking.keySet()) {
-                                double score = 0.0;
-                                double coversQi = 0.0;
-                                double coversOther = 0.0;
-                                // calculate covers qi
-                                if (documentRanking.get(nextIntent + 1).get(id) != null) {
-                                        coversQi = lambda * qt[nextIntent] * documentRanking.get(nextIntent + 1).get(id);
-                                }
-                                // calculate covers other intents
-                                for (int i = 0; i < numOfIntent; i++) {
-                                        if (i == nextIntent) {
-                                                continue;
-                                        } else {
-                                                if (documentRanking.get(i + 1).get(id) != null) {
-                                                        coversOther += qt[i] * documentRanking.get(i + 1).get(id);
-                                                }
-                                        }
-                                }
-                                score = coversQi + (1 - lambda) * coversOther;
-                                if (score > ad.score) {
-                                        ad.score = score;
-                                        ad.docid = id;
-                                }
-                        }
-                        // remove d from the initial ranking R
-                        initialRanking.remove(ad.docid);
-                        // assign d to the diversified ranking S
-                        PM2Scores.add(ad.docid, ad.score);
-
-                        // update coverage of each intent
-                        int total = 0;
-                        while (total < numOfIntent) {
-                                double updateCoverage = 0.0;
-                                double sum  = 0.0;
-                                boolean noUpdate = false;
-                                if (documentRanking.get(total + 1).get(ad.docid) == null) {
-                                        noUpdate = true;
-                                }
-                                if (!noUpdate) {
-                                        if (documentRanking.get(total + 1).get(ad.docid) != null) {
-                                                for (int i = 0; i < numOfIntent; i++) {
-                                                        if (documentRanking.get(i + 1).get(ad.docid) != null) {
-                                                                sum += documentRanking.get(i + 1).get(ad.docid);
-                                                        } else {
-                                                                sum += 0.0;
-                                                        }
-                                                }
-                                        }
-                                        updateCoverage = documentRanking.get(total + 1).get(ad.docid) / sum;
-                                        s[total] += updateCoverage;
-                                        total++;
-                                } else {
-                                        total++;
-                                }
-                        }
-                }
-                return PM2Scores;
+        public static List<Map<Integer, Double>> processQuery(SearchContext ctx, ScoreList s, RetrievalModel model, int maxInputRankingsLength) throws IOException {
+                int requiredSize = Math.min(s.size(), maxInputRankingsLength);
+                long t = RunMetrics.start();
+                List<ScoreList> intentRankings = WorkerPool.map(ctx.getIntents(),
+                        currQuery -> QryEval.processQuery(ctx.newSubrequest(), currQuery, model, requiredSize));
+                RunMetrics.stop(ctx, RunMetrics.Stage.INTENTS, t);
+                return toDocumentRanking(s, intentRankings, maxInputRankingsLength);
         }
 
 
         /**
-         * Process query and get back scores.
-         * @param allIntents intents
+         * Process a query and its intents as one batch with
+         * MultiQueryEvaluator, so that the terms that they share are read
+         * from the index once (parameter diversity:sharedPostings).  The
+         * result is the same as processQuery's.
+         * @param ctx the request context; its intents are the query's intents
+         * @param query the query
          * @param model
          * @return list of map with document score
          * @throws IOException
          */
-        public static List<Map<Integer, Double>> processQuery(ScoreList s, List<String> allIntents, RetrievalModel model, int maxInputRankingsLength) throws IOException {
-                // get scorelist
-                int intentSize = allIntents.size();
-                Map<Integer, Double> map = new ConcurrentHashMap<>();
+        public static List<Map<Integer, Double>> processQueryShared(SearchContext ctx, String query, RetrievalModel model, int maxInputRankingsLength) throws IOException {
+                List<Qry> queries = new ArrayList<>();
+                queries.add(QryParser.getQuery(model.defaultQrySopName() + "(" + query + ")"));
+                for (String intent: ctx.getIntents()) {
+                        queries.add(QryParser.getQuery(model.defaultQrySopName() + "(" + intent + ")"));
+                }
+                List<ScoreList> results = MultiQueryEvaluator.evaluate(ctx, queries, model, maxInputRankingsLength);
+                return toDocumentRanking(results.get(0), results.subList(1, results.size()), maxInputRankingsLength);
+        }
 
-                int idx = 0;
-                int requiredSize = Math.min(s.size(), maxInputRankingsLength);
+
+        /**
+         * Convert the relevance ranking and intent rankings of a query to
+         * maps.  Each ranking is truncated to the length of the truncated
+         * relevance ranking.
+         * @param s the relevance ranking
+         * @param intentRankings the intent rankings
+         * @return list of map with document score
+         */
+        private static List<Map<Integer, Double>> toDocumentRanking(ScoreList s, List<ScoreList> intentRankings, int maxInputRankingsLength) {
                 List<Map<Integer, Double>> documentRanking = new ArrayList<>();
-                while (idx < requiredSize) {
-                        map.put(s.getDocid(idx), s.getDocidScore(idx));
-                        idx += 1;
+                int requiredSize = Math.min(s.size(), maxInputRankingsLength);
+                Map<Integer, Double> map = new ConcurrentHashMap<>();
+                for (int i = 0; i < requiredSize; i++) {
+                        map.put(s.getDocid(i), s.getDocidScore(i));
                 }
                 documentRanking.add(map);
 
-                int cnt = 0;
-                while (cnt < intentSize) {
-                        String currQuery = allIntents.get(cnt);
-                        ScoreList s1 = QryEval.processQuery(currQuery, model);
+                for (ScoreList s1: intentRankings) {
                         Map<Integer, Double> currIntentMap = new ConcurrentHashMap<>();
-                        for (int i = 0; i < requiredSize; i++) {
+                        for (int i = 0; s1 != null && i < Math.min(requiredSize, s1.size()); i++) {
                                 currIntentMap.put(s1.getDocid(i), s1.getDocidScore(i));
                         }
                         documentRanking.add(currIntentMap);
-                        cnt++;
                 }
                 return documentRanking;
         }
@@ -344,11 +239,6 @@ public class Diversification {
                         }
                 } while (scan.hasNext());
                 scan.close();
-
-                // update number of intents and queryIntent
-                numOfIntent = intents.size();
-                queryIntent = intents;
-
                 return intents;
         }
 
@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A microbenchmark of diversification.  It compares the previous
+ * map-based xQuAD and PM2 implementations to DiversificationEngine on
+ * the queries of initial ranking files (e.g., TEST_DIR/*.inRank), and
+ * checks that both select the same documents with the same scores.
+ * External ids are replaced by sequential integers, so no index is
+ * needed.
+ * <pre>
+ *   java DiversificationBenchmark [-iterations N] [-length N] [-lambda L] FILE.inRank ...
+ * </pre>
+ */
+public class DiversificationBenchmark {
+
+        private static final String USAGE =
+                "Usage:  java DiversificationBenchmark [-iterations N] [-length N] [-lambda L] FILE.inRank ...\n\n";
+
+        private static final int WARMUP_ITERATIONS = 200;
+
+        /**
+         * Read the queries of an initial ranking file.
+         * @param file the file
+         * @param ids external id -> integer id, shared by all queries
+         * @return qid -> the relevance ranking followed by one ranking per intent
+         * @throws IOException Error reading the file
+         */
+        private static Map<Integer, List<Map<Integer, Double>>> readRankings(File file, Map<String, Integer> ids) throws IOException {
+                Map<Integer, List<Map<Integer, Double>>> queries = new TreeMap<>();
+                for (String line: Files.readAllLines(file.toPath())) {
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length < 5) {
+                                continue;
+                        }
+                        String[] query = fields[0].split("\\.");
+                        int qid = Integer.parseInt(query[0]);
+                        int intent = (query.length > 1) ? Integer.parseInt(query[1]) : 0;
+                        Integer docid = ids.get(fields[2]);
+                        if (docid == null) {
+                                docid = ids.size();
+                                ids.put(fields[2], docid);
+                        }
+                        List<Map<Integer, Double>> rankings = queries.get(qid);
+                        if (rankings == null) {
+                                rankings = new ArrayList<>();
+                                queries.put(qid, rankings);
+                        }
+                        while (rankings.size() <= intent) {
+                                rankings.add(new ConcurrentHashMap<>());
+                        }
+                        rankings.get(intent).put(docid, Double.parseDouble(fields[4]));
+                }
+                for (List<Map<Integer, Double>> rankings: queries.values()) {
+                        Diversification.prepareRankings(rankings);
+                }
+                return queries;
+        }
+
+        /**
+         * Copy rankings, because the previous implementations remove the
+         * selected documents from the relevance ranking.
+         * @param rankings rankings
+         * @return a copy
+         */
+        private static List<Map<Integer, Double>> copy(List<Map<Integer, Double>> rankings) {
+                List<Map<Integer, Double>> copy = new ArrayList<>(rankings.size());
+                for (Map<Integer, Double> r: rankings) {
+                        copy.add(new ConcurrentHashMap<>(r));
+                }
+                return copy;
+        }
+
+        /**
+         * The previous xQuAD, over boxed maps: the coverage product over
+         * the selected documents is rebuilt for every candidate.  It
+         * removes the selected documents from documentRanking.get(0).
+         */
+        private static List<double[]> legacyXQuAD(List<Map<Integer, Double>> documentRanking, int maxResultRankingLength, double lambda, int numOfIntent) {
+                List<double[]> result = new ArrayList<>();
+                Map<Integer, Double> initialRanking = documentRanking.get(0);
+                List<Integer> selected = new ArrayList<>();
+                double intentWeight = 1.0 / (double) numOfIntent;
+                while (result.size() < maxResultRankingLength && !initialRanking.isEmpty()) {
+                        int best = -1;
+                        double bestScore = -1.0;
+                        for (Integer id: initialRanking.keySet()) {
+                                double relevance = (1.0 - lambda) * initialRanking.get(id);
+                                double diversity = 0.0;
+                                for (int i = 0; i < numOfIntent; i++) {
+                                        Map<Integer, Double> intentRanking = documentRanking.get(i + 1);
+                                        Double score = intentRanking.get(id);
+                                        double newScore = (score != null) ? score : 0.0;
+                                        for (Integer d: selected) {
+                                                Double ds = intentRanking.get(d);
+                                                newScore *= (ds != null) ? 1.0 - ds : 1.0;
+                                        }
+                                        diversity += newScore;
+                                }
+                                diversity = diversity * lambda * intentWeight;
+                                if ((relevance + diversity) > bestScore) {
+                                        bestScore = relevance + diversity;
+                                        best = id;
+                                }
+                        }
+                        initialRanking.remove(best);
+                        selected.add(best);
+                        result.add(new double[] {best, bestScore});
+                }
+                return result;
+        }
+
+        /**
+         * The previous PM2, over boxed maps.  It removes the selected
+         * documents from documentRanking.get(0).
+         */
+        private static List<double[]> legacyPM2(List<Map<Integer, Double>> documentRanking, int maxResultRankingLength, double lambda, int numOfIntent) {
+                List<double[]> result = new ArrayList<>();
+                Map<Integer, Double> initialRanking = documentRanking.get(0);
+                double desiredRanks = (double) maxResultRankingLength / numOfIntent;
+                double[] qt = new double[numOfIntent];
+                double[] s = new double[numOfIntent];
+                while (result.size() < maxResultRankingLength && !initialRanking.isEmpty()) {
+                        for (int i = 0; i < numOfIntent; i++) {
+                                qt[i] = desiredRanks / (2.0 * s[i] + 1.0);
+                        }
+                        double updateScore = 0.0;
+                        int nextIntent = -1;
+                        for (int i = 0; i < numOfIntent; i++) {
+                                if (qt[i] > updateScore) {
+                                        updateScore = qt[i];
+                                        nextIntent = i;
+                                }
+                        }
+                        int bestId = -1;
+                        double bestScore = -1.0;
+                        for (Integer id: initialRanking.keySet()) {
+                                double coversQi = 0.0;
+                                double coversOther = 0.0;
+                                if (documentRanking.get(nextIntent + 1).get(id) != null) {
+                                        coversQi = lambda * qt[nextIntent] * documentRanking.get(nextIntent + 1).get(id);
+                                }
+                                for (int i = 0; i < numOfIntent; i++) {
+                                        if (i != nextIntent && documentRanking.get(i + 1).get(id) != null) {
+                                                coversOther += qt[i] * documentRanking.get(i + 1).get(id);
+                                        }
+                                }
+                                double score = coversQi + (1 - lambda) * coversOther;
+                                if (score > bestScore) {
+                                        bestScore = score;
+                                        bestId = id;
+                                }
+                        }
+                        initialRanking.remove(bestId);
+                        result.add(new double[] {bestId, bestScore});
+                        for (int t = 0; t < numOfIntent; t++) {
+                                if (documentRanking.get(t + 1).get(bestId) != null) {
+                                        double sum = 0.0;
+                                        for (int i = 0; i < numOfIntent; i++) {
+                                                Double v = documentRanking.get(i + 1).get(bestId);
+                                                sum += (v != null) ? v : 0.0;
+                                        }
+                                        s[t] += documentRanking.get(t + 1).get(bestId) / sum;
+                                }
+                        }
+                }
+                return result;
+        }
+
+        private static DiversificationEngine.Ranking engine(List<Map<Integer, Double>> rankings, boolean pm2, int length, double lambda) {
+                IntentMatrix m = new IntentMatrix(rankings, rankings.size() - 1);
+                return pm2 ? DiversificationEngine.PM2(m, length, lambda) : DiversificationEngine.xQuAD(m, length, lambda);
+        }
+
+        /**
+         * Check that both implementations select the same documents.  PM2
+         * scores must be identical; xQuAD scores are the same up to
+         * rounding, because the coverage product is kept incrementally.
+         */
+        private static void verify(int qid, List<Map<Integer, Double>> rankings, boolean pm2, int length, double lambda) {
+                int numIntents = rankings.size() - 1;
+                List<double[]> expected = pm2 ? legacyPM2(copy(rankings), length, lambda, numIntents)
+                        : legacyXQuAD(copy(rankings), length, lambda, numIntents);
+                IntentMatrix m = new IntentMatrix(rankings, numIntents);
+                DiversificationEngine.Ranking actual = pm2 ? DiversificationEngine.PM2(m, length, lambda)
+                        : DiversificationEngine.xQuAD(m, length, lambda);
+                String name = (pm2 ? "PM2" : "xQuAD") + " query " + qid;
+                if (expected.size() != actual.size) {
+                        throw new IllegalStateException(name + ": " + expected.size() + " != " + actual.size + " documents");
+                }
+                for (int k = 0; k < actual.size; k++) {
+                        int docid = (int) expected.get(k)[0];
+                        double score = expected.get(k)[1];
+                        boolean sameScore = pm2 ? Double.compare(score, actual.scores[k]) == 0
+                                : Math.abs(score - actual.scores[k]) <= 1e-12 * Math.max(1.0, Math.abs(score));
+                        if (docid != m.docid(actual.candidates[k]) || !sameScore) {
+                                throw new IllegalStateException(name + ", rank " + (k + 1) + ": " + docid + " " + score
+                                        + " != " + m.docid(actual.candidates[k]) + " " + actual.scores[k]);
+                        }
+                }
+        }
+
+        /**
+         * Time one implementation over all queries.  Each iteration copies
+         * the maps for the previous implementation and builds the matrix
+         * for the new one, as each does for a real query.
+         * @return nanoseconds per query
+         */
+        private static double time(List<List<Map<Integer, Double>>> queries, boolean pm2, boolean legacy,
+                                   int iterations, int length, double lambda) {
+                double sink = 0;
+                for (int pass = 0; pass < 2; pass++) {
+                        int n = (pass == 0) ? WARMUP_ITERATIONS : iterations;
+                        long start = System.nanoTime();
+                        for (int it = 0; it < n; it++) {
+                                for (List<Map<Integer, Double>> rankings: queries) {
+                                        int numIntents = rankings.size() - 1;
+                                        if (legacy) {
+                                                List<double[]> r = pm2 ? legacyPM2(copy(rankings), length, lambda, numIntents)
+                                                        : legacyXQuAD(copy(rankings), length, lambda, numIntents);
+                                                sink += r.get(r.size() - 1)[1];
+                                        } else {
+                                                DiversificationEngine.Ranking r = engine(rankings, pm2, length, lambda);
+                                                sink += r.scores[r.size - 1];
+                                        }
+                                }
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        if (pass == 1) {
+                                if (sink == 42) {
+                                        System.out.println();
+                                }
+                                return (double) elapsed / n / queries.size();
+                        }
+                }
+                return 0;
+        }
+
+        public static void main(String[] args) throws IOException {
+                int iterations = 500;
+                int length = 50;
+                double lambda = 0.5;
+                List<String> files = new ArrayList<>();
+                for (int i = 0; i < args.length; i++) {
+                        if ("-iterations".equals(args[i]) && i + 1 < args.length) {
+                                iterations = Integer.parseInt(args[++i]);
+                        } else if ("-length".equals(args[i]) && i + 1 < args.length) {
+                                length = Integer.parseInt(args[++i]);
+                        } else if ("-lambda".equals(args[i]) && i + 1 < args.length) {
+                                lambda = Double.parseDouble(args[++i]);
+                        } else {
+                                files.add(args[i]);
+                        }
+                }
+                if (files.isEmpty()) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+
+                Map<String, Integer> ids = new HashMap<>();
+                for (String f: files) {
+                        List<List<Map<Integer, Double>>> queries = new ArrayList<>();
+                        int numIntents = 0;
+                        for (Map.Entry<Integer, List<Map<Integer, Double>>> e: readRankings(new File(f), ids).entrySet()) {
+                                if (e.getValue().size() < 2) {
+                                        continue;
+                                }
+                                for (boolean pm2: new boolean[] {false, true}) {
+                                        verify(e.getKey(), e.getValue(), pm2, length, lambda);
+                                }
+                                queries.add(e.getValue());
+                                numIntents += e.getValue().size() - 1;
+                        }
+                        if (queries.isEmpty()) {
+                                continue;
+                        }
+                        for (boolean pm2: new boolean[] {false, true}) {
+                                double legacy = time(queries, pm2, true, iterations, length, lambda);
+                                double matrix = time(queries, pm2, false, iterations, length, lambda);
+                                System.out.printf("%-28s %-5s %2d queries, %.1f intents:  legacy %10.1f ns/query   matrix %10.1f ns/query   speedup %.1fx%n",
+                                        new File(f).getName(), pm2 ? "PM2" : "xQuAD", queries.size(),
+                                        (double) numIntents / queries.size(), legacy, matrix, legacy / matrix);
+                        }
+                }
+        }
+}
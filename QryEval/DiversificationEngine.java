@@ -0,0 +1,193 @@
+import java.util.Arrays;
+
+/**
+ * The xQuAD and PM2 diversification algorithms over an IntentMatrix.
+ * They work on candidate positions and primitive arrays only, so they
+ * do not need an open index; Diversification turns the result into a
+ * ScoreList.
+ * <p>
+ * Both algorithms scan the remaining candidates in the relevance
+ * ranking's order, and a later candidate must score strictly higher to
+ * be selected, so ties go to the earlier candidate.  Selection stops
+ * when the ranking is full or no candidates remain.
+ * </p>
+ */
+public class DiversificationEngine {
+
+        /**
+         * A diversified ranking.
+         */
+        public static class Ranking {
+                /**
+                 * The number of selected candidates.
+                 */
+                public int size;
+                /**
+                 * The selected candidate positions, in rank order.
+                 */
+                public int[] candidates;
+                /**
+                 * The score of each selected candidate.
+                 */
+                public double[] scores;
+
+                private Ranking(int capacity) {
+                        candidates = new int[capacity];
+                        scores = new double[capacity];
+                }
+
+                private void add(int c, double score) {
+                        candidates[size] = c;
+                        scores[size] = score;
+                        size++;
+                }
+        }
+
+        /**
+         * Explicit Query Aspect Diversification.
+         * <p>
+         * How well S already covers intent qi is the product over the
+         * selected documents d' of (1 - P(d'|qi)).  It is kept as a running
+         * product per intent and updated once per selection, so each step
+         * costs O(candidates x intents).
+         * </p>
+         * @param m relevance and intent scores of the candidates
+         * @param maxResultRankingLength the length of the diversified ranking
+         * @param lambda balance between relevance and diversity
+         * @return the diversified ranking
+         */
+        public static Ranking xQuAD(IntentMatrix m, int maxResultRankingLength, double lambda) {
+                int numCandidates = m.numCandidates();
+                int numIntents = m.numIntents();
+                double[] relevanceScores = m.relevance();
+                double[] intentScores = m.scores();
+                Ranking r = new Ranking(Math.max(0, Math.min(maxResultRankingLength, numCandidates)));
+                // how well S does not yet cover each intent
+                double[] notCovered = new double[numIntents];
+                Arrays.fill(notCovered, 1.0);
+                boolean[] selected = new boolean[numCandidates];
+                // intent weight
+                double intentWeight = 1.0 / (double) numIntents;
+
+                while (r.size < r.candidates.length) {
+                        int best = -1;
+                        double bestScore = -1.0;
+                        for (int c = 0; c < numCandidates; c++) {
+                                if (selected[c]) {
+                                        continue;
+                                }
+                                double relevance = (1.0 - lambda) * relevanceScores[c];
+                                double diversity = 0.0;
+                                int row = c * numIntents;
+                                for (int i = 0; i < numIntents; i++) {
+                                        diversity += intentScores[row + i] * notCovered[i];
+                                }
+                                // scale score
+                                diversity = diversity * lambda * intentWeight;
+                                if ((relevance + diversity) > bestScore) {
+                                        bestScore = relevance + diversity;
+                                        best = c;
+                                }
+                        }
+                        if (best < 0) {
+                                break;
+                        }
+                        selected[best] = true;
+                        r.add(best, bestScore);
+
+                        // update how well S covers each intent
+                        int row = best * numIntents;
+                        for (int i = 0; i < numIntents; i++) {
+                                notCovered[i] *= 1.0 - intentScores[row + i];
+                        }
+                }
+                return r;
+        }
+
+        /**
+         * Proportionality Model 2.
+         * <p>
+         * Each step picks the intent with the largest quotient
+         * desiredRanks / (2 s_i + 1), then the candidate that best covers it
+         * and, with weight 1 - lambda, the other intents.  A missing intent
+         * score is 0 in the matrix, which adds exactly 0 to every sum, so
+         * the scores are the same as summing over present scores only.  The
+         * quotients change after every selection, so candidate scores can
+         * not be kept in a priority queue; each step is one pass over the
+         * dense remaining rows.
+         * </p>
+         * @param m relevance and intent scores of the candidates
+         * @param maxResultRankingLength the length of the diversified ranking
+         * @param lambda balance between the next intent and the others
+         * @return the diversified ranking
+         */
+        public static Ranking PM2(IntentMatrix m, int maxResultRankingLength, double lambda) {
+                int numCandidates = m.numCandidates();
+                int numIntents = m.numIntents();
+                double[] intentScores = m.scores();
+                Ranking r = new Ranking(Math.max(0, Math.min(maxResultRankingLength, numCandidates)));
+                // desired ranks for qi = diversified ranking size / number of intents
+                double desiredRanks = (double) maxResultRankingLength / numIntents;
+                // quotient scores
+                double[] qt = new double[numIntents];
+                // slots assigned
+                double[] s = new double[numIntents];
+                // remaining candidates, in relevance ranking order
+                int[] remaining = new int[numCandidates];
+                for (int c = 0; c < numCandidates; c++) {
+                        remaining[c] = c;
+                }
+                int numRemaining = numCandidates;
+
+                while (r.size < r.candidates.length) {
+                        // select the intent that must be covered next to
+                        // maintain proportional coverage of intents
+                        int nextIntent = -1;
+                        double nextQuotient = 0.0;
+                        for (int i = 0; i < numIntents; i++) {
+                                qt[i] = desiredRanks / (2.0 * s[i] + 1.0);
+                                if (qt[i] > nextQuotient) {
+                                        nextQuotient = qt[i];
+                                        nextIntent = i;
+                                }
+                        }
+
+                        // select a document d that covers intent qi
+                        int bestIndex = -1;
+                        double bestScore = -1.0;
+                        for (int k = 0; k < numRemaining; k++) {
+                                int row = remaining[k] * numIntents;
+                                double coversQi = 0.0;
+                                double coversOther = 0.0;
+                                for (int i = 0; i < numIntents; i++) {
+                                        if (i == nextIntent) {
+                                                coversQi = lambda * qt[i] * intentScores[row + i];
+                                        } else {
+                                                coversOther += qt[i] * intentScores[row + i];
+                                        }
+                                }
+                                double score = coversQi + (1 - lambda) * coversOther;
+                                if (score > bestScore) {
+                                        bestScore = score;
+                                        bestIndex = k;
+                                }
+                        }
+                        if (bestIndex < 0) {
+                                break;
+                        }
+                        int best = remaining[bestIndex];
+                        System.arraycopy(remaining, bestIndex + 1, remaining, bestIndex, numRemaining - bestIndex - 1);
+                        numRemaining--;
+                        r.add(best, bestScore);
+
+                        // update coverage of each intent that d covers
+                        double sum = m.rowSum(best);
+                        for (int i = 0; i < numIntents; i++) {
+                                if (m.isPresent(best, i)) {
+                                        s[i] += intentScores[best * numIntents + i] / sum;
+                                }
+                        }
+                }
+                return r;
+        }
+}
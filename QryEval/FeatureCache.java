@@ -0,0 +1,192 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent cache of full learning to rank feature vectors (all
+ * features, before featureDisable is applied) for (qid, docid) pairs.
+ * Feature-ablation runs that only change ltr:featureDisable reuse the
+ * vectors of earlier runs instead of extracting them again.
+ * <p>
+ * The cache is only valid for one index and one set of feature model
+ * parameters, so the file starts with a key built from them.  A file
+ * with a different key is ignored and replaced.  Each entry also stores
+ * a hash of the query terms, so a qid that is reused for a different
+ * query is not served stale features.
+ * </p>
+ * <pre>
+ *   header:  magic (int), key (UTF), numFeatures (int)
+ *   entry:   qid (int), docid (int), queryHash (int), values[numFeatures] (double)
+ * </pre>
+ */
+public class FeatureCache {
+
+        private static final int MAGIC = 0x46434831;
+
+        /**
+         * A cached feature vector.
+         */
+        private static class Entry {
+                private int queryHash;
+                private double[] values;
+
+                private Entry(int queryHash, double[] values) {
+                        this.queryHash = queryHash;
+                        this.values = values;
+                }
+        }
+
+        private String fileName;
+        private String key;
+        private int numFeatures;
+        /**
+         * Cached vectors, keyed by qid and internal docid.
+         */
+        private Map<Long, Entry> entries = new HashMap<>();
+        /**
+         * Entries added in this run that are not in the file yet.
+         */
+        private List<Long> pendingKeys = new ArrayList<>();
+        /**
+         * True if the file exists and has this cache's key, so new
+         * entries can be appended to it.
+         */
+        private boolean fileIsValid = false;
+        private int hits = 0;
+        private int misses = 0;
+
+        /**
+         * Open a feature cache, loading the file if it exists and has the same key.
+         * @param fileName cache file
+         * @param key identifies the index and feature model parameters
+         * @param numFeatures length of each feature vector
+         * @throws IOException Error reading the file
+         */
+        public FeatureCache(String fileName, String key, int numFeatures) throws IOException {
+                this.fileName = fileName;
+                this.key = key;
+                this.numFeatures = numFeatures;
+
+                File f = new File(fileName);
+                if (!f.canRead()) {
+                        return;
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+                        if (in.readInt() != MAGIC || !key.equals(in.readUTF()) || in.readInt() != numFeatures) {
+                                System.out.println("Feature cache " + fileName + " was built with different parameters; ignoring it.");
+                                return;
+                        }
+                        while (true) {
+                                int qid;
+                                try {
+                                        qid = in.readInt();
+                                } catch (EOFException e) {
+                                        break;
+                                }
+                                int docid = in.readInt();
+                                int queryHash = in.readInt();
+                                double[] values = new double[numFeatures];
+                                for (int j = 0; j < numFeatures; j++) {
+                                        values[j] = in.readDouble();
+                                }
+                                entries.put(pairKey(qid, docid), new Entry(queryHash, values));
+                        }
+                } catch (EOFException e) {
+                        System.out.println("Feature cache " + fileName + " is truncated; ignoring it.");
+                        entries.clear();
+                        return;
+                }
+                fileIsValid = true;
+        }
+
+        /**
+         * Build the cache key for an index and the feature model parameters.
+         * @param indexPath index path
+         * @param BM25 BM25 model used by the BM25 features
+         * @param indri Indri model used by the Indri features
+         * @return the cache key
+         */
+        public static String makeKey(String indexPath, RetrievalModelBM25 BM25, RetrievalModelIndri indri) {
+                return "index=" + new File(indexPath).getAbsolutePath()
+                        + ";BM25:k_1=" + BM25.getK_1() + ";BM25:b=" + BM25.getB()
+                        + ";Indri:mu=" + indri.getMu() + ";Indri:lambda=" + indri.getLambda();
+        }
+
+        private static long pairKey(int qid, int docid) {
+                return ((long) qid << 32) | (docid & 0xffffffffL);
+        }
+
+        /**
+         * Look up a feature vector.
+         * @param qid query id
+         * @param docid internal document id
+         * @param queryHash hash of the query terms
+         * @param values receives the cached vector
+         * @return true if the vector was cached
+         */
+        public boolean get(int qid, int docid, int queryHash, double[] values) {
+                Entry e = entries.get(pairKey(qid, docid));
+                if (e == null || e.queryHash != queryHash) {
+                        misses++;
+                        return false;
+                }
+                System.arraycopy(e.values, 0, values, 0, numFeatures);
+                hits++;
+                return true;
+        }
+
+        /**
+         * Add a feature vector.  It is written to the file by save.
+         * @param qid query id
+         * @param docid internal document id
+         * @param queryHash hash of the query terms
+         * @param values full feature vector (copied)
+         */
+        public void put(int qid, int docid, int queryHash, double[] values) {
+                long k = pairKey(qid, docid);
+                entries.put(k, new Entry(queryHash, values.clone()));
+                pendingKeys.add(k);
+        }
+
+        /**
+         * Write the entries added in this run to the cache file.
+         * @throws IOException Error writing the file
+         */
+        public void save() throws IOException {
+                if (pendingKeys.isEmpty() && fileIsValid) {
+                        return;
+                }
+                boolean append = fileIsValid;
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName, append), 1 << 16))) {
+                        if (!append) {
+                                out.writeInt(MAGIC);
+                                out.writeUTF(key);
+                                out.writeInt(numFeatures);
+                        }
+                        Iterable<Long> keys = append ? pendingKeys : entries.keySet();
+                        for (Long k: keys) {
+                                Entry e = entries.get(k);
+                                out.writeInt((int) (k >> 32));
+                                out.writeInt((int) (long) k);
+                                out.writeInt(e.queryHash);
+                                for (int j = 0; j < numFeatures; j++) {
+                                        out.writeDouble(e.values[j]);
+                                }
+                        }
+                }
+                pendingKeys.clear();
+                fileIsValid = true;
+                System.out.println("Feature cache: " + hits + " hits, " + misses + " misses, " + entries.size() + " entries");
+        }
+
+}
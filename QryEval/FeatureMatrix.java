@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * The learning to rank feature vectors of one query, stored as a dense
+ * row-major matrix of primitive doubles.  Each row is one document; each
+ * column is one feature, identified by featureIds (feature ids start with 1).
+ */
+public class FeatureMatrix {
+
+        /**
+         * The query id.
+         */
+        private int qid;
+        /**
+         * The feature id of each column.
+         */
+        private int[] featureIds;
+        /**
+         * The number of columns.
+         */
+        private int numColumns;
+        /**
+         * The number of rows.
+         */
+        private int numRows;
+        /**
+         * Row-major feature values, numRows * numColumns are in use.
+         */
+        private double[] values;
+        /**
+         * The relevance label of each row.
+         */
+        private int[] labels;
+        /**
+         * The external document id of each row.
+         */
+        private String[] externalIds;
+
+        /**
+         * Constructor.
+         * @param qid query id
+         * @param featureIds the feature id of each column
+         * @param capacity expected number of rows
+         */
+        public FeatureMatrix(int qid, int[] featureIds, int capacity) {
+                this.qid = qid;
+                this.featureIds = featureIds;
+                this.numColumns = featureIds.length;
+                capacity = Math.max(capacity, 1);
+                this.values = new double[capacity * numColumns];
+                this.labels = new int[capacity];
+                this.externalIds = new String[capacity];
+        }
+
+        /**
+         * Append a row.  The row's features are zero until they are set.
+         * @param externalId external document id
+         * @param label relevance label
+         * @return index of the new row
+         */
+        public int addRow(String externalId, int label) {
+                if (numRows == labels.length) {
+                        int capacity = labels.length * 2;
+                        values = Arrays.copyOf(values, capacity * numColumns);
+                        labels = Arrays.copyOf(labels, capacity);
+                        externalIds = Arrays.copyOf(externalIds, capacity);
+                }
+                labels[numRows] = label;
+                externalIds[numRows] = externalId;
+                return numRows++;
+        }
+
+        /**
+         * Append a row and copy its features.
+         * @param externalId external document id
+         * @param label relevance label
+         * @param features feature values, one per column
+         * @return index of the new row
+         */
+        public int addRow(String externalId, int label, double[] features) {
+                int row = addRow(externalId, label);
+                System.arraycopy(features, 0, values, row * numColumns, numColumns);
+                return row;
+        }
+
+        public int getQid() {
+                return qid;
+        }
+
+        public int[] getFeatureIds() {
+                return featureIds;
+        }
+
+        public int numColumns() {
+                return numColumns;
+        }
+
+        public int numRows() {
+                return numRows;
+        }
+
+        public int getLabel(int row) {
+                return labels[row];
+        }
+
+        public String getExternalId(int row) {
+                return externalIds[row];
+        }
+
+        public double get(int row, int column) {
+                return values[row * numColumns + column];
+        }
+
+        public void set(int row, int column, double value) {
+                values[row * numColumns + column] = value;
+        }
+
+        /**
+         * Offset of a row in the backing array.
+         * @param row row index
+         * @return offset of the row's first feature
+         */
+        public int rowOffset(int row) {
+                return row * numColumns;
+        }
+
+        /**
+         * The backing array.  Rows are stored back to back, numColumns
+         * values each; only the first numRows rows are in use.
+         * @return row-major feature values
+         */
+        public double[] values() {
+                return values;
+        }
+}
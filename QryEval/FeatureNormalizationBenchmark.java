@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A microbenchmark of SVMrank feature normalization.  It compares the
+ * previous implementation (boxed values in a Map of Lists, Double[]
+ * min/max) to FeatureNormalizer on realistic batch sizes, and checks
+ * that both produce the same values.
+ * <pre>
+ *   java FeatureNormalizationBenchmark [-iterations N]
+ * </pre>
+ */
+public class FeatureNormalizationBenchmark {
+
+        private static final int NUM_FEATURES = 20;
+        private static final int[] BATCH_SIZES = {100, 1000};
+        private static final int WARMUP_ITERATIONS = 20000;
+
+        /**
+         * A batch of feature vectors in both representations.
+         */
+        private static class Batch {
+                private FeatureMatrix matrix;
+                private Map<String, List<Double>> boxed;
+        }
+
+        /**
+         * Build a random batch.  Some columns are constant, as disabled or
+         * missing features are, to exercise the min == max case.
+         * @param numDocs number of rows
+         * @param seed random seed
+         * @return the batch
+         */
+        private static Batch makeBatch(int numDocs, long seed) {
+                Random random = new Random(seed);
+                int[] featureIds = new int[NUM_FEATURES];
+                for (int j = 0; j < NUM_FEATURES; j++) {
+                        featureIds[j] = j + 1;
+                }
+                Batch b = new Batch();
+                b.matrix = new FeatureMatrix(1, featureIds, numDocs);
+                b.boxed = new HashMap<>();
+                double[] row = new double[NUM_FEATURES];
+                for (int i = 0; i < numDocs; i++) {
+                        List<Double> list = new ArrayList<>(NUM_FEATURES);
+                        for (int j = 0; j < NUM_FEATURES; j++) {
+                                row[j] = (j % 7 == 6) ? 0.0 : random.nextDouble() * (j + 1) * 10;
+                                list.add(row[j]);
+                        }
+                        String externalId = "clueweb09-en0000-" + i;
+                        b.matrix.addRow(externalId, 0, row);
+                        b.boxed.put(externalId, list);
+                }
+                return b;
+        }
+
+        /**
+         * The previous implementation: a min/max pass and a normalization
+         * pass over boxed values.
+         * @param features feature vectors keyed by external id
+         */
+        private static void legacyNormalize(Map<String, List<Double>> features) {
+                Double[] maxFeatures = new Double[NUM_FEATURES];
+                Double[] minFeatures = new Double[NUM_FEATURES];
+                for (int i = 0; i < NUM_FEATURES; i++) {
+                        maxFeatures[i] = -Double.MAX_VALUE;
+                        minFeatures[i] = Double.MAX_VALUE;
+                }
+                for (List<Double> currF: features.values()) {
+                        for (int i = 0; i < currF.size(); i++) {
+                                minFeatures[i] = Math.min(currF.get(i), minFeatures[i]);
+                                maxFeatures[i] = Math.max(currF.get(i), maxFeatures[i]);
+                        }
+                }
+                for (List<Double> currF: features.values()) {
+                        for (int i = 0; i < currF.size(); i++) {
+                                Double diff = maxFeatures[i] - minFeatures[i];
+                                if (diff == 0.0) {
+                                        currF.set(i, 0.0);
+                                } else {
+                                        currF.set(i, (currF.get(i) - minFeatures[i]) / diff);
+                                }
+                        }
+                }
+        }
+
+        /**
+         * Check that both implementations produce the same values.
+         * @param numDocs number of rows
+         */
+        private static void verify(int numDocs) {
+                Batch b = makeBatch(numDocs, 17);
+                legacyNormalize(b.boxed);
+                FeatureNormalizer.normalize(b.matrix);
+                for (int row = 0; row < b.matrix.numRows(); row++) {
+                        List<Double> expected = b.boxed.get(b.matrix.getExternalId(row));
+                        for (int j = 0; j < NUM_FEATURES; j++) {
+                                if (Double.compare(expected.get(j), b.matrix.get(row, j)) != 0) {
+                                        throw new IllegalStateException("Mismatch at row " + row + ", feature " + (j + 1)
+                                                + ": " + expected.get(j) + " != " + b.matrix.get(row, j));
+                                }
+                        }
+                }
+        }
+
+        /**
+         * Time one implementation.  Each iteration restores the input from
+         * a pristine copy, so the copy cost is included for both.
+         * @param numDocs number of rows
+         * @param iterations timed iterations
+         * @param legacy true to time the previous implementation
+         * @return nanoseconds per normalization
+         */
+        private static double time(int numDocs, int iterations, boolean legacy) {
+                Batch pristine = makeBatch(numDocs, 42);
+                Batch work = makeBatch(numDocs, 42);
+                double[] src = pristine.matrix.values();
+                double[] dst = work.matrix.values();
+                List<List<Double>> srcLists = new ArrayList<>(pristine.boxed.values());
+                List<List<Double>> dstLists = new ArrayList<>(work.boxed.values());
+                double sink = 0;
+
+                for (int pass = 0; pass < 2; pass++) {
+                        int n = (pass == 0) ? WARMUP_ITERATIONS : iterations;
+                        long start = System.nanoTime();
+                        for (int it = 0; it < n; it++) {
+                                if (legacy) {
+                                        for (int i = 0; i < srcLists.size(); i++) {
+                                                List<Double> s = srcLists.get(i);
+                                                List<Double> d = dstLists.get(i);
+                                                for (int j = 0; j < NUM_FEATURES; j++) {
+                                                        d.set(j, s.get(j));
+                                                }
+                                        }
+                                        legacyNormalize(work.boxed);
+                                        sink += dstLists.get(it % numDocs).get(it % NUM_FEATURES);
+                                } else {
+                                        System.arraycopy(src, 0, dst, 0, numDocs * NUM_FEATURES);
+                                        FeatureNormalizer.normalize(work.matrix);
+                                        sink += dst[it % dst.length];
+                                }
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        if (pass == 1) {
+                                if (sink == 42) {
+                                        System.out.println();
+                                }
+                                return (double) elapsed / n;
+                        }
+                }
+                return 0;
+        }
+
+        public static void main(String[] args) {
+                int iterations = 100000;
+                for (int i = 0; i + 1 < args.length; i += 2) {
+                        if ("-iterations".equals(args[i])) {
+                                iterations = Integer.parseInt(args[i + 1]);
+                        }
+                }
+                for (int numDocs: BATCH_SIZES) {
+                        verify(numDocs);
+                        double legacy = time(numDocs, iterations / (numDocs / 100), true);
+                        double matrix = time(numDocs, iterations / (numDocs / 100), false);
+                        System.out.printf("%5d docs x %d features:  legacy %10.1f ns/op   matrix %10.1f ns/op   speedup %.1fx%n",
+                                numDocs, NUM_FEATURES, legacy, matrix, legacy / matrix);
+                }
+        }
+}
@@ -0,0 +1,91 @@
+/**
+ * Min-max reduction and [0..1] normalization of the columns of a
+ * FeatureMatrix, used to normalize SVMrank feature vectors per query.
+ * <p>
+ * The loops run over primitive arrays with unit stride along a row and
+ * no branches or calls in the loop bodies other than Math.min/Math.max,
+ * so that HotSpot's C2 compiler can auto-vectorize them.
+ * </p>
+ */
+public class FeatureNormalizer {
+
+        /**
+         * Compute the minimum and maximum value of each column.
+         * @param m feature matrix
+         * @param min receives the minimum of each column
+         * @param max receives the maximum of each column
+         */
+        public static void minMax(FeatureMatrix m, double[] min, double[] max) {
+                minMax(m.values(), m.numRows(), m.numColumns(), min, max);
+        }
+
+        /**
+         * Compute the minimum and maximum value of each column of a
+         * row-major matrix.
+         * @param values row-major values
+         * @param numRows number of rows
+         * @param numColumns number of columns
+         * @param min receives the minimum of each column
+         * @param max receives the maximum of each column
+         */
+        public static void minMax(double[] values, int numRows, int numColumns, double[] min, double[] max) {
+                for (int c = 0; c < numColumns; c++) {
+                        min[c] = Double.MAX_VALUE;
+                        max[c] = -Double.MAX_VALUE;
+                }
+                for (int r = 0, offset = 0; r < numRows; r++, offset += numColumns) {
+                        for (int c = 0; c < numColumns; c++) {
+                                double v = values[offset + c];
+                                min[c] = Math.min(v, min[c]);
+                                max[c] = Math.max(v, max[c]);
+                        }
+                }
+        }
+
+        /**
+         * Normalize each column of a feature matrix to [0..1].
+         * @param m feature matrix
+         * @param min the minimum of each column
+         * @param max the maximum of each column
+         */
+        public static void normalize(FeatureMatrix m, double[] min, double[] max) {
+                normalize(m.values(), m.numRows(), m.numColumns(), min, max);
+        }
+
+        /**
+         * Normalize each column of a row-major matrix to [0..1], i.e.,
+         * (v - min) / (max - min).  If the min and max of a column are the
+         * same value, every value in the column equals min, so dividing
+         * by 1 instead of 0 sets the feature value to 0 without a branch
+         * in the inner loop.
+         * @param values row-major values
+         * @param numRows number of rows
+         * @param numColumns number of columns
+         * @param min the minimum of each column
+         * @param max the maximum of each column
+         */
+        public static void normalize(double[] values, int numRows, int numColumns, double[] min, double[] max) {
+                double[] divisor = new double[numColumns];
+                for (int c = 0; c < numColumns; c++) {
+                        double diff = max[c] - min[c];
+                        divisor[c] = (diff == 0.0) ? 1.0 : diff;
+                }
+                for (int r = 0, offset = 0; r < numRows; r++, offset += numColumns) {
+                        for (int c = 0; c < numColumns; c++) {
+                                values[offset + c] = (values[offset + c] - min[c]) / divisor[c];
+                        }
+                }
+        }
+
+        /**
+         * Normalize each column of a feature matrix to [0..1] using the
+         * matrix's own minimum and maximum values.
+         * @param m feature matrix
+         */
+        public static void normalize(FeatureMatrix m) {
+                double[] min = new double[m.numColumns()];
+                double[] max = new double[m.numColumns()];
+                minMax(m, min, max);
+                normalize(m, min, max);
+        }
+}
@@ -0,0 +1,126 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reader for binary feature vector files written by FeatureVectorWriter.
+ * Rows are returned one query at a time as a FeatureMatrix, so a file
+ * can be re-read without reparsing text or boxing values.  The main
+ * method converts a binary file to the SVMRank/RankLib text format.
+ */
+public class FeatureVectorReader {
+
+        private static final String USAGE =
+                "Usage:  java FeatureVectorReader -in BINARY_FILE -out TEXT_FILE\n\n";
+
+        private DataInputStream in;
+        private int[] featureIds;
+        /**
+         * The first row of the next query, read ahead while reading the
+         * previous query.  hasPending is false at end of file.
+         */
+        private boolean hasPending;
+        private int pendingQid;
+        private int pendingLabel;
+        private String pendingExternalId;
+        private double[] pendingValues;
+
+        /**
+         * Constructor.
+         * @param fileName a binary feature vector file
+         * @throws IOException Error reading the file
+         */
+        public FeatureVectorReader(String fileName) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+                if (in.readInt() != FeatureVectorWriter.BINARY_MAGIC) {
+                        in.close();
+                        throw new IllegalArgumentException("Not a binary feature vector file: " + fileName);
+                }
+                featureIds = new int[in.readInt()];
+                for (int j = 0; j < featureIds.length; j++) {
+                        featureIds[j] = in.readInt();
+                }
+                pendingValues = new double[featureIds.length];
+                readRow();
+        }
+
+        public int[] getFeatureIds() {
+                return featureIds;
+        }
+
+        /**
+         * Read the next row into the pending fields.
+         * @throws IOException Error reading the file
+         */
+        private void readRow() throws IOException {
+                try {
+                        pendingQid = in.readInt();
+                } catch (EOFException e) {
+                        hasPending = false;
+                        return;
+                }
+                pendingLabel = in.readInt();
+                pendingExternalId = in.readUTF();
+                for (int j = 0; j < pendingValues.length; j++) {
+                        pendingValues[j] = in.readDouble();
+                }
+                hasPending = true;
+        }
+
+        /**
+         * Read the rows of the next query.
+         * @return the next query's feature vectors, or null at end of file
+         * @throws IOException Error reading the file
+         */
+        public FeatureMatrix readQuery() throws IOException {
+                if (!hasPending) {
+                        return null;
+                }
+                int qid = pendingQid;
+                FeatureMatrix m = new FeatureMatrix(qid, featureIds, 100);
+                while (hasPending && pendingQid == qid) {
+                        m.addRow(pendingExternalId, pendingLabel, pendingValues);
+                        readRow();
+                }
+                return m;
+        }
+
+        public void close() throws IOException {
+                in.close();
+        }
+
+        /**
+         * Convert a binary feature vector file to text.
+         * @param binaryFile binary input file
+         * @param textFile text output file
+         * @throws IOException Error reading or writing a file
+         */
+        public static void convertToText(String binaryFile, String textFile) throws IOException {
+                FeatureVectorReader reader = new FeatureVectorReader(binaryFile);
+                FeatureVectorWriter writer = FeatureVectorWriter.openText(textFile);
+                FeatureMatrix m;
+                while ((m = reader.readQuery()) != null) {
+                        writer.write(m);
+                }
+                writer.close();
+                reader.close();
+        }
+
+        public static void main(String[] args) throws IOException {
+                String in = null;
+                String out = null;
+                for (int i = 0; i + 1 < args.length; i += 2) {
+                        if ("-in".equals(args[i])) {
+                                in = args[i + 1];
+                        } else if ("-out".equals(args[i])) {
+                                out = args[i + 1];
+                        }
+                }
+                if (in == null || out == null) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+                convertToText(in, out);
+        }
+}
@@ -0,0 +1,200 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming writer for learning to rank feature vectors.  The file is
+ * opened once per run and written through a buffer, one FeatureMatrix
+ * (query) at a time.
+ * <p>
+ * The text format is the SVMRank/RankLib format:
+ * </p>
+ * <pre>
+ *   label qid:QID id:value id:value ... # externalId
+ * </pre>
+ * <p>
+ * The binary format stores the same information without text
+ * formatting; FeatureVectorReader reads it back and converts it to text.
+ * </p>
+ * <pre>
+ *   header:  magic, numFeatures, featureIds[numFeatures]   (int each)
+ *   row:     qid (int), label (int), externalId (UTF),
+ *            values[numFeatures] (double)
+ * </pre>
+ */
+public class FeatureVectorWriter implements Closeable {
+
+        public static final int BINARY_MAGIC = 0x46564231;
+
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        /**
+         * Text output, or null for binary output.
+         */
+        private OutputStream text;
+        /**
+         * Binary output, or null for text output.
+         */
+        private DataOutputStream binary;
+        /**
+         * Reusable line buffer for the text format.
+         */
+        private StringBuilder line = new StringBuilder(512);
+        /**
+         * Feature ids written in the binary header.
+         */
+        private int[] featureIds;
+
+        /**
+         * Constructor.  Use openText or openBinary.
+         */
+        private FeatureVectorWriter() {
+        }
+
+        /**
+         * Open a text (SVMRank/RankLib) feature vector file.  An existing
+         * file is replaced.
+         * @param fileName file name
+         * @return the writer
+         * @throws IOException Error opening the file
+         */
+        public static FeatureVectorWriter openText(String fileName) throws IOException {
+                FeatureVectorWriter w = new FeatureVectorWriter();
+                w.text = new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE);
+                return w;
+        }
+
+        /**
+         * Open a binary feature vector file.  An existing file is replaced.
+         * @param fileName file name
+         * @param featureIds the feature id of each column
+         * @return the writer
+         * @throws IOException Error opening the file
+         */
+        public static FeatureVectorWriter openBinary(String fileName, int[] featureIds) throws IOException {
+                FeatureVectorWriter w = new FeatureVectorWriter();
+                w.featureIds = featureIds;
+                w.binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE));
+                w.binary.writeInt(BINARY_MAGIC);
+                w.binary.writeInt(featureIds.length);
+                for (int id: featureIds) {
+                        w.binary.writeInt(id);
+                }
+                return w;
+        }
+
+        /**
+         * Write all rows of a feature matrix.
+         * @param m the feature vectors of one query
+         * @throws IOException Error writing the file
+         */
+        public void write(FeatureMatrix m) throws IOException {
+                int[] columns = new int[m.numColumns()];
+                for (int j = 0; j < columns.length; j++) {
+                        columns[j] = j;
+                }
+                write(m, columns);
+        }
+
+        /**
+         * Write all rows of a feature matrix, but only the selected
+         * columns, e.g., to apply featureDisable.
+         * @param m the feature vectors of one query
+         * @param columns the columns to write, in order
+         * @throws IOException Error writing the file
+         */
+        public void write(FeatureMatrix m, int[] columns) throws IOException {
+                if (binary != null) {
+                        writeBinary(m, columns);
+                } else {
+                        writeText(m, columns);
+                }
+        }
+
+        /**
+         * Write a feature matrix in SVMRank/RankLib text format.
+         * @param m the feature vectors of one query
+         * @param columns the columns to write
+         * @throws IOException Error writing the file
+         */
+        private void writeText(FeatureMatrix m, int[] columns) throws IOException {
+                int[] ids = m.getFeatureIds();
+                double[] values = m.values();
+                for (int row = 0; row < m.numRows(); row++) {
+                        int offset = m.rowOffset(row);
+                        line.setLength(0);
+                        // feature vector file output format: score, query id, feature id & feature value pair, external id
+                        line.append(m.getLabel(row)).append(" qid:").append(m.getQid()).append(' ');
+                        for (int j: columns) {
+                                // feature id should start with 1
+                                line.append(ids[j]).append(':').append(values[offset + j]).append(' ');
+                        }
+                        line.append(" # ").append(m.getExternalId(row)).append('\n');
+                        // ASCII is written directly; other characters are encoded
+                        // as UTF-8 a code point at a time, so surrogate pairs stay whole
+                        int i = 0;
+                        while (i < line.length()) {
+                                char c = line.charAt(i);
+                                if (c < 0x80) {
+                                        text.write(c);
+                                        i++;
+                                } else {
+                                        int n = Character.charCount(line.codePointAt(i));
+                                        text.write(line.substring(i, i + n).getBytes(StandardCharsets.UTF_8));
+                                        i += n;
+                                }
+                        }
+                }
+        }
+
+        /**
+         * Write a feature matrix in binary format.
+         * @param m the feature vectors of one query
+         * @param columns the columns to write
+         * @throws IOException Error writing the file
+         */
+        private void writeBinary(FeatureMatrix m, int[] columns) throws IOException {
+                if (columns.length != featureIds.length) {
+                        throw new IllegalArgumentException("Feature matrix does not match the file's features.");
+                }
+                double[] values = m.values();
+                for (int row = 0; row < m.numRows(); row++) {
+                        int offset = m.rowOffset(row);
+                        binary.writeInt(m.getQid());
+                        binary.writeInt(m.getLabel(row));
+                        binary.writeUTF(m.getExternalId(row));
+                        for (int j: columns) {
+                                binary.writeDouble(values[offset + j]);
+                        }
+                }
+        }
+
+        /**
+         * Flush buffered output, e.g., before a toolkit reads the file.
+         * @throws IOException Error writing the file
+         */
+        public void flush() throws IOException {
+                if (binary != null) {
+                        binary.flush();
+                } else {
+                        text.flush();
+                }
+        }
+
+        /**
+         * Flush and close the file.
+         * @throws IOException Error writing the file
+         */
+        @Override
+        public void close() throws IOException {
+                if (binary != null) {
+                        binary.close();
+                } else {
+                        text.close();
+                }
+        }
+}
@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A memory-mapped forward index for one field: for each document, its
+ * term ids with term frequencies, and a term dictionary with ctf and df.
+ * It is an alternative to Lucene term vectors, which are slow to read
+ * and allocate heavily.  BuildForwardIndex writes the file.
+ * <pre>
+ *   header:      magic, version, numDocs, numTerms               (int each)
+ *   ctf:         long[numTerms]
+ *   df:          int[numTerms]
+ *   termOffsets: int[numTerms + 1]    offsets into termBytes
+ *   termBytes:   UTF-8 terms, in Lucene (unsigned byte) order
+ *   docOffsets:  long[numDocs + 1]    offsets into postings
+ *   postings:    per document:  numStems, positionsLength, then
+ *                numStems x (termId delta, tf)                    (varint each)
+ * </pre>
+ * Term ids are the ranks of the terms in the dictionary, so a document's
+ * term ids are in the same order as the stems of its Lucene term vector.
+ * The file is mapped in chunks, so it may be larger than 2GB.  Reads use
+ * absolute offsets, so an instance can be shared by several threads.
+ */
+public class ForwardIndex {
+
+        public static final int MAGIC = 0x46574431;
+        public static final int VERSION = 1;
+        public static final int HEADER_SIZE = 16;
+
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+        private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+        /**
+         * The postings of one document.
+         */
+        public static class Doc {
+                /**
+                 * The largest position + 1, as in TermVector.positionsLength.
+                 */
+                public int positionsLength;
+                /**
+                 * Term ids, in increasing order.
+                 */
+                public int[] termIds;
+                /**
+                 * The tf of each term id.
+                 */
+                public int[] tfs;
+        }
+
+        private String field;
+        private MappedByteBuffer[] chunks;
+        private int numDocs;
+        private int numTerms;
+        private long ctfOffset;
+        private long dfOffset;
+        private long termOffsetsOffset;
+        private long termBytesOffset;
+        private long docOffsetsOffset;
+        private long postingsOffset;
+
+        /**
+         * Constructor.  Use open to map a file.
+         * @param field the field
+         * @param chunks the mapped file
+         */
+        private ForwardIndex(String field, MappedByteBuffer[] chunks) {
+                this.field = field;
+                this.chunks = chunks;
+                if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+                        throw new IllegalArgumentException("Not a forward index file.");
+                }
+                numDocs = getInt(8);
+                numTerms = getInt(12);
+                ctfOffset = HEADER_SIZE;
+                dfOffset = ctfOffset + 8L * numTerms;
+                termOffsetsOffset = dfOffset + 4L * numTerms;
+                termBytesOffset = termOffsetsOffset + 4L * (numTerms + 1);
+                docOffsetsOffset = termBytesOffset + getInt(termOffsetsOffset + 4L * numTerms);
+                postingsOffset = docOffsetsOffset + 8L * (numDocs + 1);
+        }
+
+        /**
+         * Memory-map a forward index file.
+         * @param field the field that the file indexes
+         * @param fileName the forward index file
+         * @return the mapped forward index
+         * @throws IOException Error reading the file
+         */
+        public static ForwardIndex open(String field, String fileName) throws IOException {
+                try (RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+                     FileChannel channel = raf.getChannel()) {
+                        long size = channel.size();
+                        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+                        for (int i = 0; i < chunks.length; i++) {
+                                long start = (long) i << CHUNK_BITS;
+                                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+                        }
+                        return new ForwardIndex(field, chunks);
+                }
+        }
+
+        private byte getByte(long pos) {
+                return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+        }
+
+        private int getInt(long pos) {
+                int offset = (int) (pos & CHUNK_MASK);
+                if (offset + 4 <= CHUNK_SIZE) {
+                        return chunks[(int) (pos >>> CHUNK_BITS)].getInt(offset);
+                }
+                int v = 0;
+                for (int i = 0; i < 4; i++) {
+                        v = (v << 8) | (getByte(pos + i) & 0xff);
+                }
+                return v;
+        }
+
+        private long getLong(long pos) {
+                int offset = (int) (pos & CHUNK_MASK);
+                if (offset + 8 <= CHUNK_SIZE) {
+                        return chunks[(int) (pos >>> CHUNK_BITS)].getLong(offset);
+                }
+                return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+        }
+
+        public String getField() {
+                return field;
+        }
+
+        public int numDocs() {
+                return numDocs;
+        }
+
+        public int numTerms() {
+                return numTerms;
+        }
+
+        /**
+         * The collection term frequency of a term.
+         * @param termId term id
+         * @return ctf
+         */
+        public long ctf(int termId) {
+                return getLong(ctfOffset + 8L * termId);
+        }
+
+        /**
+         * The document frequency of a term.
+         * @param termId term id
+         * @return df
+         */
+        public int df(int termId) {
+                return getInt(dfOffset + 4L * termId);
+        }
+
+        /**
+         * The string of a term.
+         * @param termId term id
+         * @return the term
+         */
+        public String term(int termId) {
+                int start = getInt(termOffsetsOffset + 4L * termId);
+                int end = getInt(termOffsetsOffset + 4L * (termId + 1));
+                byte[] bytes = new byte[end - start];
+                for (int i = 0; i < bytes.length; i++) {
+                        bytes[i] = getByte(termBytesOffset + start + i);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Find the id of a term by binary search of the dictionary.
+         * @param term the term
+         * @return the term id, or -1 if the term is not in the dictionary
+         */
+        public int termId(String term) {
+                byte[] key = term.getBytes(StandardCharsets.UTF_8);
+                int lo = 0;
+                int hi = numTerms - 1;
+                while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        int c = compareTerm(mid, key);
+                        if (c < 0) {
+                                lo = mid + 1;
+                        } else if (c > 0) {
+                                hi = mid - 1;
+                        } else {
+                                return mid;
+                        }
+                }
+                return -1;
+        }
+
+        /**
+         * Compare a dictionary term to a key in unsigned byte order.
+         * @param termId term id
+         * @param key UTF-8 bytes of the key
+         * @return negative, zero or positive as the term is less than, equal to or greater than the key
+         */
+        private int compareTerm(int termId, byte[] key) {
+                int start = getInt(termOffsetsOffset + 4L * termId);
+                int end = getInt(termOffsetsOffset + 4L * (termId + 1));
+                int len = end - start;
+                int n = Math.min(len, key.length);
+                for (int i = 0; i < n; i++) {
+                        int a = getByte(termBytesOffset + start + i) & 0xff;
+                        int b = key[i] & 0xff;
+                        if (a != b) {
+                                return a - b;
+                        }
+                }
+                return len - key.length;
+        }
+
+        /**
+         * Read the postings of a document.
+         * @param docid internal document id
+         * @return the document's postings; a document without the field has no terms
+         */
+        public Doc read(int docid) {
+                long pos = postingsOffset + getLong(docOffsetsOffset + 8L * docid);
+                long[] cursor = {pos};
+                Doc doc = new Doc();
+                int numStems = readVInt(cursor);
+                doc.positionsLength = readVInt(cursor);
+                doc.termIds = new int[numStems];
+                doc.tfs = new int[numStems];
+                int termId = 0;
+                for (int i = 0; i < numStems; i++) {
+                        termId += readVInt(cursor);
+                        doc.termIds[i] = termId;
+                        doc.tfs[i] = readVInt(cursor);
+                }
+                return doc;
+        }
+
+        /**
+         * Read a varint and advance the cursor.
+         * @param cursor cursor[0] is the file offset
+         * @return the value
+         */
+        private int readVInt(long[] cursor) {
+                long pos = cursor[0];
+                byte b = getByte(pos++);
+                int v = b & 0x7f;
+                for (int shift = 7; b < 0; shift += 7) {
+                        b = getByte(pos++);
+                        v |= (b & 0x7f) << shift;
+                }
+                cursor[0] = pos;
+                return v;
+        }
+}
@@ -2,278 +2,207 @@
  *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.*;
-import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Constants;
 
 /**
- *  Idx manages and provides access to Lucene indexes and auxiliary
- *  data structures.
- *  <p>
- *  Most homework assignments only require a single index.  However,
- *  several distinct indexes can be open simultaneously (e.g., for
- *  federated search).  The Idx class designates one index the
- *  <i>current</i> index.  All rtrainingQrelsequests are satisfied from the current
- *  index.  setCurrentIndex changes the current index.
- *  </p>
+ *  Idx manages the open Lucene indexes.  Each open index has a
+ *  SearchContext that provides access to the index and its auxiliary
+ *  data structures.  Request processing passes a SearchContext
+ *  explicitly, so several indexes can be searched concurrently.
  */
 public class Idx {
 
   //  --------------- Constants and variables ---------------------
 
-  /**
-   *  The Lucene index that is considered the current index.
-   */
-  public static IndexReader INDEXREADER=null;
-
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static String externalIdField = new String ("externalId");
+  private static Map<String,SearchContext> openContexts =
+    new ConcurrentHashMap<String,SearchContext> ();
 
   //  --------------- Methods ---------------------------------------
 
   /**
-   *  Get the specified attribute from the specified document.
-   *  @param attributeName Name of attribute
-   *  @param docid The internal docid in the lucene index.
-   *  @return the attribute value, or null if there is no attribute or value
-   *  @throws IOException Error accessing the Lucene index.
+   *  Get the context of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return the context
+   *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static String getAttribute (String attributeName, int docid)
-    throws IOException {
-
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
-  }
+  public static SearchContext getContext (String indexPath) {
+    SearchContext ctx = openContexts.get (indexPath);
 
-  /**
-   *  Get the number of documents that contain the specified field.
-   *  @param fieldName the field name
-   *  @return the number of documents that contain the field
-   *  @throws IOException Error accessing the Lucene index.
-   */
-  public static int getDocCount (String fieldName)
-    throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
-  }
-  
-  
-  /**
-   *  Get the document frequency (df) of a term in a field (e.g., the total
-   *  number of documents that contain the term 'apple' in title fields).
-   *  @param fieldName The field name.
-   *  @param term The term.
-   *  @return The document frequency
-   *  @throws IOException Error accessing the Lucene index.
-   */
-  public static long getDocFreq (String fieldName, String term)
-    throws IOException {
-    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+    if (ctx == null) {
+      throw new IllegalArgumentException (
+        "Index " + indexPath + " is not open.");
+    }
+    return ctx;
   }
 
-
   /**
-   *  Get the external document id for a document specified by an
-   *  internal document id.
-   *  @param iid The internal document id of the document.
-   *  @return the external document id
-   *  @throws IOException Error accessing the Lucene index.
+   *  Open a Lucene index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return the context of the index
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
    */
-  public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+  public static synchronized SearchContext open (String indexPath)
+    throws IllegalArgumentException, IOException {
+    return open (indexPath, "fs", false);
   }
 
   /**
-   *  Get the length of the specified field in the specified document.
-   *  @param fieldName Name of field to access lengths.
-   *  @param docid The internal docid in the Lucene index.
-   *  @return the length of the field, including stopword positions.
-   *  @throws IOException Error accessing the Lucene index.
+   *  Open a Lucene index with a specific directory implementation.
+   *  If the index is already open, its context is returned.
+   *  <p>
+   *  The directory types are "fs" (FSDirectory.open chooses), "mmap"
+   *  (MMapDirectory) and "nio" (NIOFSDirectory).  If the index can't
+   *  be memory-mapped (e.g., a 32-bit JVM or too little address
+   *  space), "mmap" falls back to "nio".  With preload, the pages of
+   *  memory-mapped files are read into memory when they are opened,
+   *  so the first queries do not pay for page faults.
+   *  </p>
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param directoryType "fs", "mmap" or "nio"
+   *  @param preload Preload memory-mapped files ("mmap" only).
+   *  @return the context of the index
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
    */
-  public static long getFieldLength (String fieldName, int docid)
-    throws IOException {
+  public static synchronized SearchContext open (String indexPath,
+                                                 String directoryType,
+                                                 boolean preload)
+    throws IllegalArgumentException, IOException {
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (norms != null) {
-      if (norms.advanceExact (leafDocid)) {
-	fieldLength = norms.longValue();
+    SearchContext ctx = openContexts.get (indexPath);
+
+    if (ctx == null) {
+      Path path = Paths.get (indexPath);
+      long start = System.nanoTime ();
+
+      if (directoryType.equals ("mmap")) {
+        if (Constants.JRE_IS_64BIT) {
+          MMapDirectory dir = new MMapDirectory (path);
+          dir.setPreload (preload);
+          try {
+            ctx = SearchContext.open (indexPath, dir);
+          } catch (IOException ex) {
+            dir.close ();
+            System.out.println ("Unable to memory-map " + indexPath +
+                                " (" + ex.getMessage () + "); using nio.");
+          }
+        } else {
+          System.out.println ("Memory-mapping needs a 64-bit JVM; using nio.");
+        }
+        if (ctx == null) {
+          directoryType = "nio";
+        }
       }
-    }
-	    
-    return fieldLength;
-  }
-
-  /**
-   * Get the internal document id for a document specified by its
-   * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
-   * @param externalId The external docid in the Lucene index.
-   * @return iternal docid.
-   * @throws Exception Could not read the internal document id from the index.
-   */
-  public static int getInternalDocid(String externalId)
-    throws Exception {
-
-    LeafReaderContext leafContext =
-      getLeafReaderContext (Idx.INDEXREADER, externalId);
 
-    if (leafContext == null) 
-      throw new Exception ("External id " + externalId + " not found.");
-
-    Term term = new Term (externalIdField, externalId);
-    LeafReader leafReader = leafContext.reader();
-    PostingsEnum postings = leafReader.postings (term);
+      if (ctx == null) {
+        if (directoryType.equals ("nio")) {
+          ctx = SearchContext.open (indexPath, new NIOFSDirectory (path));
+        } else if (directoryType.equals ("fs")) {
+          ctx = SearchContext.open (indexPath);
+        } else {
+          throw new IllegalArgumentException
+            ("Unknown index directory type " + directoryType +
+             "; use fs, mmap or nio.");
+        }
+      }
 
-    if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-      int internalId = leafContext.docBase + postings.docID();
-      return (internalId);
-    };
+      openContexts.put (indexPath, ctx);
+      System.out.printf ("Opened index %s (%s%s) in %d ms:  %d MB on disk, %s%n",
+                         indexPath, directoryType,
+                         (preload && directoryType.equals ("mmap")) ? ", preload" : "",
+                         (System.nanoTime () - start) / 1000000L,
+                         diskSize (path) / (1024L * 1024L),
+                         IndexWarmer.residentSize ());
+    }
 
-    throw new Exception ("External id should exist, but isn't found.");
+    return ctx;
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An external document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  The total size of the files in an index directory.
+   *  @param path The index directory.
+   *  @return the size in bytes
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, String docid)
-    throws Exception, IOException {
-
-    Term term = new Term (externalIdField, docid);
+  private static long diskSize (Path path) {
+    long size = 0;
+    File[] files = path.toFile ().listFiles ();
 
-    if (reader.docFreq (term) > 1)
-      throw new Exception ("Multiple matches for external id " + docid);
-
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      LeafReader leafReader = leafContext.reader();
-      if (leafReader.postings (term) != null) {
-	return (leafContext);
-      };
-    };
-	
-    return null;
+    if (files != null) {
+      for (File f : files) {
+        size += f.length ();
+      }
+    }
+    return size;
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An internal document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  Memory-map the static feature file for an index.  If the file
+   *  does not exist, it is built from the index first.
+   *  @param ctx The context of the index.
+   *  @param fileName A static feature file.
+   *  @throws IOException Error accessing the index or the file.
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
-
-    LeafReader leafReader = null;
+  public static void openStaticFeatures (SearchContext ctx, String fileName)
+    throws IOException {
 
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
+    IndexReader reader = ctx.getReader ();
 
-    return null;
-  }
+    if (! new File (fileName).exists ()) {
+      System.out.println ("Building static feature file " + fileName);
+      StaticFeatureStore.build (reader, fileName);
+    }
 
-  /**
-   *  Get the total number of documents in the corpus.
-   *  @return The total number of documents.
-   *  @throws IOException Error accessing the Lucene index.
-   */
-  public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
-  }
+    StaticFeatureStore staticFeatures = StaticFeatureStore.open (fileName);
 
-  /**
-   *  Get the total number of term occurrences contained in all
-   *  instances of the specified field in the corpus (e.g., add up the
-   *  lengths of every TITLE field in the corpus).
-   *  @param fieldName The field name.
-   *  @return The total number of term occurrence
-   *  @throws IOException Error accessing the Lucene index.
-   */
-  public static long getSumOfFieldLengths (String fieldName)
-    throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    if (staticFeatures.numDocs () != reader.maxDoc ()) {
+      throw new IllegalArgumentException
+        ("Static feature file " + fileName + " does not match the index.");
+    }
+    ctx.setStaticFeatures (staticFeatures);
   }
 
-
   /**
-   *  Get the collection term frequency (ctf) of a term in
-   *  a field (e.g., the total number of times the term 'apple'
-   *  occurs in title fields.
-   *  @param fieldName The field name.
-   *  @param term The term.
-   *  @return The total number of term occurrence
-   *  @throws IOException Error accessing the Lucene index.
+   *  Memory-map the forward index files (FIELD.fwd) in a directory
+   *  for an index.  If the directory does not exist, forward index
+   *  files are built for every field that has term vectors.
+   *  @param ctx The context of the index.
+   *  @param dir A forward index directory.
+   *  @throws IOException Error accessing the index or the files.
    */
-  public static long getTotalTermFreq (String fieldName, String term)
+  public static void openForwardIndex (SearchContext ctx, String dir)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
-  }
 
+    IndexReader reader = ctx.getReader ();
 
-  /**
-   *  Open a Lucene index.
-   *  @param indexPath A directory that contains a Lucene index.
-   *  @throws IllegalArgumentException Unable to open the index.
-   *  @throws IOException Error accessing the index.
-   */
-  public static void open (String indexPath)
-    throws IllegalArgumentException, IOException {
-
-    IndexReader indexReader;
-
-    //  Open the Lucene index
-
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
+    if (! new File (dir).exists ()) {
+      System.out.println ("Building forward index " + dir);
+      BuildForwardIndex.build (reader, dir,
+                               BuildForwardIndex.termVectorFields (reader));
     }
-  
-    //  Keep track of the open indexes.
-
-    openIndexReaders.put (indexPath, indexReader);
-
-    //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
+    File[] files = new File (dir).listFiles ((d, name) -> name.endsWith (".fwd"));
+    if (files == null) {
+      throw new IllegalArgumentException ("Can't read " + dir);
     }
-  }
 
-  /**
-   *  Change the current index to another open Lucene index.
-   *  @param indexPath A directory that contains an open Lucene index.
-   *  @throws IllegalArgumentException The specified index isn't open.
-   */
-  public static void setCurrentIndex (String indexPath)
-    throws IllegalArgumentException {
+    for (File f : files) {
+      String field = f.getName ().substring (0, f.getName ().length () - 4);
+      ForwardIndex forwardIndex = ForwardIndex.open (field, f.getPath ());
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-
-    if (indexReader == null) {
-      throw new IllegalArgumentException (
-        "An index must be open before it can be the current index");
+      if (forwardIndex.numDocs () != reader.maxDoc ()) {
+        throw new IllegalArgumentException
+          ("Forward index " + f + " does not match the index.");
+      }
+      ctx.putForwardIndex (field, forwardIndex);
     }
-
-    Idx.INDEXREADER = indexReader;
   }
 }
@@ -0,0 +1,173 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Warms up an index before a batch of queries by reading the postings
+ * (documents and positions) of every term in the query files, and the
+ * field lengths of their fields, so that the pages the queries need are
+ * in memory before the first query is timed.
+ * <p>
+ * The query files have the usual format (qid:query).  Terms are found
+ * with QryParser, so they are stopped and stemmed the same way as the
+ * queries will be, and term.field suffixes are respected.
+ * </p>
+ */
+public class IndexWarmer {
+
+        /**
+         * Read the postings of the terms of some query files.
+         * @param ctx the index to warm up
+         * @param queryFiles query files
+         * @throws IOException Error reading a query file or the index
+         */
+        public static void warmUp(SearchContext ctx, List<String> queryFiles) throws IOException {
+                long start = System.nanoTime();
+                Set<String> terms = new LinkedHashSet<>();
+                for (String queryFile: queryFiles) {
+                        collectTerms(queryFile, terms);
+                }
+                List<String> termList = new ArrayList<>(terms);
+                List<long[]> counts = WorkerPool.map(termList, term -> {
+                        int dot = term.lastIndexOf('.');
+                        return readPostings(ctx, term.substring(dot + 1), term.substring(0, dot));
+                });
+
+                Set<String> fields = new LinkedHashSet<>();
+                for (String term: termList) {
+                        fields.add(term.substring(term.lastIndexOf('.') + 1));
+                }
+                for (String field: fields) {
+                        readNorms(ctx, field);
+                }
+
+                long postings = 0;
+                long positions = 0;
+                for (long[] c: counts) {
+                        postings += c[0];
+                        positions += c[1];
+                }
+                System.out.printf("Warmed up %d terms in %d fields (%d postings, %d positions) in %d ms:  %s%n",
+                                  termList.size(), fields.size(), postings, positions,
+                                  (System.nanoTime() - start) / 1000000L, residentSize());
+        }
+
+        /**
+         * Find the term.field strings of the queries in a query file.
+         * @param queryFile query file
+         * @param terms receives term.field strings
+         * @throws IOException Error reading the file
+         */
+        private static void collectTerms(String queryFile, Set<String> terms) throws IOException {
+                try (BufferedReader input = new BufferedReader(new FileReader(queryFile))) {
+                        String line;
+                        while ((line = input.readLine()) != null) {
+                                int colon = line.indexOf(':');
+                                if (colon < 0) {
+                                        continue;
+                                }
+                                try {
+                                        collectTerms(QryParser.getQuery("#or(" + line.substring(colon + 1) + ")"), terms);
+                                } catch (IllegalArgumentException e) {
+                                        System.out.println("Warm-up: skipping query " + line + ": " + e.getMessage());
+                                }
+                        }
+                }
+        }
+
+        private static void collectTerms(Qry q, Set<String> terms) {
+                if (q instanceof QryIopTerm) {
+                        terms.add(q.toString());
+                        return;
+                }
+                for (Qry q_i: q.args) {
+                        collectTerms(q_i, terms);
+                }
+        }
+
+        /**
+         * Read every posting and position of a term in every segment.
+         * @param ctx the index
+         * @param field field name
+         * @param term term
+         * @return the number of postings and positions read
+         * @throws IOException Error accessing the index
+         */
+        private static long[] readPostings(SearchContext ctx, String field, String term) throws IOException {
+                long[] counts = new long[2];
+                BytesRef bytes = new BytesRef(term);
+                for (LeafReaderContext leaf: ctx.getReader().leaves()) {
+                        Terms leafTerms = leaf.reader().terms(field);
+                        if (leafTerms == null) {
+                                continue;
+                        }
+                        TermsEnum termsEnum = leafTerms.iterator();
+                        if (!termsEnum.seekExact(bytes)) {
+                                continue;
+                        }
+                        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.POSITIONS);
+                        while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                                int tf = postings.freq();
+                                for (int i = 0; i < tf; i++) {
+                                        postings.nextPosition();
+                                }
+                                counts[0]++;
+                                counts[1] += tf;
+                        }
+                }
+                return counts;
+        }
+
+        /**
+         * Read the field length of every document in a field.
+         * @param ctx the index
+         * @param field field name
+         * @throws IOException Error accessing the index
+         */
+        private static void readNorms(SearchContext ctx, String field) throws IOException {
+                for (LeafReaderContext leaf: ctx.getReader().leaves()) {
+                        NumericDocValues norms = leaf.reader().getNormValues(field);
+                        if (norms == null) {
+                                continue;
+                        }
+                        while (norms.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                                norms.longValue();
+                        }
+                }
+        }
+
+        /**
+         * Describe the resident set size of the process, which includes
+         * the pages of memory-mapped index files that are in memory.
+         * @return e.g., "resident 512 MB", or the JVM heap if the
+         *         resident set size is not available (non-Linux)
+         */
+        public static String residentSize() {
+                try {
+                        for (String line: Files.readAllLines(Paths.get("/proc/self/status"))) {
+                                if (line.startsWith("VmRSS:")) {
+                                        String[] fields = line.trim().split("\\s+");
+                                        return "resident " + (Long.parseLong(fields[1]) / 1024L) + " MB";
+                                }
+                        }
+                } catch (IOException | RuntimeException e) {
+                        // Not available on this platform.
+                }
+                Runtime runtime = Runtime.getRuntime();
+                return "heap " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB";
+        }
+}
@@ -0,0 +1,118 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The relevance ranking and intent rankings of a query for
+ * diversification, stored as dense primitive arrays indexed by candidate
+ * position.  Candidates are the documents of the relevance ranking, in
+ * its iteration order; intent i's score for candidate c is
+ * score(c, i).  A candidate that is not in an intent ranking has score
+ * 0 and isPresent(c, i) is false.
+ */
+public class IntentMatrix {
+
+        private int numCandidates;
+        private int numIntents;
+        /**
+         * The internal docid of each candidate.
+         */
+        private int[] docids;
+        /**
+         * The relevance score of each candidate.
+         */
+        private double[] relevance;
+        /**
+         * Intent scores, row-major: candidate c, intent i is at c * numIntents + i.
+         */
+        private double[] scores;
+        /**
+         * Bitmap of the (candidate, intent) pairs that have a score, in the same order as scores.
+         */
+        private long[] present;
+        /**
+         * The sum of each candidate's intent scores, added in intent order.
+         */
+        private double[] rowSums;
+
+        /**
+         * Constructor.
+         * @param documentRanking the relevance ranking followed by one ranking per intent, docid -> score
+         * @param numIntents the number of intents
+         */
+        public IntentMatrix(List<Map<Integer, Double>> documentRanking, int numIntents) {
+                Map<Integer, Double> initialRanking = documentRanking.get(0);
+                this.numCandidates = initialRanking.size();
+                this.numIntents = numIntents;
+                this.docids = new int[numCandidates];
+                this.relevance = new double[numCandidates];
+                this.scores = new double[numCandidates * numIntents];
+                this.present = new long[(numCandidates * numIntents + 63) >>> 6];
+                this.rowSums = new double[numCandidates];
+
+                int c = 0;
+                for (Map.Entry<Integer, Double> e: initialRanking.entrySet()) {
+                        docids[c] = e.getKey();
+                        relevance[c] = e.getValue();
+                        for (int i = 0; i < numIntents; i++) {
+                                Double score = documentRanking.get(i + 1).get(docids[c]);
+                                if (score != null) {
+                                        int cell = c * numIntents + i;
+                                        scores[cell] = score;
+                                        present[cell >>> 6] |= 1L << cell;
+                                }
+                                rowSums[c] += scores[c * numIntents + i];
+                        }
+                        c++;
+                }
+        }
+
+        public int numCandidates() {
+                return numCandidates;
+        }
+
+        public int numIntents() {
+                return numIntents;
+        }
+
+        public int docid(int c) {
+                return docids[c];
+        }
+
+        public double relevance(int c) {
+                return relevance[c];
+        }
+
+        public double score(int c, int i) {
+                return scores[c * numIntents + i];
+        }
+
+        public boolean isPresent(int c, int i) {
+                int cell = c * numIntents + i;
+                return (present[cell >>> 6] & (1L << cell)) != 0;
+        }
+
+        /**
+         * The sum of a candidate's intent scores.
+         * @param c candidate
+         * @return the row sum
+         */
+        public double rowSum(int c) {
+                return rowSums[c];
+        }
+
+        /**
+         * The relevance scores, indexed by candidate.
+         * @return relevance scores
+         */
+        public double[] relevance() {
+                return relevance;
+        }
+
+        /**
+         * The intent scores, row-major by candidate.
+         * @return intent scores
+         */
+        public double[] scores() {
+                return scores;
+        }
+}
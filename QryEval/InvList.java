@@ -99,11 +99,36 @@ public class InvList {
 
   /**
    *  Get an inverted list from the index.
+   *  @param ctx The context of the index to read.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
-  public InvList(String termString, String fieldString) throws IOException {
+  public InvList(SearchContext ctx, String termString, String fieldString) throws IOException {
+
+    QryEvents.PostingListLoaded event = new QryEvents.PostingListLoaded ();
+    event.begin ();
+
+    this.readPostings (ctx, termString, fieldString);
+
+    if (event.shouldCommit ()) {
+      event.term = termString;
+      event.field = fieldString;
+      event.df = this.df;
+      event.ctf = this.ctf;
+      event.bytes = 48L * this.df + 4L * this.ctf;	// DocPosting, int[], slot
+      event.commit ();
+    }
+  }
+
+  /**
+   *  Read the postings of a term from the index.
+   *  @param ctx The context of the index to read.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readPostings (SearchContext ctx, String termString, String fieldString) throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -114,13 +139,13 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (ctx.getReader().docFreq(term) < 1)
       return;
 
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
 
-    for (LeafReaderContext context : Idx.INDEXREADER.leaves()) {
+    for (LeafReaderContext context : ctx.getReader().leaves()) {
 
       PostingsEnum postings =
 	context.reader().postings (term, PostingsEnum.POSITIONS);
@@ -0,0 +1,78 @@
+import java.io.IOException;
+
+/**
+ * A learning to rank feature: its id (feature ids start with 1), a short
+ * name for profiles, the data it depends on, and how to compute it.
+ * <p>
+ * Dependencies are declared so that LtrFeatureExtractor can fetch each
+ * one before the features run, once, and only for the features that are
+ * computed:
+ * </p>
+ * <ul>
+ *   <li>term vectors of document fields (per document),</li>
+ *   <li>static document attributes such as rawUrl (per document, in one
+ *       read of its stored fields); a feature that reads the static
+ *       feature store instead doesn't declare them,</li>
+ *   <li>collection statistics of the term vector fields: field
+ *       statistics (per run) and query term ctf (per query).</li>
+ * </ul>
+ */
+public class LtrFeature {
+
+        /**
+         * Computes a feature value from the dependencies of one document.
+         */
+        public interface Scorer {
+                double score(LtrFeatureExtractor.Context c) throws IOException;
+        }
+
+        private int id;
+        private String name;
+        private String[] termVectorFields;
+        private String[] attributes;
+        private boolean usesCollectionStats;
+        private Scorer scorer;
+
+        /**
+         * Constructor.
+         * @param id feature id
+         * @param name short description
+         * @param termVectorFields fields whose term vectors the feature reads
+         * @param attributes static document attributes the feature reads
+         * @param usesCollectionStats true if the feature reads field or term statistics of termVectorFields
+         * @param scorer computes the feature
+         */
+        public LtrFeature(int id, String name, String[] termVectorFields, String[] attributes,
+                          boolean usesCollectionStats, Scorer scorer) {
+                this.id = id;
+                this.name = name;
+                this.termVectorFields = termVectorFields;
+                this.attributes = attributes;
+                this.usesCollectionStats = usesCollectionStats;
+                this.scorer = scorer;
+        }
+
+        public int getId() {
+                return id;
+        }
+
+        public String getName() {
+                return name;
+        }
+
+        public String[] getTermVectorFields() {
+                return termVectorFields;
+        }
+
+        public String[] getAttributes() {
+                return attributes;
+        }
+
+        public boolean usesCollectionStats() {
+                return usesCollectionStats;
+        }
+
+        public double score(LtrFeatureExtractor.Context c) throws IOException {
+                return scorer.score(c);
+        }
+}
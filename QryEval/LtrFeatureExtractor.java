@@ -0,0 +1,353 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of learning to rank features and the extractor that runs
+ * them.  The extractor fetches the dependencies that the computed
+ * features declare before the features run: field statistics once per
+ * run, the collection term frequencies of the query terms once per
+ * query, and the term vectors and attributes of each document in one
+ * pass.  Features read them from a Context.  Disabled features are not
+ * run and their dependencies are not fetched.
+ * <p>
+ * The registry and the field statistics belong to one index.  The state
+ * of a query is in the Context that startQuery returns, so one extractor
+ * can serve concurrent queries, each with its own request context on
+ * that index.
+ * </p>
+ * <p>
+ * The extractor records the time and number of calls of each feature and
+ * each dependency fetch; printProfile reports them.
+ * </p>
+ */
+public class LtrFeatureExtractor {
+
+        /**
+         * Collection statistics of a field.
+         */
+        public static class FieldStats {
+                public final long numDocs;
+                public final long sumOfFieldLengths;
+                public final int docCount;
+                public final double avgFieldLength;
+
+                private FieldStats(SearchContext ctx, String field) throws IOException {
+                        numDocs = ctx.getNumDocs();
+                        sumOfFieldLengths = ctx.getSumOfFieldLengths(field);
+                        docCount = ctx.getDocCount(field);
+                        avgFieldLength = (double) sumOfFieldLengths / (double) docCount;
+                }
+        }
+
+        /**
+         * The dependencies of one <q, d> pair: term vectors, field lengths
+         * and attributes of the current document, term statistics of the
+         * current query and field statistics of the run.  A dependency
+         * that the computed features did not declare is an error.
+         */
+        public class Context {
+                private SearchContext ctx;
+                private int docid;
+                private String[] terms;
+                private Map<String, TermVector> termVectors = new HashMap<>();
+                private Map<String, String> attributes = new HashMap<>();
+                private Map<String, long[]> totalTermFreqs = new HashMap<>();
+
+                public int getDocid() {
+                        return docid;
+                }
+
+                public String[] getTerms() {
+                        return terms;
+                }
+
+                /**
+                 * Get the term vector of a field of the current document.
+                 * @param field field name
+                 * @return the term vector
+                 */
+                public TermVector termVector(String field) {
+                        TermVector tv = termVectors.get(field);
+                        if (tv == null) {
+                                throw undeclared("termVector", field);
+                        }
+                        return tv;
+                }
+
+                /**
+                 * Get the length of a field of the current document; the
+                 * field's term vector must be declared.
+                 * @param field field name
+                 * @return the length of the field, including stopword positions
+                 * @throws IOException Error accessing the Lucene index
+                 */
+                public long fieldLength(String field) throws IOException {
+                        if (!termVectors.containsKey(field)) {
+                                throw undeclared("fieldLength", field);
+                        }
+                        return ctx.getFieldLength(field, docid);
+                }
+
+                /**
+                 * Get an attribute of the current document.
+                 * @param name attribute name
+                 * @return the attribute value, or null
+                 */
+                public String attribute(String name) {
+                        if (!attributes.containsKey(name)) {
+                                throw undeclared("attribute", name);
+                        }
+                        return attributes.get(name);
+                }
+
+                /**
+                 * Get the collection statistics of a field.
+                 * @param field field name
+                 * @return the field statistics
+                 */
+                public FieldStats fieldStats(String field) {
+                        FieldStats stats = fieldStats.get(field);
+                        if (stats == null) {
+                                throw undeclared("fieldStats", field);
+                        }
+                        return stats;
+                }
+
+                /**
+                 * Get the collection term frequency of a query term in a field.
+                 * @param field field name
+                 * @param i index of the term in the query
+                 * @return the collection term frequency
+                 */
+                public long totalTermFreq(String field, int i) {
+                        long[] ctf = totalTermFreqs.get(field);
+                        if (ctf == null) {
+                                throw undeclared("totalTermFreq", field);
+                        }
+                        return ctf[i];
+                }
+
+                private IllegalStateException undeclared(String dependency, String name) {
+                        return new IllegalStateException("LTR feature dependency " + dependency + "(" + name +
+                                                         ") was not declared by the computed features.");
+                }
+        }
+
+        /**
+         * Registered features, indexed by feature id - 1.
+         */
+        private LtrFeature[] features;
+        private boolean[] enabled;
+        /**
+         * The index that the features were registered for.
+         */
+        private SearchContext index;
+        /**
+         * Dependencies declared by the enabled features and by all
+         * features: term vector fields, attributes, and the fields whose
+         * collection statistics are read.
+         */
+        private Dependencies enabledDependencies;
+        private Dependencies allDependencies;
+        private Map<String, FieldStats> fieldStats = new ConcurrentHashMap<>();
+
+        private long[] featureNanos;
+        private int[] featureCalls;
+        /**
+         * Dependency name -> {calls, nanoseconds}.
+         */
+        private Map<String, long[]> dependencyStats = new LinkedHashMap<>();
+
+        /**
+         * The union of the dependencies of a set of features.
+         */
+        private static class Dependencies {
+                private String[] termVectorFields;
+                private String[] attributes;
+                private String[] statsFields;
+        }
+
+        /**
+         * Constructor.
+         * @param index the index that the features are registered for
+         * @param registered the features; their ids must be 1..registered.size()
+         * @param disabled ids of disabled features
+         */
+        public LtrFeatureExtractor(SearchContext index, List<LtrFeature> registered, List<Integer> disabled) {
+                this.index = index;
+                features = new LtrFeature[registered.size()];
+                for (LtrFeature f: registered) {
+                        if (f.getId() < 1 || f.getId() > features.length || features[f.getId() - 1] != null) {
+                                throw new IllegalArgumentException("Bad or duplicate LTR feature id: " + f.getId());
+                        }
+                        features[f.getId() - 1] = f;
+                }
+                enabled = new boolean[features.length];
+                Arrays.fill(enabled, true);
+                for (int id: disabled) {
+                        if (id >= 1 && id <= features.length) {
+                                enabled[id - 1] = false;
+                        }
+                }
+                enabledDependencies = declaredDependencies(true);
+                allDependencies = declaredDependencies(false);
+                featureNanos = new long[features.length];
+                featureCalls = new int[features.length];
+        }
+
+        private Dependencies declaredDependencies(boolean enabledOnly) {
+                Set<String> fields = new LinkedHashSet<>();
+                Set<String> attributes = new LinkedHashSet<>();
+                Set<String> statsFields = new LinkedHashSet<>();
+                for (int i = 0; i < features.length; i++) {
+                        if (!enabledOnly || enabled[i]) {
+                                fields.addAll(Arrays.asList(features[i].getTermVectorFields()));
+                                attributes.addAll(Arrays.asList(features[i].getAttributes()));
+                                if (features[i].usesCollectionStats()) {
+                                        statsFields.addAll(Arrays.asList(features[i].getTermVectorFields()));
+                                }
+                        }
+                }
+                Dependencies d = new Dependencies();
+                d.termVectorFields = fields.toArray(new String[0]);
+                d.attributes = attributes.toArray(new String[0]);
+                d.statsFields = statsFields.toArray(new String[0]);
+                return d;
+        }
+
+        public int numFeatures() {
+                return features.length;
+        }
+
+        public boolean isEnabled(int id) {
+                return enabled[id - 1];
+        }
+
+        /**
+         * Start extracting features for a query.
+         * @param ctx the request context; it must be on the extractor's index
+         * @param terms query terms
+         * @return the query's context, for extract
+         */
+        public Context startQuery(SearchContext ctx, String[] terms) {
+                if (ctx.getReader() != index.getReader()) {
+                        throw new IllegalArgumentException("The LTR features were registered for index " +
+                                                           index.getIndexPath() + ", not " + ctx.getIndexPath());
+                }
+                Context context = new Context();
+                context.ctx = ctx;
+                context.terms = terms;
+                return context;
+        }
+
+        /**
+         * Compute the features of a document for a query.
+         * @param context the query's context, from startQuery
+         * @param docid internal document id
+         * @param values receives the score of feature n in values[n-1]; features that are not computed are 0
+         * @param computeAll compute disabled features too
+         * @throws IOException Error accessing the Lucene index
+         */
+        public void extract(Context context, int docid, double[] values, boolean computeAll) throws IOException {
+                Arrays.fill(values, 0.0);
+                Dependencies d = computeAll ? allDependencies : enabledDependencies;
+                SearchContext ctx = context.ctx;
+                fetchStats(context, d.statsFields);
+                context.docid = docid;
+                context.termVectors.clear();
+                context.attributes.clear();
+
+                for (String field: d.termVectorFields) {
+                        long start = System.nanoTime();
+                        context.termVectors.put(field, new TermVector(ctx, docid, field));
+                        recordDependency("termVector(" + field + ")", System.nanoTime() - start);
+                }
+                if (d.attributes.length > 0) {
+                        long start = System.nanoTime();
+                        String[] attributeValues = ctx.getAttributes(d.attributes, docid);
+                        for (int i = 0; i < d.attributes.length; i++) {
+                                context.attributes.put(d.attributes[i], attributeValues[i]);
+                        }
+                        recordDependency("attributes" + Arrays.toString(d.attributes), System.nanoTime() - start);
+                }
+                for (int i = 0; i < features.length; i++) {
+                        if (computeAll || enabled[i]) {
+                                long start = System.nanoTime();
+                                values[i] = features[i].score(context);
+                                recordFeature(i, System.nanoTime() - start);
+                        }
+                }
+        }
+
+        /**
+         * Fetch the field statistics of the fields, if they are not
+         * cached for the run, and the collection term frequencies of the
+         * query terms in the fields, if they are not cached for the query.
+         */
+        private void fetchStats(Context context, String[] fields) throws IOException {
+                for (String field: fields) {
+                        if (!fieldStats.containsKey(field)) {
+                                long start = System.nanoTime();
+                                fieldStats.put(field, new FieldStats(index, field));
+                                recordDependency("fieldStats(" + field + ")", System.nanoTime() - start);
+                        }
+                        if (!context.totalTermFreqs.containsKey(field)) {
+                                long start = System.nanoTime();
+                                context.totalTermFreqs.put(field, context.ctx.getTotalTermFreqs(field, context.terms));
+                                recordDependency("totalTermFreqs(" + field + ")", System.nanoTime() - start);
+                        }
+                }
+        }
+
+        private synchronized void recordFeature(int i, long nanos) {
+                featureNanos[i] += nanos;
+                featureCalls[i]++;
+        }
+
+        private synchronized void recordDependency(String name, long nanos) {
+                long[] stats = dependencyStats.get(name);
+                if (stats == null) {
+                        stats = new long[2];
+                        dependencyStats.put(name, stats);
+                }
+                stats[0]++;
+                stats[1] += nanos;
+        }
+
+        /**
+         * Print the number of calls and the time spent in each feature and
+         * dependency fetch.  Feature times do not include the time to fetch
+         * their dependencies.
+         */
+        public synchronized void printProfile() {
+                List<String> lines = new ArrayList<>();
+                for (int i = 0; i < features.length; i++) {
+                        if (featureCalls[i] > 0) {
+                                lines.add(profileLine("f" + (i + 1) + " " + features[i].getName(), featureCalls[i], featureNanos[i]));
+                        }
+                }
+                for (Map.Entry<String, long[]> e: dependencyStats.entrySet()) {
+                        lines.add(profileLine(e.getKey(), e.getValue()[0], e.getValue()[1]));
+                }
+                if (lines.isEmpty()) {
+                        return;
+                }
+                System.out.println("LTR feature profile:");
+                System.out.println(String.format("  %-32s %10s %12s %10s", "", "calls", "total ms", "us/call"));
+                for (String line: lines) {
+                        System.out.println(line);
+                }
+        }
+
+        private static String profileLine(String name, long calls, long nanos) {
+                return String.format("  %-32s %10d %12.1f %10.2f", name, calls, nanos / 1e6, nanos / 1e3 / calls);
+        }
+}
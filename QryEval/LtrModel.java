@@ -0,0 +1,141 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import ciir.umass.edu.learning.DenseDataPoint;
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.learning.RankerFactory;
+
+/**
+ * A trained learning to rank model, loaded once and applied in this
+ * process, so that re-ranking a query does not start the toolkit or
+ * write and read feature and score files.
+ * <p>
+ * RankLib models are loaded with RankLib's RankerFactory and scored with
+ * Ranker.eval on the same text feature vectors that the toolkit would
+ * read.  SVMRank models must use the linear kernel; the score is the
+ * weighted sum of the support vectors minus the threshold, rounded to 8
+ * significant digits as svm_rank_classify writes it.
+ * </p>
+ */
+public class LtrModel {
+
+        /**
+         * RankLib ranker, or null for an SVMRank model.
+         */
+        private Ranker ranker;
+        /**
+         * SVMRank weights by feature id, and threshold.
+         */
+        private double[] weights;
+        private double threshold;
+
+        private LtrModel() {
+        }
+
+        /**
+         * Load a trained model.
+         * @param toolkit "SVMRank" or "RankLib"
+         * @param modelFile the model file written by the toolkit
+         * @return the model
+         * @throws IOException Error reading the model file
+         */
+        public static LtrModel load(String toolkit, String modelFile) throws IOException {
+                LtrModel model = new LtrModel();
+                if (toolkit.equals("RankLib")) {
+                        model.ranker = new RankerFactory().loadRankerFromFile(modelFile);
+                        if (model.ranker == null) {
+                                throw new IllegalArgumentException("Can't load RankLib model " + modelFile);
+                        }
+                } else if (toolkit.equals("SVMRank")) {
+                        model.loadSVMRank(modelFile);
+                } else {
+                        throw new IllegalArgumentException("Unknown ltr:toolkit " + toolkit);
+                }
+                return model;
+        }
+
+        /**
+         * Read a linear SVMRank model: the header lines end with
+         * "# comment", the threshold line is "b # threshold b ...", and
+         * each following line is "alpha*y id:value ... #".
+         * @param modelFile the model file
+         * @throws IOException Error reading the model file
+         */
+        private void loadSVMRank(String modelFile) throws IOException {
+                List<String> lines = new ArrayList<>();
+                try (BufferedReader input = new BufferedReader(new FileReader(modelFile))) {
+                        String line;
+                        while ((line = input.readLine()) != null) {
+                                lines.add(line);
+                        }
+                }
+                int i = 0;
+                while (i < lines.size() && !lines.get(i).contains("# threshold b")) {
+                        if (lines.get(i).contains("# kernel type") && !lines.get(i).trim().startsWith("0 ")) {
+                                throw new IllegalArgumentException("Only linear SVMRank models can be applied in-process: " + modelFile);
+                        }
+                        i++;
+                }
+                if (i == lines.size()) {
+                        throw new IllegalArgumentException("Not an SVMRank model: " + modelFile);
+                }
+                threshold = Double.parseDouble(lines.get(i).trim().split("\\s+")[0]);
+
+                weights = new double[0];
+                for (i++; i < lines.size(); i++) {
+                        String sv = lines.get(i);
+                        int comment = sv.indexOf('#');
+                        String[] tokens = ((comment < 0) ? sv : sv.substring(0, comment)).trim().split("\\s+");
+                        if (tokens.length == 0 || tokens[0].isEmpty()) {
+                                continue;
+                        }
+                        double alpha = Double.parseDouble(tokens[0]);
+                        for (int t = 1; t < tokens.length; t++) {
+                                int colon = tokens[t].indexOf(':');
+                                int id = Integer.parseInt(tokens[t].substring(0, colon));
+                                if (id >= weights.length) {
+                                        weights = Arrays.copyOf(weights, id + 1);
+                                }
+                                weights[id] += alpha * Double.parseDouble(tokens[t].substring(colon + 1));
+                        }
+                }
+        }
+
+        /**
+         * Score one row of a feature matrix.
+         * @param m the feature vectors of one query
+         * @param row the row
+         * @param columns the columns to use (the enabled features), in order
+         * @return the model's score
+         */
+        public double score(FeatureMatrix m, int row, int[] columns) {
+                int[] ids = m.getFeatureIds();
+                if (ranker == null) {
+                        double dist = -threshold;
+                        for (int j: columns) {
+                                if (ids[j] < weights.length) {
+                                        dist += weights[ids[j]] * m.get(row, j);
+                                }
+                        }
+                        return Double.parseDouble(String.format(Locale.ROOT, "%.8g", dist));
+                }
+
+                //  The same text that FeatureVectorWriter writes and RankLib reads.
+
+                StringBuilder line = new StringBuilder(512);
+                line.append(m.getLabel(row)).append(" qid:").append(m.getQid()).append(' ');
+                for (int j: columns) {
+                        line.append(ids[j]).append(':').append(m.get(row, j)).append(' ');
+                }
+                line.append(" # ").append(m.getExternalId(row));
+                DenseDataPoint p = new DenseDataPoint(line.toString());
+                synchronized (ranker) {
+                        return ranker.eval(p);
+                }
+        }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a batch of related queries (e.g., a query and its intents,
+ * or several expansion queries) together.  The inverted list of each
+ * distinct term.field in the batch is read from the index once, in
+ * parallel on the worker pool, and shared by every TERM operator that
+ * uses it.  The queries are then evaluated in one document-at-a-time
+ * pass over the union of their matches, and each keeps its own top k.
+ * <p>
+ * The results are the same as evaluating each query with
+ * QryEval.processQuery and truncating it to k.
+ * </p>
+ */
+public class MultiQueryEvaluator {
+
+        /**
+         * Evaluate a batch of queries.
+         * @param ctx the context to evaluate the queries in
+         * @param queries query trees; a null query has a null result
+         * @param model the retrieval model
+         * @param k the number of results to keep per query
+         * @return the results of each query, in the order of the queries
+         * @throws IOException Error accessing the Lucene index
+         */
+        public static List<ScoreList> evaluate(SearchContext ctx, List<Qry> queries, RetrievalModel model, int k) throws IOException {
+                int n = queries.size();
+
+                //  Read each distinct term's inverted list once.
+
+                Map<String, List<QryIopTerm>> terms = new LinkedHashMap<>();
+                for (Qry q: queries) {
+                        if (q != null) {
+                                System.out.println("    --> " + q);
+                                collectTerms(q, terms);
+                        }
+                }
+                List<List<QryIopTerm>> groups = new ArrayList<>(terms.values());
+                WorkerPool.map(groups, group -> {
+                        group.get(0).initialize(ctx, model);
+                        group.get(0).reuseInvertedList();
+                        return group;
+                });
+                for (List<QryIopTerm> group: groups) {
+                        for (int i = 1; i < group.size(); i++) {
+                                group.get(i).shareInvertedList(group.get(0));
+                        }
+                }
+
+                //  Evaluate all of the queries in one pass over the union of their matches.
+
+                TopKCollector[] topK = new TopKCollector[n];
+                boolean[] active = new boolean[n];
+                for (int j = 0; j < n; j++) {
+                        Qry q = queries.get(j);
+                        if (q != null) {
+                                topK[j] = new TopKCollector(ctx, k);
+                                if (q.args.size() > 0) {		// Ignore empty queries
+                                        q.initialize(ctx, model);
+                                        active[j] = q.docIteratorHasMatch(model);
+                                }
+                        }
+                }
+                while (true) {
+                        int docid = Integer.MAX_VALUE;
+                        for (int j = 0; j < n; j++) {
+                                if (active[j]) {
+                                        docid = Math.min(docid, queries.get(j).docIteratorGetMatch());
+                                }
+                        }
+                        if (docid == Integer.MAX_VALUE) {
+                                break;
+                        }
+                        for (int j = 0; j < n; j++) {
+                                Qry q = queries.get(j);
+                                if (active[j] && q.docIteratorGetMatch() == docid) {
+                                        topK[j].collect(docid, ((QrySop) q).getScore(model));
+                                        q.docIteratorAdvancePast(docid);
+                                        active[j] = q.docIteratorHasMatch(model);
+                                }
+                        }
+                }
+
+                List<ScoreList> results = new ArrayList<>(n);
+                for (int j = 0; j < n; j++) {
+                        results.add((topK[j] != null) ? topK[j].getScoreList() : null);
+                }
+                return results;
+        }
+
+        /**
+         * Find the TERM operators of a query tree that do not reuse an
+         * inverted list already.
+         * @param q query tree
+         * @param terms receives term.field -> TERM operators
+         */
+        private static void collectTerms(Qry q, Map<String, List<QryIopTerm>> terms) {
+                if (q instanceof QryIopTerm) {
+                        if (!((QryIopTerm) q).reusesInvertedList()) {
+                                List<QryIopTerm> group = terms.get(q.toString());
+                                if (group == null) {
+                                        group = new ArrayList<>();
+                                        terms.put(q.toString(), group);
+                                }
+                                group.add((QryIopTerm) q);
+                        }
+                        return;
+                }
+                for (Qry q_i: q.args) {
+                        collectTerms(q_i, terms);
+                }
+        }
+}
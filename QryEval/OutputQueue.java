@@ -0,0 +1,215 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded queue of writes to one output file, done in order by one
+ * writer thread, so that the threads that produce results do not wait
+ * for file I/O.
+ * <p>
+ * Each write has a sequence number.  submit(write) takes the next one;
+ * a producer whose results may finish out of order calls reserve in
+ * input order and submit(sequence, write) when each result is ready.
+ * Writes are done in sequence order no matter when they are submitted.
+ * At most capacity writes may be reserved and not yet done; reserve
+ * blocks until the writer catches up.
+ * </p>
+ * <p>
+ * The first error from a write is thrown by the next reserve, submit,
+ * drain or close; later writes are discarded.
+ * </p>
+ */
+public class OutputQueue implements Closeable {
+
+        /**
+         * A write to the output file.
+         */
+        public interface Write {
+                void run() throws IOException;
+        }
+
+        private static int defaultCapacity = 64;
+
+        private final Semaphore permits;
+        private final Thread writer;
+        /**
+         * Submitted writes that are not done yet, by sequence number.
+         */
+        private final Map<Long, Write> pending = new HashMap<>();
+        private long nextSequence = 0;
+        private long nextWrite = 0;
+        private boolean closed = false;
+        private IOException error = null;
+
+        /**
+         * Set the capacity of queues created with the default capacity
+         * (parameter "outputQueueCapacity").
+         * @param n capacity
+         */
+        public static void setDefaultCapacity(int n) {
+                if (n < 1) {
+                        throw new IllegalArgumentException("outputQueueCapacity must be at least 1: " + n);
+                }
+                defaultCapacity = n;
+        }
+
+        /**
+         * Start a queue with the default capacity.
+         * @param name the name of the writer thread
+         */
+        public OutputQueue(String name) {
+                this(name, defaultCapacity);
+        }
+
+        /**
+         * Start a queue.
+         * @param name the name of the writer thread
+         * @param capacity the maximum number of writes that are reserved and not done
+         */
+        public OutputQueue(String name, int capacity) {
+                permits = new Semaphore(capacity);
+                writer = new Thread(this::writeLoop, name);
+                writer.setDaemon(true);
+                writer.start();
+        }
+
+        /**
+         * Reserve the next sequence number, waiting if the queue is full.
+         * @return the sequence number
+         * @throws IOException an earlier write failed, or the wait was interrupted
+         */
+        public long reserve() throws IOException {
+                try {
+                        permits.acquire();
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the output queue.", e);
+                }
+                synchronized (this) {
+                        if (closed) {
+                                permits.release();
+                                throw new IllegalStateException("The output queue is closed.");
+                        }
+                        if (error != null) {
+                                permits.release();
+                                checkError();
+                        }
+                        return nextSequence++;
+                }
+        }
+
+        /**
+         * Submit a write with a reserved sequence number.
+         * @param sequence a sequence number from reserve
+         * @param write the write
+         * @throws IOException an earlier write failed
+         */
+        public synchronized void submit(long sequence, Write write) throws IOException {
+                if (sequence < nextWrite || sequence >= nextSequence || pending.containsKey(sequence)) {
+                        throw new IllegalArgumentException("Sequence number not reserved: " + sequence);
+                }
+                pending.put(sequence, write);
+                notifyAll();
+                checkError();
+        }
+
+        /**
+         * Submit a write after the writes that are already reserved.
+         * @param write the write
+         * @throws IOException an earlier write failed, or the wait was interrupted
+         */
+        public void submit(Write write) throws IOException {
+                submit(reserve(), write);
+        }
+
+        /**
+         * Wait until every reserved write is done, e.g., before another
+         * program reads the file.  Every reserved sequence number must be
+         * submitted.
+         * @throws IOException a write failed, or the wait was interrupted
+         */
+        public synchronized void drain() throws IOException {
+                while (nextWrite < nextSequence && error == null) {
+                        try {
+                                wait();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new IOException("Interrupted while draining the output queue.", e);
+                        }
+                }
+                checkError();
+        }
+
+        /**
+         * Finish the submitted writes and stop the writer thread.  If a
+         * reserved sequence number was never submitted (e.g., its query
+         * failed), the writes after it are discarded.  The output file is
+         * not closed.
+         * @throws IOException a write failed, or the wait was interrupted
+         */
+        @Override
+        public void close() throws IOException {
+                synchronized (this) {
+                        closed = true;
+                        notifyAll();
+                }
+                try {
+                        writer.join();
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while closing the output queue.", e);
+                }
+                synchronized (this) {
+                        checkError();
+                }
+        }
+
+        private void checkError() throws IOException {
+                if (error != null) {
+                        throw new IOException("Error writing output.", error);
+                }
+        }
+
+        /**
+         * The writer thread: do the writes in sequence order until the
+         * queue is closed and the next write is not submitted.
+         */
+        private void writeLoop() {
+                while (true) {
+                        Write write;
+                        synchronized (this) {
+                                while (!pending.containsKey(nextWrite) && !closed) {
+                                        try {
+                                                wait();
+                                        } catch (InterruptedException e) {
+                                                return;
+                                        }
+                                }
+                                write = pending.remove(nextWrite);
+                                if (write == null) {
+                                        return;
+                                }
+                        }
+                        IOException e = null;
+                        try {
+                                if (error == null) {
+                                        write.run();
+                                }
+                        } catch (IOException ex) {
+                                e = ex;
+                        } catch (RuntimeException ex) {
+                                e = new IOException(ex);
+                        }
+                        synchronized (this) {
+                                if (e != null && error == null) {
+                                        error = e;
+                                }
+                                nextWrite++;
+                                notifyAll();
+                        }
+                        permits.release();
+                }
+        }
+}
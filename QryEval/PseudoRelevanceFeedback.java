@@ -4,8 +4,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -81,38 +85,6 @@ public class PseudoRelevanceFeedback {
                 }
         }
 
-        /**
-         * Scoring p(t|d)
-         * @param tv
-         * @param docid
-         * @param termCtf
-         * @param termLen
-         * @param term
-         * @return score for each potential expansion term
-         * @throws IOException
-         */
-        private double getTermScore(TermVector tv, int docid, double termCtf, double termLen, String term) throws IOException {
-                double score = 0.0;
-                double pMLE = 0.0;
-                double tf = 0.0;
-                int termIndex = tv.indexOfStem(term);
-                if (termIndex >= 0) {
-                        tf = tv.stemFreq(termIndex);
-                }
-                double docLen = Idx.getFieldLength("body", docid);
-
-                if (fbmu != 0.0) {
-                        pMLE = termCtf / termLen;
-                }
-                if (tf == 0.0 && fbmu == 0.0) {
-                        return 0.0;
-                } else {
-                        score = (tf + fbmu * pMLE) / (fbmu + docLen);
-                }
-                return score;
-        }
-
-
         /**
          * Valid whether each character in a string is an ASCII character or not.
          * @param v string needed to be inspected
@@ -124,12 +96,26 @@ public class PseudoRelevanceFeedback {
 
 
         /**
-         * Use the top terms to create an expansion query Q(learned).
+         * Select the top fbterms expansion terms from the top fbdocs documents.
+         * <p>
+         * The score of a candidate term t is
+         * </p>
+         * <pre>
+         *   weight_t * sum_d  s_d * (tf_t,d + mu * pMLE_t) / (mu + len_d)
+         *   = weight_t * (sum_{d contains t} tf_t,d * c_d  +  mu * pMLE_t * A)
+         * </pre>
+         * <p>
+         * where c_d = s_d / (mu + len_d) and A = sum_d c_d.  The first sum
+         * is accumulated in one pass over each feedback document's stems;
+         * the smoothing part, which every feedback document contributes,
+         * is added from A.  The cost is linear in the total number of stems.
+         * </p>
+         * @param ctx the request context
          * @param r original scoreList
-         * @return an expansion query
+         * @return the top terms
          * @throws IOException
          */
-        public String createLearnedQuery(ScoreList r) throws IOException {
+        public PriorityQueue<Term> selectExpansionTerms(SearchContext ctx, ScoreList r) throws IOException {
                 int docSize = Math.min(fbdocs, r.size());
                 // store docid and corresponding index
                 Map<Integer, Integer> docidIdxMap = new HashMap<>(docSize);
@@ -137,81 +123,172 @@ public class PseudoRelevanceFeedback {
                         docidIdxMap.put(r.getDocid(i), i);
                 }
 
-                // store document structure by using forward index: get structure by docid
-                List<TermVector> forwardList = new ArrayList<>();
-                // a set contains all document id
-                Set<Integer> docidSet = new HashSet<>();
-                docidSet = docidIdxMap.keySet();
-                for (Integer i: docidSet) {
-                        TermVector tv = new TermVector(i, "body");
-                        forwardList.add(tv);
+                // store document structure by using forward index: get structure by docid;
+                // the feedback documents' term vectors are decoded in parallel
+                List<Integer> docids = new ArrayList<>(docidIdxMap.keySet());
+                List<TermVector> forwardList = WorkerPool.map(docids, docid -> ctx.getTermVector(docid, "body"));
+                int maxTerms = 0;
+                for (TermVector tv: forwardList) {
+                        maxTerms += Math.max(tv.stemsLength() - 1, 0);
                 }
 
-                // a set to collect all terms
+                // candidate terms get ids in order of first occurrence; rejected terms map to -1
+                Map<String, Integer> termIds = new HashMap<>(maxTerms * 2);
+                // a set to collect all candidate terms
                 Set<String> allTerms = new HashSet<>();
-                // map to store ctf with term
-                Map<String, Double> ctfMap = new HashMap<>();
-                // put terms and ctf into map
+                List<String> idTerms = new ArrayList<>();
+                // sum over the feedback documents that contain the term of tf * c_d
+                double[] tfSum = new double[maxTerms];
+                // sum over all feedback documents of c_d
+                double smoothingSum = 0.0;
+
                 for (TermVector tv: forwardList) {
+                        double docLen = ctx.getFieldLength("body", tv.docId);
+                        if (fbmu + docLen == 0.0) {
+                                // an empty document contributes nothing when there is no smoothing
+                                continue;
+                        }
+                        double originalScore = r.getDocidScore(docidIdxMap.get(tv.docId));
+                        double c = originalScore / (fbmu + docLen);
+                        smoothingSum += c;
                         for (int i = 1; i < tv.stemsLength(); i++) {
                                 String currentTerm = tv.stemString(i);
-                                // ignore any candidate expansion term that contains a period, a comma, or a non-ASCII term
-                                if (!currentTerm.contains(".") && !currentTerm.contains(",") && isPureAscii(currentTerm)) {
-                                        allTerms.add(currentTerm);
-                                        if (!ctfMap.containsKey(currentTerm)) {
-                                                ctfMap.put(currentTerm, (double) tv.totalStemFreq(i));
+                                Integer id = termIds.get(currentTerm);
+                                if (id == null) {
+                                        // ignore any candidate expansion term that contains a period, a comma, or a non-ASCII term
+                                        if (!currentTerm.contains(".") && !currentTerm.contains(",") && isPureAscii(currentTerm)) {
+                                                id = idTerms.size();
+                                                idTerms.add(currentTerm);
+                                                allTerms.add(currentTerm);
+                                        } else {
+                                                id = -1;
                                         }
+                                        termIds.put(currentTerm, id);
                                 }
+                                if (id >= 0) {
+                                        tfSum[id] += tv.stemFreq(i) * c;
+                                }
+                        }
+                }
+
+                // fetch the ctf of all candidate terms in one batched pass over the index
+                long[] termCtf = ctx.getTotalTermFreqs("body", idTerms.toArray(new String[0]));
+                double[] ctf = new double[termCtf.length];
+                for (int i = 0; i < ctf.length; i++) {
+                        ctf[i] = (double) termCtf[i];
+                }
+
+                return calculateScore(ctx, allTerms, termIds, ctf, tfSum, smoothingSum);
+        }
+
+
+        /**
+         * Use the top terms to create an expansion query Q(learned) as a
+         * query tree.  The terms are already stemmed index terms, so they
+         * are not analyzed again.  Weights are rounded to 4 decimal places,
+         * as in the query's string form.
+         * <p>
+         * An expansion term that is also a term of the original query,
+         * which was already evaluated in the first pass, shares that
+         * term's inverted list instead of reading it from the index again.
+         * </p>
+         * @param terms the top terms
+         * @param originalQuery the original query, or null
+         * @return an expansion query, or null if there are no terms
+         */
+        public QrySopWAnd createLearnedQuery(Collection<Term> terms, Qry originalQuery) {
+                if (terms.isEmpty()) {
+                        return null;
+                }
+                Map<String, QryIopTerm> evaluatedTerms = new HashMap<>();
+                if (originalQuery != null) {
+                        collectEvaluatedTerms(originalQuery, evaluatedTerms);
+                }
+                QrySopWAnd learned = new QrySopWAnd();
+                learned.setDisplayName("#wand");
+                for (Term t: terms) {
+                        QryIopTerm term = new QryIopTerm(t.getTerm(), "body");
+                        QryIopTerm evaluated = evaluatedTerms.get(term.toString());
+                        if (evaluated != null) {
+                                term.shareInvertedList(evaluated);
                         }
+                        learned.appendWeightedArg(roundWeight(t.getScore()), term);
                 }
+                return learned;
+        }
 
-                PriorityQueue<Term> pqTerms = calculateScore(allTerms, ctfMap, forwardList, docidIdxMap, r);
 
-                // create printout query
+        /**
+         * Find the TERM operators of a query tree that already have an
+         * inverted list.
+         * @param q query tree
+         * @param evaluatedTerms receives term.field -> TERM operator
+         */
+        private static void collectEvaluatedTerms(Qry q, Map<String, QryIopTerm> evaluatedTerms) {
+                if (q instanceof QryIopTerm) {
+                        if (((QryIopTerm) q).invertedList != null) {
+                                evaluatedTerms.put(q.toString(), (QryIopTerm) q);
+                        }
+                        return;
+                }
+                for (Qry q_i: q.args) {
+                        collectEvaluatedTerms(q_i, evaluatedTerms);
+                }
+        }
+
+
+        /**
+         * Round a weight to 4 decimal places the way DecimalFormat("#.####")
+         * does (half-even, on the exact binary value).
+         * @param weight weight
+         * @return rounded weight
+         */
+        private static double roundWeight(double weight) {
+                return new BigDecimal(weight).setScale(4, RoundingMode.HALF_EVEN).doubleValue();
+        }
+
+
+        /**
+         * The string form of an expansion query Q(learned), as written to
+         * the expansion query file.
+         * @param terms the top terms
+         * @return an expansion query
+         */
+        public static String learnedQueryString(Collection<Term> terms) {
                 DecimalFormat df = new DecimalFormat("#.####");
                 StringBuilder sb = new StringBuilder();
-                for (Term t: pqTerms) {
-                        String currentTerm = df.format(t.getScore()) + " " + t.getTerm();
-                        if (sb.toString() != "") {
-                                sb.append(" ").append(currentTerm);
-                        } else {
-                                sb.append(currentTerm);
+                for (Term t: terms) {
+                        if (sb.length() > 0) {
+                                sb.append(" ");
                         }
+                        sb.append(df.format(t.getScore())).append(" ").append(t.getTerm());
                 }
-                String output = "#wand (" + sb.toString() + ")";
-                return output;
-
+                return "#wand (" + sb.toString() + ")";
         }
 
 
         /**
-         * Calculate potential expansion terms.
-         * @param allTerms
-         * @param ctfMap
-         * @param forwardList
-         * @param docidIdxMap
-         * @param r Scorelist
-         * @return score
+         * Calculate potential expansion terms and keep the top fbterms.
+         * @param ctx the request context
+         * @param allTerms candidate terms
+         * @param termIds term -> id
+         * @param ctf ctf of each term id
+         * @param tfSum sum of tf * c_d over the feedback documents that contain each term id
+         * @param smoothingSum sum of c_d over all feedback documents
+         * @return the top terms
          * @throws IOException
          */
-        private PriorityQueue<Term>  calculateScore(Set<String> allTerms, Map<String, Double> ctfMap, List<TermVector> forwardList, Map<Integer, Integer> docidIdxMap, ScoreList r) throws IOException {
+        private PriorityQueue<Term> calculateScore(SearchContext ctx, Set<String> allTerms, Map<String, Integer> termIds, double[] ctf, double[] tfSum, double smoothingSum) throws IOException {
                 int maxSize = fbterms;
                 PriorityQueue<Term> pqTerms = new PriorityQueue<>(maxSize);
-//                PriorityQueue<Term> pqTerms = new PriorityQueue<>();
+                double termLen = ctx.getSumOfFieldLengths("body");
                 for (String term: allTerms) {
+                        int id = termIds.get(term);
                         // weight = term length / ctf
-                        double weight = Math.log(Idx.getSumOfFieldLengths("body") / ctfMap.get(term));
-                        double ctf = ctfMap.get(term);
-                        double termLen = Idx.getSumOfFieldLengths("body");
+                        double weight = Math.log(termLen / ctf[id]);
+                        double pMLE = ctf[id] / termLen;
 
-                        double score = 0.0;
-
-                        for (TermVector tv: forwardList) {
-                                double termScore = getTermScore(tv, tv.docId, ctf, termLen, term);
-                                int docIdx = docidIdxMap.get(tv.docId);
-                                double originalScore = r.getDocidScore(docIdx);
-                                score += (termScore * originalScore * weight);
-                        }
+                        double score = weight * (tfSum[id] + fbmu * pMLE * smoothingSum);
                         Term t = new Term(term, score);
                         pqTerms.add(t);
                         if (pqTerms.size() > maxSize) {
@@ -225,13 +302,48 @@ public class PseudoRelevanceFeedback {
         /**
          * The expanded query is
          * Q(expanded) = #wand (w Q(original) (1-w) Q(learned) )
-         * @param originalQuery
-         * @param learnedQuery
+         * If Q(original) produced the initial ranking, its evaluated
+         * inverted lists are reused when the expanded query is evaluated.
+         * @param originalQuery the parsed original query, or null
+         * @param learnedQuery the learned query, or null
          * @return final expanded query
          */
-        public String createExpandedQuery(String originalQuery, String learnedQuery) {
-                return "#wand (" + fbweight + " " + originalQuery + " " + (1.0 - fbweight) + " " + learnedQuery + ")";
+        public Qry createExpandedQuery(Qry originalQuery, Qry learnedQuery) {
+                if (originalQuery != null) {
+                        QryIop.reuseInvertedLists(originalQuery);
+                }
+                if (originalQuery == null || learnedQuery == null) {
+                        return (originalQuery != null) ? originalQuery : learnedQuery;
+                }
+                QrySopWAnd expanded = new QrySopWAnd();
+                expanded.setDisplayName("#wand");
+                expanded.appendWeightedArg(fbweight, originalQuery);
+                expanded.appendWeightedArg(1.0 - fbweight, learnedQuery);
+                return expanded;
+        }
+
 
+        /**
+         * Append an expansion query to the expansion query file.  If the
+         * request has an open expansion query file (see
+         * QryEval.processQueryFile), the query is written to it in the
+         * background, in query order; if too many writes are waiting,
+         * this waits for the writer.  Otherwise the file is opened and
+         * the query is appended now.
+         * @param ctx the request context
+         * @param expansionQueryFile expansion query file
+         * @param learnedQuery the learned query's string form
+         * @param qid query id
+         * @throws IOException Error writing the file, or an earlier write failed
+         */
+        public void writeExpansionQuery(SearchContext ctx, String expansionQueryFile, String learnedQuery, int qid)
+                throws IOException {
+                Writer writer = ctx.getExpansionQueryWriter();
+                if (writer == null) {
+                        printResults(null, expansionQueryFile, learnedQuery, qid);
+                        return;
+                }
+                ctx.getExpansionQueryQueue().submit(() -> writer.write(qid + ": " + learnedQuery + "\n"));
         }
 
 
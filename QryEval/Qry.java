@@ -20,7 +20,7 @@ import java.util.*;
  *  </p>
  *  <pre>
  *    RetrievalModel r = new RetrievalModelUnrankedBoolean ();
- *    q.initialize (r);
+ *    q.initialize (ctx, r);
  * 
  *    while (q.docIteratorHasMatch (r)) {
  *      int docid = q.docIteratorGetMatch ();
@@ -98,6 +98,18 @@ public abstract class Qry {
   private int docIteratorMatchCache = Qry.INVALID_DOCID;
   
   private boolean matchStored = false;	// Operators can cache matches
+
+  /**
+   *  The context (index, collection statistics) that the query operator
+   *  is evaluated in.  It is set when the operator is initialized.
+   */
+  protected SearchContext ctx = null;
+
+  /**
+   *  Counters of the operator, if the query is profiled (see
+   *  QryProfile), otherwise null.
+   */
+  protected QryProfile.Stats stats = null;
   private int matchingDocid;
 
   //  --------------- Methods ---------------------------------------
@@ -210,9 +222,9 @@ public abstract class Qry {
 
   /**
    *  Clear the docIterator's matching docid cache.  The cache should
-   *  be cleared whenever a docIterator is advanced.
+   *  be cleared whenever a docIterator is advanced or reset.
    */
-  private void docIteratorClearMatchCache () {
+  protected void docIteratorClearMatchCache () {
     this.docIteratorMatchCache = Qry.INVALID_DOCID;
   }
 
@@ -360,6 +372,10 @@ public abstract class Qry {
    *  @param docid The internal document id to store in the cache.
    */
   private void docIteratorSetMatchCache (int docid) {
+    if ((this.stats != null) && (docid != this.stats.lastMatch)) {
+      this.stats.docsMatched ++;
+      this.stats.lastMatch = docid;
+    }
     this.docIteratorMatchCache = docid;
   }
 
@@ -386,10 +402,11 @@ public abstract class Qry {
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
+   *  @param ctx The context to evaluate the query operator in
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(SearchContext ctx, RetrievalModel r) throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
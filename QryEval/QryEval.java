@@ -53,32 +53,89 @@ public class QryEval {
 
     //  Open the index and initialize the retrieval model.
 
-    Idx.open (parameters.get ("indexPath"));
+    SearchContext index = openIndex (parameters);
+
     RetrievalModel model = null;
     if (parameters.containsKey("retrievalAlgorithm")) {
-      model = initializeRetrievalModel (parameters);
+      model = initializeRetrievalModel (index, parameters);
     }
 
     if (parameters.get("retrievalAlgorithm").equals("ltr")) {
       ((RetrievalModelLTR)model).trainQuery(parameters);
 
     } else {
-      processQueryFile(parameters.get("trecEvalOutputLength"), parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), model, parameters);
+      processQueryFile(index, parameters.get("trecEvalOutputLength"), parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), model, parameters);
     }
 
     //  Clean up.
     
+    RunMetrics.report ();
     timer.stop ();
     System.out.println ("Time:  " + timer);
   }
 
+  /**
+   *  Configure the worker threads and output queues, open the index
+   *  and its auxiliary data, and optionally warm it up, as the
+   *  parameters specify.
+   *  @param parameters The parameters.
+   *  @return the context of the index
+   *  @throws IOException Error accessing the index.
+   */
+  static SearchContext openIndex (Map<String, String> parameters)
+    throws IOException {
+
+    if (parameters.containsKey ("threads")) {
+      WorkerPool.setThreads (Integer.parseInt (parameters.get ("threads")));
+    }
+
+    if (parameters.containsKey ("outputQueueCapacity")) {
+      OutputQueue.setDefaultCapacity (Integer.parseInt (parameters.get ("outputQueueCapacity")));
+    }
+
+    QryProfile.configure (parameters);
+    RunMetrics.configure (parameters);
+
+    String indexDirectory = parameters.containsKey ("indexDirectory") ?
+      parameters.get ("indexDirectory") : "fs";
+    boolean indexPreload = parameters.containsKey ("indexPreload") &&
+      parameters.get ("indexPreload").toLowerCase ().equals ("true");
+    SearchContext index = Idx.open (parameters.get ("indexPath"),
+                                    indexDirectory, indexPreload);
+
+    if (parameters.containsKey ("forwardIndexPath")) {
+      Idx.openForwardIndex (index, parameters.get ("forwardIndexPath"));
+    }
+
+    if (parameters.containsKey ("ltr:staticFeatureFile")) {
+      Idx.openStaticFeatures (index, parameters.get ("ltr:staticFeatureFile"));
+    }
+
+    //  Optionally read the postings of the query terms before the
+    //  first query, so that query latency is stable from the start.
+
+    if (parameters.containsKey ("indexWarmUp") &&
+        parameters.get ("indexWarmUp").toLowerCase ().equals ("true")) {
+      List<String> queryFiles = new ArrayList<String> ();
+      queryFiles.add (parameters.get ("queryFilePath"));
+      if (parameters.containsKey ("ltr:trainingQueryFile")) {
+        queryFiles.add (parameters.get ("ltr:trainingQueryFile"));
+      }
+      IndexWarmer.warmUp (index, queryFiles);
+    }
+
+    return index;
+  }
+
   /**
    *  Allocate the retrieval model and initialize it using parameters
    *  from the parameter file.
+   *  @param index The index that the model searches (used by ltr).
+   *  @param parameters The parameters.
    *  @return The initialized retrieval model
    *  @throws IOException Error accessing the Lucene index.
    */
-  private static RetrievalModel initializeRetrievalModel (Map<String, String> parameters)
+  static RetrievalModel initializeRetrievalModel (SearchContext index, Map<String, String> parameters)
     throws IOException {
 
     RetrievalModel model = null;
@@ -112,7 +169,8 @@ public class QryEval {
       String svmRankClassifyPath = parameters.get("ltr:svmRankClassifyPath");
       String rankLibModel = parameters.get("ltr:RankLib:model");
       String rankLibMetric = parameters.get("ltr:RankLib:metric2t");
-      model = new RetrievalModelLTR(parameters,
+      model = new RetrievalModelLTR(index,
+                                    parameters,
                                     queryFilePath,
                                     trainingQrelsFile,
                                     trainingQueryFile,
@@ -159,17 +217,116 @@ public class QryEval {
 
   /**
    * Process one query.
+   * @param ctx The context to evaluate the query in.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(SearchContext ctx, String qString, RetrievalModel model)
+    throws IOException {
+
+    return ctx.getResults (resultKey (qString, model, -1), () -> {
+      long t = RunMetrics.start ();
+      String defaultOp = model.defaultQrySopName ();
+      Qry q = QryParser.getQuery (defaultOp + "(" + qString + ")");
+      RunMetrics.stop (ctx, RunMetrics.Stage.PARSE, t);
+
+      return processQuery (ctx, q, model);
+    });
+  }
+
+  /**
+   * Identify the results of a query for the result cache.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model and its parameters.
+   * @param k The number of results kept, or -1 for all.
+   * @return the cache key
+   */
+  static String resultKey(String qString, RetrievalModel model, int k) {
+    return model + "|" + k + "|" + qString;
+  }
+
+  /**
+   * Process one query that is already a query tree, e.g., a query
+   * built programmatically instead of parsed.
+   * @param ctx The context to evaluate the query in.
+   * @param q A query tree, or null.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(SearchContext ctx, Qry q, RetrievalModel model)
+    throws IOException {
+
+    ScoreList results = new ScoreList (ctx);
+
+    return processQuery (ctx, q, model, new ResultCollector () {
+      @Override
+      public void collect (int docid, double score) {
+        results.add (docid, score);
+      }
+
+      @Override
+      public ScoreList getScoreList () {
+        results.sort ();
+        return results;
+      }
+    });
+  }
+
+  /**
+   * Process one query and keep only its best k results.  The results
+   * are the same as processQuery's, truncated to k, but documents that
+   * do not make the top k are not added to a ScoreList.
+   * @param ctx The context to evaluate the query in.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of results to keep.
    * @return Search results
    * @throws IOException Error accessing the index
    */
-  static ScoreList processQuery(String qString, RetrievalModel model)
+  static ScoreList processQuery(SearchContext ctx, String qString, RetrievalModel model, int k)
     throws IOException {
 
-    String defaultOp = model.defaultQrySopName ();
-    qString = defaultOp + "(" + qString + ")";
-    Qry q = QryParser.getQuery (qString);
+    return ctx.getResults (resultKey (qString, model, k), () -> {
+      long t = RunMetrics.start ();
+      String defaultOp = model.defaultQrySopName ();
+      Qry q = QryParser.getQuery (defaultOp + "(" + qString + ")");
+      RunMetrics.stop (ctx, RunMetrics.Stage.PARSE, t);
+
+      return processQuery (ctx, q, model, k);
+    });
+  }
+
+  /**
+   * Process one query tree and keep only its best k results.
+   * @param ctx The context to evaluate the query in.
+   * @param q A query tree, or null.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of results to keep.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(SearchContext ctx, Qry q, RetrievalModel model, int k)
+    throws IOException {
+
+    return processQuery (ctx, q, model, new TopKCollector (ctx, k));
+  }
+
+  /**
+   * Evaluate a query tree document-at-a-time, offering each match to
+   * a collector.  Every processQuery variant evaluates queries here.
+   * @param ctx The context to evaluate the query in.
+   * @param q A query tree, or null.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param collector Keeps the matches and sorts them.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList processQuery(SearchContext ctx, Qry q, RetrievalModel model,
+                                        ResultCollector collector)
+    throws IOException {
 
     // Show the query that is evaluated
     
@@ -177,43 +334,69 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList results = new ScoreList ();
+      QryProfile profile = null;
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
-        q.initialize (model);
+        profile = QryProfile.start (ctx, q);
+        QryEvents.QueryInitialized event = new QryEvents.QueryInitialized ();
+        event.begin ();
+        long t = RunMetrics.start ();
+        q.initialize (ctx, model);
+        RunMetrics.stop (ctx, RunMetrics.Stage.INITIALIZE, t);
+        if (event.shouldCommit ()) {
+          event.qid = ctx.getQueryId ();
+          event.query = q.toString ();
+          event.commit ();
+        }
+        if (profile != null) {
+          profile.initialized ();
+        }
 
+        t = RunMetrics.start ();
         while (q.docIteratorHasMatch (model)) {
           int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          results.add (docid, score);
+          collector.collect (docid, ((QrySop) q).getScore (model));
           q.docIteratorAdvancePast (docid);
         }
+        RunMetrics.stop (ctx, RunMetrics.Stage.SCORE, t);
       }
       // sort the result
-      results.sort();
+      long t = RunMetrics.start ();
+      ScoreList results = collector.getScoreList ();
+      RunMetrics.stop (ctx, RunMetrics.Stage.SORT, t);
+      if (profile != null) {
+        profile.finish (results.size ());
+      }
       return results;
     } else
       return null;
   }
 
   /**
-   *  Process the query file.
+   *  Process the query file.  Each query is processed in its own
+   *  request context.  Results are handed to an output queue, which
+   *  writes them in query order on its own thread.
+   *  @param index The context of the index to search
    *  @param queryFilePath Path to the query file
    *  @param model A retrieval model that will guide matching and scoring
    *  @throws IOException Error accessing the Lucene index.
    */
-  static void processQueryFile(String outputLength, String queryFilePath, String outputFile,
+  static void processQueryFile(SearchContext index, String outputLength, String queryFilePath, String outputFile,
                                RetrievalModel model, Map<String, String> parameters)
           throws Exception {
 
-    BufferedReader input = null;
+    //  Resources are closed in reverse order, each even if closing
+    //  the one before it fails:  the queue writes its pending results
+    //  before the writer is closed.
 
-    try {
+    try (BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
+         ResultWriter output = ResultWriter.open(outputFile);
+         Writer expansionOutput = openExpansionQueryFile(parameters);
+         OutputQueue outputQueue = new OutputQueue("result-writer");
+         OutputQueue expansionQueue = (expansionOutput != null) ? new OutputQueue("expansion-query-writer") : null) {
       String qLine = null;
 
-      input = new BufferedReader(new FileReader(queryFilePath));
-
       //  Each pass of the loop processes one query.
 
       while ((qLine = input.readLine()) != null) {
@@ -229,125 +412,201 @@ public class QryEval {
 
 	String qid = pair[0];
 	String query = pair[1];
-        ScoreList results = null;
-        boolean pseudoRF = false;
-        boolean diversity = false;
-        boolean hasInitialRanking = false;
-        // check if there's pseudo relevance feedback or diversity
-        if (parameters.containsKey("prf")) {
-          pseudoRF = true;
-        } else if (parameters.containsKey("diversity")) {
-          diversity = true;
-        }
-
-        if (!pseudoRF && !diversity) {
-          // no psurdo relevance feedback, process query as normal
-          results = processQuery(query, model);
-        } else if (pseudoRF) {
-          if (parameters.containsKey("prf:initialRankingFile")) {
-            results = readInitialRankingFile(parameters.get("prf:initialRankingFile"), qid);
-          } else {
-            results = processQuery(query, model);
-          }
-          int numDocs = Integer.parseInt(parameters.get("prf:numDocs"));
-          int numTerms = Integer.parseInt(parameters.get("prf:numTerms"));
-          double indriMu = Double.parseDouble(parameters.get("prf:Indri:mu"));
-          double indriOrigWeight = Double.parseDouble(parameters.get("prf:Indri:origWeight"));
-          String expansionQueryFile = parameters.get("prf:expansionQueryFile");
-
-          PseudoRelevanceFeedback prf = new PseudoRelevanceFeedback(numDocs, numTerms, indriMu, indriOrigWeight);
-          // create an expansion query Q(learned)
-          String learnedQuery = prf.createLearnedQuery(results);
-          // get Q(original)
-          query = model.defaultQrySopName() + "(" + query + ")";
-          // combine Q(original) and Q(learned) to create Q(expanded)
-          String expandedQuery = prf.createExpandedQuery(query, learnedQuery);
-          // retrieve a new set of documents
-          results = processQuery(expandedQuery, model);
-          // output learned query to file
-          prf.printResults(null, expansionQueryFile, learnedQuery, Integer.parseInt(qid));
-
-
-        } else if (diversity && parameters.get("diversity").toLowerCase().equals("true")) {
-          if (parameters.containsKey("diversity:initialRankingFile")) {
-            hasInitialRanking = true;
-          }
-          int maxInputRankingsLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
-          int maxResultRankingLength = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
-          double lambda = Double.parseDouble(parameters.get("diversity:lambda"));
-          String algo = null;
-
-          // check if diversity algorithm is xQuAD or PM2
-          if (parameters.get("diversity:algorithm").equals("xQuAD")) {
-            algo = "xQuAD";
-          } else if (parameters.get("diversity:algorithm").equals("PM2")) {
-            algo = "PM2";
-          }
-
-          Diversification df = new Diversification(algo, maxInputRankingsLength, maxResultRankingLength, lambda);
-
-          String intentsFile = parameters.get("diversity:intentsFile");
-          List<String> allIntents = Diversification.readIntents(intentsFile, Integer.parseInt(qid));
-
-
-          List<Map<Integer, Double>> documentRanking = null;
-
-          if (hasInitialRanking) {
-            // read relevance-based document rankings for query q
-            // from the the diversity:initialRankingFile file;
-            // read relevance-based document rankings for query intents q.i
-            // from the diversity:initialRankingFile file;
-            String initialRankingFile = parameters.get("diversity:initialRankingFile");
-            documentRanking = readDiversityInitialRankingFile(initialRankingFile, Integer.parseInt(qid), maxInputRankingsLength);
-          } else {
-            // read query q from the query file
-            // use query q to retrieve documents;
-            ScoreList s = processQuery(query, model);
-            documentRanking = Diversification.processQuery(s, allIntents, model, maxInputRankingsLength);
-          }
-          // produce a diversified ranking
-          results = df.produceDiversifiedRanking(documentRanking);
-          results.sort();
-        }
+        long queryStart = RunMetrics.start();
+        SearchContext ctx = index.newRequest();
+        ctx.setExpansionQueryOutput(expansionOutput, expansionQueue);
+        ScoreList results = evaluateQuery(ctx, qid, query, model, parameters);
 
         // print results
         if (results != null) {
-          printResults(outputLength, outputFile, qid, results);
+          outputQueue.submit(() -> {
+            long t = RunMetrics.start();
+            printResults(output, outputLength, qid, results);
+            RunMetrics.stop(ctx, RunMetrics.Stage.OUTPUT, t);
+            RunMetrics.finishQuery(ctx, qid, queryStart);
+          });
           System.out.println();
         }
       }
     } catch (IOException ex) {
       ex.printStackTrace();
-    } finally {
-      input.close();
     }
   }
 
+  /**
+   *  Open the expansion query file of a pseudo relevance feedback run
+   *  for append, once for the whole query file.
+   *  @param parameters The parameters.
+   *  @return the open file, or null if the parameters ask for none
+   *  @throws IOException Error opening the file.
+   */
+  private static Writer openExpansionQueryFile(Map<String, String> parameters)
+          throws IOException {
+
+    if (!parameters.containsKey("prf") || !parameters.containsKey("prf:expansionQueryFile")) {
+      return null;
+    }
+    return new BufferedWriter(new FileWriter(parameters.get("prf:expansionQueryFile"), true));
+  }
+
+  /**
+   *  Evaluate one query as the parameters specify: a plain query,
+   *  pseudo relevance feedback (prf), or diversification (diversity).
+   *  @param ctx The request context of the query.
+   *  @param qid The query id.
+   *  @param query The query.
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param parameters The parameters.
+   *  @return the results, or null if the parameters ask for none
+   *  @throws Exception Error accessing the Lucene index or a parameter file.
+   */
+  static ScoreList evaluateQuery(SearchContext ctx, String qid, String query,
+                                 RetrievalModel model, Map<String, String> parameters)
+          throws Exception {
+
+    QryEvents.QueryEvaluated event = new QryEvents.QueryEvaluated();
+    event.begin();
+    ctx.setQueryId(qid);
+    boolean useRankingCache = parameters.containsKey("initialRankingCache") &&
+                              parameters.get("initialRankingCache").toLowerCase().equals("true");
+    ScoreList results = null;
+    boolean pseudoRF = false;
+    boolean diversity = false;
+    boolean hasInitialRanking = false;
+    // check if there's pseudo relevance feedback or diversity
+    if (parameters.containsKey("prf")) {
+      pseudoRF = true;
+    } else if (parameters.containsKey("diversity")) {
+      diversity = true;
+    }
+
+    if (!pseudoRF && !diversity) {
+      // no psurdo relevance feedback, process query as normal
+      results = processQuery(ctx, query, model);
+    } else if (pseudoRF) {
+      // get Q(original); when it produces the initial ranking, its
+      // evaluated inverted lists are reused by the expanded query
+      long t = RunMetrics.start();
+      Qry originalQuery = QryParser.getQuery(model.defaultQrySopName() + "(" + query + ")");
+      RunMetrics.stop(ctx, RunMetrics.Stage.PARSE, t);
+      if (parameters.containsKey("prf:initialRankingFile")) {
+        results = readInitialRankingFile(ctx, parameters.get("prf:initialRankingFile"), qid, useRankingCache);
+      } else {
+        results = ctx.getResults(resultKey(query, model, -1), () -> processQuery(ctx, originalQuery, model));
+      }
+      int numDocs = Integer.parseInt(parameters.get("prf:numDocs"));
+      int numTerms = Integer.parseInt(parameters.get("prf:numTerms"));
+      double indriMu = Double.parseDouble(parameters.get("prf:Indri:mu"));
+      double indriOrigWeight = Double.parseDouble(parameters.get("prf:Indri:origWeight"));
+      String expansionQueryFile = parameters.get("prf:expansionQueryFile");
+
+      PseudoRelevanceFeedback prf = new PseudoRelevanceFeedback(numDocs, numTerms, indriMu, indriOrigWeight);
+      // create an expansion query Q(learned) directly as a query tree
+      t = RunMetrics.start();
+      PriorityQueue<PseudoRelevanceFeedback.Term> learnedTerms = prf.selectExpansionTerms(ctx, results);
+      Qry learnedQuery = prf.createLearnedQuery(learnedTerms, originalQuery);
+      // combine Q(original) and Q(learned) to create Q(expanded)
+      Qry expandedQuery = prf.createExpandedQuery(originalQuery, learnedQuery);
+      RunMetrics.stop(ctx, RunMetrics.Stage.PRF, t);
+      // retrieve a new set of documents
+      results = processQuery(ctx, expandedQuery, model);
+      // output learned query to file in the background
+      if (expansionQueryFile != null) {
+        prf.writeExpansionQuery(ctx, expansionQueryFile, PseudoRelevanceFeedback.learnedQueryString(learnedTerms), Integer.parseInt(qid));
+      }
+
+
+    } else if (diversity && parameters.get("diversity").toLowerCase().equals("true")) {
+      if (parameters.containsKey("diversity:initialRankingFile")) {
+        hasInitialRanking = true;
+      }
+      int maxInputRankingsLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
+      int maxResultRankingLength = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
+      double lambda = Double.parseDouble(parameters.get("diversity:lambda"));
+      String algo = null;
+
+      // check if diversity algorithm is xQuAD or PM2
+      if (parameters.get("diversity:algorithm").equals("xQuAD")) {
+        algo = "xQuAD";
+      } else if (parameters.get("diversity:algorithm").equals("PM2")) {
+        algo = "PM2";
+      }
+
+      Diversification df = new Diversification(algo, maxInputRankingsLength, maxResultRankingLength, lambda);
+
+      // the intents may already be set, e.g., by a server request
+      if (ctx.getNumIntents() == 0) {
+        String intentsFile = parameters.get("diversity:intentsFile");
+        ctx.setIntents(Diversification.readIntents(intentsFile, Integer.parseInt(qid)));
+      }
+
+
+      List<Map<Integer, Double>> documentRanking = null;
+
+      if (hasInitialRanking) {
+        // read relevance-based document rankings for query q
+        // from the the diversity:initialRankingFile file;
+        // read relevance-based document rankings for query intents q.i
+        // from the diversity:initialRankingFile file;
+        String initialRankingFile = parameters.get("diversity:initialRankingFile");
+        documentRanking = readDiversityInitialRankingFile(ctx, initialRankingFile, Integer.parseInt(qid), maxInputRankingsLength, useRankingCache);
+      } else {
+        // read query q from the query file
+        // use query q to retrieve documents;
+        if (parameters.containsKey("diversity:sharedPostings") &&
+            parameters.get("diversity:sharedPostings").toLowerCase().equals("true")) {
+          // evaluate q and its intents in one pass with shared postings
+          documentRanking = Diversification.processQueryShared(ctx, query, model, maxInputRankingsLength);
+        } else {
+          ScoreList s = processQuery(ctx, query, model, maxInputRankingsLength);
+          documentRanking = Diversification.processQuery(ctx, s, model, maxInputRankingsLength);
+        }
+      }
+      // produce a diversified ranking
+      QryEvents.DiversifiedRanking diversified = new QryEvents.DiversifiedRanking();
+      diversified.begin();
+      long t = RunMetrics.start();
+      results = df.produceDiversifiedRanking(ctx, documentRanking);
+      results.sort();
+      RunMetrics.stop(ctx, RunMetrics.Stage.DIVERSITY, t);
+      if (diversified.shouldCommit()) {
+        diversified.qid = qid;
+        diversified.algorithm = algo;
+        diversified.intents = ctx.getNumIntents();
+        diversified.results = results.size();
+        diversified.commit();
+      }
+    }
+
+    if (event.shouldCommit()) {
+      event.qid = qid;
+      event.query = query;
+      event.model = String.valueOf(model);
+      event.mode = pseudoRF ? "prf" : (diversity ? "diversity" : "plain");
+      event.results = (results == null) ? 0 : results.size();
+      event.commit();
+    }
+    return results;
+  }
+
   /**
    * Print the query results.
    * Outputs in the format specified in the homework page, which is:
    * QueryID Q0 DocID Rank Score RunID
    * 
+   * @param output
+   *          The run's result writer.
    * @param queryName
    *          Original query.
    * @param result
    *          A list of document ids and scores
-   * @throws IOException Error accessing the Lucene index.
+   * @throws IOException Error writing the results.
    */
   static String DUMMY = "10 Q0 dummy 1 0 hw5\n";
-  static void printResults(String outputLength, String outputFile, String queryName, ScoreList result) throws IOException {
-
-    PrintWriter pw = new PrintWriter(new FileOutputStream(new File(outputFile), true));
-    if (result.size() < 1) {
-      pw.print(DUMMY);
-    }
+  static void printResults(ResultWriter output, String outputLength, String queryName, ScoreList result) throws IOException {
 
     // make sure output length does not exceed our parameter setting
-    int printLength = Math.min(Integer.parseInt(outputLength), result.size());
-    for (int i = 0; i < printLength; i++) {
-      pw.format("%s Q0 %s %d %.12f hw5\n", queryName, Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i));
-    }
-    pw.close();
+    output.write(queryName, result, Integer.parseInt(outputLength), DUMMY);
 
     // for console printout
 //    System.out.println(queryName + ":  ");
@@ -368,7 +627,7 @@ public class QryEval {
    *  them.
    *  @return The parameters, in <key, value> format.
    */
-  private static Map<String, String> readParameterFile (String parameterFileName)
+  static Map<String, String> readParameterFile (String parameterFileName)
     throws IOException {
 
     Map<String, String> parameters = new HashMap<String, String>();
@@ -409,86 +668,29 @@ public class QryEval {
 
   /**
    * Read a document ranking in trec_eval input format from the prf:initialRankingFile.
+   * The file is parsed once per run; see RankingFileIndex.
+   * @param ctx
    * @param filename
    * @param id
+   * @param useCache use the ranking file's binary cache
    * @return scorelist for the initial ranking file
    */
-  private static ScoreList readInitialRankingFile(String filename, String id) throws Exception {
-    ScoreList s = new ScoreList();
-    File initialRankingFile = new File (filename);
-
-    if ( !initialRankingFile.canRead ()) {
-      throw new IllegalArgumentException
-              ("Can't read " + filename);
-    }
-
-    //  Store (all) key/value parameters in a hashmap.
-    Scanner scan = new Scanner(initialRankingFile);
-    String line = null;
-    do {
-      line = scan.nextLine();
-      String[] pair = line.split (" ");
-
-      if (id.equals(pair[0])) {
-        int docid = Idx.getInternalDocid(pair[2]);
-        double score = Double.parseDouble(pair[4]);
-        s.add(docid, score);
-      }
-    } while (scan.hasNext());
-
-    scan.close();
-    return s;
+  private static ScoreList readInitialRankingFile(SearchContext ctx, String filename, String id, boolean useCache) throws Exception {
+    return RankingFileIndex.get(filename, useCache).getRanking(ctx, id);
   }
 
 
   /**
    * Read a document ranking in trec_eval input format from the diversity:initialRankingFile.
+   * The file is parsed once per run; see RankingFileIndex.
+   * @param ctx
    * @param filename
    * @param id
+   * @param useCache use the ranking file's binary cache
    * @return scorelist for the initial ranking file in diversification
    */
-  private static List<Map<Integer, Double>> readDiversityInitialRankingFile(String filename, int id, int maxInputRankingsLength) throws Exception {
-    List<ScoreList> initialScores = new ArrayList<>();
-    File initialRankingFile = new File (filename);
-
-    if ( !initialRankingFile.canRead ()) {
-      throw new IllegalArgumentException
-              ("Can't read " + filename);
-    }
-
-    //  Store (all) key/value parameters in a hashmap.
-    Scanner scan = new Scanner(initialRankingFile);
-    String line = null;
-    do {
-      line = scan.nextLine();
-      String[] pair = line.split (" ");
-      String query = pair[0];
-
-      int docid = Idx.getInternalDocid(pair[2]);
-      double score = Double.parseDouble(pair[4]);
-      int qid = -1;
-      int intent = 0;
-      if (query.contains(".")) {
-        String[] diffIntent = query.split("\\.");
-        qid = Integer.parseInt(diffIntent[0]);
-        intent = Integer.parseInt(diffIntent[1]);
-      } else {
-        qid = Integer.parseInt(query);
-
-      }
-      if (qid == id) {
-        if (intent <= initialScores.size() - 1) {
-          ScoreList s = initialScores.get(intent);
-          s.add(docid, score);
-        } else {
-          ScoreList s = new ScoreList();
-          s.add(docid, score);
-          initialScores.add(s);
-        }
-      }
-    } while (scan.hasNext());
-
-    scan.close();
+  private static List<Map<Integer, Double>> readDiversityInitialRankingFile(SearchContext ctx, String filename, int id, int maxInputRankingsLength, boolean useCache) throws Exception {
+    List<ScoreList> initialScores = RankingFileIndex.get(filename, useCache).getIntentRankings(ctx, id);
 
     // process scoreList
     List<Map<Integer, Double>> allDocRankings = new ArrayList<>();
@@ -0,0 +1,589 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running search server.  It opens the index (and forward
+ * indexes, static features, warm-up) once, as a parameter file
+ * specifies, and answers HTTP/JSON requests on the loopback interface,
+ * so that the index, the caches, the JIT-compiled code, and loaded
+ * learning to rank models and their feature registries stay resident
+ * between experiments.
+ * <p>
+ * Every request is a POST whose body is a JSON object of parameters
+ * with the same names as in a parameter file (e.g., "retrievalAlgorithm",
+ * "BM25:k_1", "prf:numDocs"); they override the server's parameter
+ * file for that request.  String, number and boolean values are
+ * accepted; an array of strings is joined with newlines.
+ * </p>
+ * <pre>
+ *   POST /query       {"qid": "1", "query": "apple pie"}
+ *   POST /prf         the same, with pseudo relevance feedback
+ *   POST /diversity   the same, with diversification; "intents" is an
+ *                     optional array of intent queries (otherwise
+ *                     diversity:intentsFile is used)
+ *   POST /batch       {"queries": ["1:apple pie", "2:..."]}, evaluated
+ *                     concurrently as a query file would be
+ *   POST /ltr-rerank  {"qid": "1", "query": "apple pie"}; re-ranks with
+ *                     the trained ltr:modelFile, which is loaded once
+ *   GET  /status
+ * </pre>
+ * <p>
+ * A query result is {"qid": ..., "timeMs": ..., "results": [{"rank":
+ * 1, "docid": "...", "score": ...}, ...]}, at most trecEvalOutputLength
+ * long; /batch returns {"timeMs": ..., "queries": [result, ...]}.
+ * Errors are {"error": "..."} with status 400 (bad request) or 500.
+ * Expansion queries are written only if the request sets
+ * prf:expansionQueryFile.
+ * </p>
+ * <p>
+ * Each request runs in its own virtual thread when the JVM has them
+ * (Java 21+), and otherwise in a cached thread pool.
+ * </p>
+ */
+public class QryEvalServer {
+
+        private static final String USAGE =
+                "Usage:  java QryEvalServer paramFile [port]\n\n";
+        private static final int DEFAULT_PORT = 8080;
+
+        private final SearchContext index;
+        private final Map<String, String> parameters;
+        private final ExecutorService executor;
+        /**
+         * Loaded learning to rank models, by toolkit, file and modification time.
+         */
+        private final Map<String, LtrModel> ltrModels = new ConcurrentHashMap<>();
+        /**
+         * LTR rerankers, by their parameters, so that the feature registry
+         * and its field statistics stay resident.
+         */
+        private final Map<String, RetrievalModelLTR> ltrRankers = new ConcurrentHashMap<>();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final long startTime = System.currentTimeMillis();
+
+        private QryEvalServer(SearchContext index, Map<String, String> parameters, ExecutorService executor) {
+                this.index = index;
+                this.parameters = parameters;
+                this.executor = executor;
+        }
+
+        /**
+         * @param args parameter file, and optionally the port (parameter
+         *             "server:port", default 8080)
+         * @throws Exception Error opening the index or starting the server
+         */
+        public static void main(String[] args) throws Exception {
+                if (args.length < 1) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+                Map<String, String> parameters = QryEval.readParameterFile(args[0]);
+                int port = DEFAULT_PORT;
+                if (args.length > 1) {
+                        port = Integer.parseInt(args[1]);
+                } else if (parameters.containsKey("server:port")) {
+                        port = Integer.parseInt(parameters.get("server:port"));
+                }
+
+                SearchContext index = QryEval.openIndex(parameters);
+                ExecutorService executor = newRequestExecutor();
+                QryEvalServer server = new QryEvalServer(index, parameters, executor);
+
+                HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                http.setExecutor(executor);
+                http.createContext("/query", e -> server.handle(e, "query"));
+                http.createContext("/prf", e -> server.handle(e, "prf"));
+                http.createContext("/diversity", e -> server.handle(e, "diversity"));
+                http.createContext("/batch", e -> server.handle(e, "batch"));
+                http.createContext("/ltr-rerank", e -> server.handle(e, "ltr-rerank"));
+                http.createContext("/status", e -> server.handle(e, "status"));
+                http.start();
+                System.out.println("QryEvalServer listening on http://" + http.getAddress().getHostString() + ":" + port + "/");
+        }
+
+        /**
+         * Create the executor that runs requests: a virtual thread per
+         * request if the JVM has virtual threads, otherwise a cached
+         * pool of daemon threads.
+         * @return the executor
+         */
+        static ExecutorService newRequestExecutor() {
+                try {
+                        Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                        return (ExecutorService) m.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                        AtomicInteger count = new AtomicInteger();
+                        return Executors.newCachedThreadPool(r -> {
+                                Thread t = new Thread(r, "request-" + count.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                        });
+                }
+        }
+
+        /**
+         * Handle a request and send the JSON response.
+         * @param exchange the HTTP exchange
+         * @param endpoint the endpoint name
+         * @throws IOException Error sending the response
+         */
+        private void handle(HttpExchange exchange, String endpoint) throws IOException {
+                requests.incrementAndGet();
+                int status = 200;
+                String response;
+                try {
+                        if (endpoint.equals("status")) {
+                                response = status();
+                        } else {
+                                if (!exchange.getRequestMethod().equals("POST")) {
+                                        throw new IllegalArgumentException("Use POST with a JSON object of parameters.");
+                                }
+                                Map<String, String> request = parseJsonObject(readBody(exchange));
+                                response = endpoint.equals("batch") ? batch(request) : query(endpoint, request);
+                        }
+                } catch (IllegalArgumentException e) {
+                        status = 400;
+                        response = errorJson(e);
+                } catch (Exception e) {
+                        status = 500;
+                        response = errorJson(e);
+                        e.printStackTrace();
+                }
+                if (status != 200) {
+                        errors.incrementAndGet();
+                }
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                }
+        }
+
+        private static String readBody(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+        }
+
+        /**
+         * Merge the request parameters into the server's parameters and
+         * apply the endpoint's mode.
+         * @param endpoint the endpoint name
+         * @param request the request parameters
+         * @return the parameters for this request
+         */
+        private Map<String, String> requestParameters(String endpoint, Map<String, String> request) {
+                Map<String, String> p = new HashMap<>(parameters);
+                if (!request.containsKey("prf:expansionQueryFile")) {
+                        p.remove("prf:expansionQueryFile");
+                }
+                p.putAll(request);
+                if (endpoint.equals("query") || endpoint.equals("ltr-rerank")) {
+                        p.remove("prf");
+                        p.remove("diversity");
+                } else if (endpoint.equals("prf")) {
+                        p.remove("diversity");
+                        if (!p.containsKey("prf")) {
+                                p.put("prf", "Indri");
+                        }
+                } else if (endpoint.equals("diversity")) {
+                        p.remove("prf");
+                        p.put("diversity", "true");
+                }
+                return p;
+        }
+
+        /**
+         * Evaluate one query.
+         * @param endpoint query, prf, diversity or ltr-rerank
+         * @param request the request parameters
+         * @return the JSON result
+         * @throws Exception Error evaluating the query
+         */
+        private String query(String endpoint, Map<String, String> request) throws Exception {
+                Map<String, String> p = requestParameters(endpoint, request);
+                String query = require(p, "query");
+                String qid = p.containsKey("qid") ? p.get("qid") : "0";
+                long start = System.nanoTime();
+
+                SearchContext ctx = index.newRequest();
+                if (p.containsKey("intents")) {
+                        ctx.setIntents(Arrays.asList(p.get("intents").split("\n")));
+                }
+                ScoreList results;
+                if (endpoint.equals("ltr-rerank")) {
+                        p.put("retrievalAlgorithm", "ltr");
+                        RetrievalModelLTR model = ltrRanker(p);
+                        results = model.rerank(ctx, Integer.parseInt(qid), query,
+                                               ltrModel(require(p, "ltr:toolkit"), require(p, "ltr:modelFile")));
+                } else {
+                        results = QryEval.evaluateQuery(ctx, qid, query, QryEval.initializeRetrievalModel(index, p), p);
+                }
+                return resultJson(qid, results, outputLength(p), System.nanoTime() - start);
+        }
+
+        /**
+         * Evaluate several queries concurrently.
+         * @param request the request parameters; "queries" has one qid:query per line
+         * @return the JSON results, in the order of the queries
+         * @throws Exception Error evaluating a query
+         */
+        private String batch(Map<String, String> request) throws Exception {
+                Map<String, String> p = requestParameters("batch", request);
+                String[] lines = require(p, "queries").split("\n");
+                int outputLength = outputLength(p);
+                long start = System.nanoTime();
+
+                List<Future<String>> futures = new ArrayList<>(lines.length);
+                for (String line: lines) {
+                        String[] pair = line.split(":");
+                        if (pair.length != 2) {
+                                throw new IllegalArgumentException("Syntax error:  Each query must contain one ':'.");
+                        }
+                        futures.add(executor.submit(() -> {
+                                long queryStart = System.nanoTime();
+                                ScoreList results = QryEval.evaluateQuery(index.newRequest(), pair[0], pair[1],
+                                                                          QryEval.initializeRetrievalModel(index, p), p);
+                                return resultJson(pair[0], results, outputLength, System.nanoTime() - queryStart);
+                        }));
+                }
+                StringBuilder json = new StringBuilder();
+                try {
+                        for (Future<String> f: futures) {
+                                json.append((json.length() == 0) ? "" : ",").append(f.get());
+                        }
+                } catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) {
+                                throw (Exception) e.getCause();
+                        }
+                        throw e;
+                } finally {
+                        for (Future<String> f: futures) {
+                                f.cancel(false);
+                        }
+                }
+                return "{\"timeMs\":" + millis(System.nanoTime() - start) + ",\"queries\":[" + json + "]}";
+        }
+
+        /**
+         * Get a learning to rank model, loading it the first time it is
+         * used or when its file changes.
+         * @param toolkit SVMRank or RankLib
+         * @param modelFile model file
+         * @return the model
+         * @throws IOException Error reading the model file
+         */
+        private LtrModel ltrModel(String toolkit, String modelFile) throws IOException {
+                File f = new File(modelFile);
+                if (!f.canRead()) {
+                        throw new IllegalArgumentException("Can't read " + modelFile);
+                }
+                String key = toolkit + "|" + f.getAbsolutePath() + "|" + f.lastModified();
+                LtrModel model = ltrModels.get(key);
+                if (model == null) {
+                        model = LtrModel.load(toolkit, modelFile);
+                        ltrModels.put(key, model);
+                }
+                return model;
+        }
+
+        /**
+         * Get the LTR reranker for a request's parameters, creating it the
+         * first time they are used.  The query, qid and intents of the
+         * request are not part of the key.
+         * @param p the request's parameters
+         * @return the reranker
+         * @throws IOException Error accessing the Lucene index
+         */
+        private RetrievalModelLTR ltrRanker(Map<String, String> p) throws IOException {
+                Map<String, String> settings = new TreeMap<>(p);
+                settings.remove("query");
+                settings.remove("qid");
+                settings.remove("intents");
+                String key = settings.toString();
+                RetrievalModelLTR model = ltrRankers.get(key);
+                if (model == null) {
+                        model = (RetrievalModelLTR) QryEval.initializeRetrievalModel(index, p);
+                        RetrievalModelLTR existing = ltrRankers.putIfAbsent(key, model);
+                        if (existing != null) {
+                                model = existing;
+                        }
+                }
+                return model;
+        }
+
+        private String status() {
+                Map<String, Object> s = new LinkedHashMap<>();
+                s.put("indexPath", index.getIndexPath());
+                s.put("numDocs", index.getNumDocs());
+                s.put("uptimeMs", System.currentTimeMillis() - startTime);
+                s.put("requests", requests.get());
+                s.put("errors", errors.get());
+                s.put("ltrModels", ltrModels.size());
+                s.put("ltrRankers", ltrRankers.size());
+                s.put("memory", IndexWarmer.residentSize());
+                StringBuilder json = new StringBuilder("{");
+                for (Map.Entry<String, Object> e: s.entrySet()) {
+                        if (json.length() > 1) {
+                                json.append(',');
+                        }
+                        Utils.appendJsonString(json, e.getKey());
+                        json.append(':');
+                        if (e.getValue() instanceof String) {
+                                Utils.appendJsonString(json, (String) e.getValue());
+                        } else {
+                                json.append(e.getValue());
+                        }
+                }
+                return json.append('}').toString();
+        }
+
+        private static String require(Map<String, String> p, String name) {
+                String value = p.get(name);
+                if (value == null) {
+                        throw new IllegalArgumentException("Missing parameter " + name);
+                }
+                return value;
+        }
+
+        private static int outputLength(Map<String, String> p) {
+                return p.containsKey("trecEvalOutputLength") ? Integer.parseInt(p.get("trecEvalOutputLength")) : 100;
+        }
+
+        private static String millis(long nanos) {
+                return String.valueOf(Math.round(nanos / 1e4) / 100.0);
+        }
+
+        //  --------------- JSON ---------------------------------------
+
+        /**
+         * Format the results of a query.
+         * @param qid query id
+         * @param results results, or null
+         * @param outputLength the maximum number of results
+         * @param nanos evaluation time
+         * @return the JSON object
+         */
+        private static String resultJson(String qid, ScoreList results, int outputLength, long nanos) {
+                StringBuilder json = new StringBuilder(64 * Math.min(outputLength, 1000));
+                json.append("{\"qid\":");
+                Utils.appendJsonString(json, qid);
+                json.append(",\"timeMs\":").append(millis(nanos)).append(",\"results\":[");
+                int n = (results == null) ? 0 : Math.min(outputLength, results.size());
+                for (int i = 0; i < n; i++) {
+                        json.append((i == 0) ? "{\"rank\":" : ",{\"rank\":").append(i + 1).append(",\"docid\":");
+                        Utils.appendJsonString(json, results.getExternalDocid(i));
+                        double score = results.getDocidScore(i);
+                        json.append(",\"score\":");
+                        if (Double.isNaN(score) || Double.isInfinite(score)) {
+                                Utils.appendJsonString(json, String.valueOf(score));
+                        } else {
+                                json.append(score);
+                        }
+                        json.append('}');
+                }
+                return json.append("]}").toString();
+        }
+
+        private static String errorJson(Exception e) {
+                StringBuilder json = new StringBuilder("{\"error\":");
+                Utils.appendJsonString(json, (e.getMessage() != null) ? e.getMessage() : e.toString());
+                return json.append('}').toString();
+        }
+
+        /**
+         * Parse a JSON object whose values are strings, numbers,
+         * booleans, null (ignored) or arrays of those (joined with
+         * newlines).
+         * @param text the JSON text
+         * @return name -> value
+         */
+        static Map<String, String> parseJsonObject(String text) {
+                JsonParser parser = new JsonParser(text);
+                Map<String, String> values = new LinkedHashMap<>();
+                parser.skipSpace();
+                if (parser.pos == text.length()) {
+                        return values;
+                }
+                parser.expect('{');
+                parser.skipSpace();
+                if (parser.peek() == '}') {
+                        parser.pos++;
+                        return values;
+                }
+                while (true) {
+                        parser.skipSpace();
+                        String name = parser.string();
+                        parser.skipSpace();
+                        parser.expect(':');
+                        parser.skipSpace();
+                        String value;
+                        if (parser.peek() == '[') {
+                                parser.pos++;
+                                StringBuilder joined = new StringBuilder();
+                                parser.skipSpace();
+                                if (parser.peek() == ']') {
+                                        parser.pos++;
+                                } else {
+                                        while (true) {
+                                                parser.skipSpace();
+                                                String v = parser.scalar();
+                                                if (v != null) {
+                                                        joined.append((joined.length() == 0) ? "" : "\n").append(v);
+                                                }
+                                                parser.skipSpace();
+                                                if (parser.peek() == ']') {
+                                                        parser.pos++;
+                                                        break;
+                                                }
+                                                parser.expect(',');
+                                        }
+                                }
+                                value = joined.toString();
+                        } else {
+                                value = parser.scalar();
+                        }
+                        if (value != null) {
+                                values.put(name, value);
+                        }
+                        parser.skipSpace();
+                        if (parser.peek() == '}') {
+                                parser.pos++;
+                                break;
+                        }
+                        parser.expect(',');
+                }
+                parser.skipSpace();
+                if (parser.pos != text.length()) {
+                        throw new IllegalArgumentException("Unexpected text after the JSON object.");
+                }
+                return values;
+        }
+
+        /**
+         * A cursor over JSON text.
+         */
+        private static class JsonParser {
+                private final String text;
+                private int pos = 0;
+
+                private JsonParser(String text) {
+                        this.text = text;
+                }
+
+                private char peek() {
+                        if (pos >= text.length()) {
+                                throw new IllegalArgumentException("Unexpected end of JSON.");
+                        }
+                        return text.charAt(pos);
+                }
+
+                private void expect(char c) {
+                        if (peek() != c) {
+                                throw new IllegalArgumentException("Expected '" + c + "' at JSON offset " + pos);
+                        }
+                        pos++;
+                }
+
+                private void skipSpace() {
+                        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                                pos++;
+                        }
+                }
+
+                /**
+                 * Read a string, number, boolean or null.
+                 * @return the value as a string, or null for null
+                 */
+                private String scalar() {
+                        if (peek() == '"') {
+                                return string();
+                        }
+                        int start = pos;
+                        while (pos < text.length() && ",]} \t\r\n".indexOf(text.charAt(pos)) < 0) {
+                                pos++;
+                        }
+                        String token = text.substring(start, pos);
+                        if (token.equals("null")) {
+                                return null;
+                        }
+                        if (token.equals("true") || token.equals("false")) {
+                                return token;
+                        }
+                        try {
+                                Double.parseDouble(token);
+                        } catch (NumberFormatException e) {
+                                throw new IllegalArgumentException("Bad JSON value at offset " + start + ": " + token);
+                        }
+                        return token;
+                }
+
+                private String string() {
+                        expect('"');
+                        StringBuilder s = new StringBuilder();
+                        while (true) {
+                                char c = peek();
+                                pos++;
+                                if (c == '"') {
+                                        return s.toString();
+                                }
+                                if (c != '\\') {
+                                        s.append(c);
+                                        continue;
+                                }
+                                char e = peek();
+                                pos++;
+                                switch (e) {
+                                case 'b':
+                                        s.append('\b');
+                                        break;
+                                case 'f':
+                                        s.append('\f');
+                                        break;
+                                case 'n':
+                                        s.append('\n');
+                                        break;
+                                case 'r':
+                                        s.append('\r');
+                                        break;
+                                case 't':
+                                        s.append('\t');
+                                        break;
+                                case 'u':
+                                        if (pos + 4 > text.length()) {
+                                                throw new IllegalArgumentException("Bad JSON escape at offset " + pos);
+                                        }
+                                        s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                                        pos += 4;
+                                        break;
+                                default:
+                                        s.append(e);
+                                }
+                        }
+                }
+        }
+}
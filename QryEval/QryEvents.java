@@ -0,0 +1,137 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for query evaluation, so that a recording
+ * (e.g., java -XX:StartFlightRecording:filename=run.jfr QryEval ...)
+ * shows which queries, posting lists, term vectors, feature extraction,
+ * re-ranking and diversification the time and allocation went to.
+ * <p>
+ * Events are created, begun and committed by the code that they
+ * describe.  When JFR is not recording, shouldCommit is false, and the
+ * event fields are not filled in.
+ * </p>
+ */
+public class QryEvents {
+
+        private static final String CATEGORY = "QryEval";
+
+        @Name("qryeval.QueryEvaluated")
+        @Label("Query Evaluated")
+        @Category(CATEGORY)
+        @Description("A query evaluated as the parameters specify: plain, prf or diversity")
+        @StackTrace(false)
+        public static class QueryEvaluated extends Event {
+                @Label("Query Id")
+                String qid;
+                @Label("Query")
+                String query;
+                @Label("Retrieval Model")
+                String model;
+                @Label("Mode")
+                String mode;
+                @Label("Results")
+                int results;
+        }
+
+        @Name("qryeval.QueryInitialized")
+        @Label("Query Initialized")
+        @Category(CATEGORY)
+        @Description("A query tree initialized: its inverted list operators evaluated")
+        @StackTrace(false)
+        public static class QueryInitialized extends Event {
+                @Label("Query Id")
+                String qid;
+                @Label("Query")
+                String query;
+        }
+
+        @Name("qryeval.PostingListLoaded")
+        @Label("Posting List Loaded")
+        @Category(CATEGORY)
+        @Description("The inverted list of a term read from the Lucene index")
+        @StackTrace(false)
+        public static class PostingListLoaded extends Event {
+                @Label("Term")
+                String term;
+                @Label("Field")
+                String field;
+                @Label("Document Frequency")
+                int df;
+                @Label("Collection Term Frequency")
+                long ctf;
+                @Label("Estimated Size")
+                @Description("Estimated heap size of the postings and positions")
+                @DataAmount
+                long bytes;
+        }
+
+        @Name("qryeval.TermVectorDecoded")
+        @Label("Term Vector Decoded")
+        @Category(CATEGORY)
+        @Description("The term vector of a document field read from Lucene or a forward index")
+        @StackTrace(false)
+        public static class TermVectorDecoded extends Event {
+                @Label("Docid")
+                int docid;
+                @Label("Field")
+                String field;
+                @Label("Terms")
+                int terms;
+                @Label("Field Length")
+                int fieldLength;
+                @Label("Forward Index")
+                boolean forwardIndex;
+        }
+
+        @Name("qryeval.FeatureExtraction")
+        @Label("Feature Extraction")
+        @Category(CATEGORY)
+        @Description("Learning to rank feature vectors built for the documents of a query")
+        @StackTrace(false)
+        public static class FeatureExtraction extends Event {
+                @Label("Query Id")
+                int qid;
+                @Label("Documents")
+                int documents;
+                @Label("Training")
+                boolean training;
+        }
+
+        @Name("qryeval.Rerank")
+        @Label("Rerank")
+        @Category(CATEGORY)
+        @Description("The documents of a query re-ranked by a learning to rank model")
+        @StackTrace(false)
+        public static class Rerank extends Event {
+                @Label("Query Id")
+                int qid;
+                @Label("Toolkit")
+                String toolkit;
+                @Label("In Process")
+                boolean inProcess;
+                @Label("Documents")
+                int documents;
+        }
+
+        @Name("qryeval.DiversifiedRanking")
+        @Label("Diversified Ranking")
+        @Category(CATEGORY)
+        @Description("A diversified ranking produced from a query's and its intents' rankings")
+        @StackTrace(false)
+        public static class DiversifiedRanking extends Event {
+                @Label("Query Id")
+                String qid;
+                @Label("Algorithm")
+                String algorithm;
+                @Label("Intents")
+                int intents;
+                @Label("Results")
+                int results;
+        }
+}
@@ -53,6 +53,12 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  True if initialize keeps the inverted list instead of evaluating
+   *  the operator again.
+   */
+  private boolean reuseInvertedList = false;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -70,10 +76,16 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
+    int start = this.docIteratorIndex;
+
     while ((this.docIteratorIndex < this.invertedList.df) &&
            (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
       this.docIteratorIndex ++;
     }
+
+    if (this.stats != null) {
+      this.stats.postingsAdvanced += this.docIteratorIndex - start;
+    }
            
     this.locIteratorIndex = 0;
   }
@@ -85,10 +97,16 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
+    int start = this.docIteratorIndex;
+
     while ((this.docIteratorIndex < this.invertedList.df) &&
            (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
       this.docIteratorIndex ++;
     }
+
+    if (this.stats != null) {
+      this.stats.postingsAdvanced += this.docIteratorIndex - start;
+    }
            
     this.locIteratorIndex = 0;
   }
@@ -158,6 +176,45 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Keep the inverted list of this evaluated operator the next times
+   *  it is initialized, instead of evaluating it again, e.g., when an
+   *  expanded query contains the original query.  The operator must be
+   *  initialized with a context on the same index.
+   *  @throws IllegalStateException the operator has no inverted list
+   */
+  public void reuseInvertedList () {
+    if (this.invertedList == null) {
+      throw new IllegalStateException ("Can't reuse the inverted list of " + this +
+                                       "; it has not been evaluated.");
+    }
+    this.reuseInvertedList = true;
+  }
+
+  /**
+   *  @return true if initialize keeps this operator's inverted list
+   */
+  public boolean reusesInvertedList () {
+    return this.reuseInvertedList;
+  }
+
+  /**
+   *  Keep the inverted lists of the evaluated operators of a query tree
+   *  the next times it is initialized (see reuseInvertedList).  The
+   *  arguments of a reused operator are not initialized again, so they
+   *  are not marked.
+   *  @param q A query tree.
+   */
+  public static void reuseInvertedLists (Qry q) {
+    if ((q instanceof QryIop) && (((QryIop) q).invertedList != null)) {
+      ((QryIop) q).reuseInvertedList ();
+      return;
+    }
+    for (Qry q_i: q.args) {
+      reuseInvertedLists (q_i);
+    }
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -168,25 +225,43 @@ public abstract class QryIop extends Qry {
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
-   *  can begin.
+   *  can begin.  The operator is evaluated again unless the caller
+   *  asked to reuse its inverted list (see reuseInvertedList and
+   *  QryIopTerm.shareInvertedList); then only its iterators are reset.
+   *  @param ctx The context to evaluate the query operator in
    *  @param r A retrieval model (that is ignored)
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(SearchContext ctx, RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    long start = (this.stats != null) ? System.nanoTime () : 0L;
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
-    }
+    this.ctx = ctx;
+
+    if (! this.reuseInvertedList) {
+
+      //  Initialize the query arguments (if any).
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).initialize (ctx, r);
+      }
 
-    //  Evaluate the operator.
+      //  Evaluate the operator.
     
-    this.evaluate ();
+      long evaluateStart = (this.stats != null) ? System.nanoTime () : 0L;
+      this.evaluate ();
+      if (this.stats != null) {
+        this.stats.evaluateNanos += System.nanoTime () - evaluateStart;
+      }
+    }
 
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+
+    if (this.stats != null) {
+      this.stats.initializeNanos += System.nanoTime () - start;
+    }
   }
   
  /**
@@ -35,13 +35,39 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Use the inverted list of an equivalent, already evaluated TERM
+   *  operator (same term and field), so that this operator is not
+   *  evaluated again.  Inverted lists are not modified by iteration,
+   *  so they can be shared.
+   *  @param q An evaluated TERM operator.
+   *  @throws IllegalArgumentException q is not equivalent or not evaluated
+   */
+  public void shareInvertedList (QryIopTerm q) {
+    if (! (this.term.equals (q.term) && this.field.equals (q.field)) ||
+        (q.invertedList == null)) {
+      throw new IllegalArgumentException
+        ("Can't share the inverted list of " + q);
+    }
+    this.invertedList = q.invertedList;
+    this.reuseInvertedList ();
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.invertedList = this.ctx.getInvertedList (this.term, this.field);
   }
 
   /**
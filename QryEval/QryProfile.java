@@ -0,0 +1,202 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Optional per-operator profiling of query evaluation.  When profiling
+ * is enabled, every operator of a query tree gets a Stats object that
+ * counts the time spent initializing it (and, for inverted list
+ * operators, evaluating it), the documents it matched, the postings
+ * its iterator advanced over, and the scores and default scores it
+ * computed.  After the query is evaluated, its profile tree is printed,
+ * or written as one JSON object per line.
+ * <p>
+ * Parameters:
+ * </p>
+ * <pre>
+ *   profile=text|json     enable profiling (true is the same as text)
+ *   profile:file=PATH     write profiles to PATH instead of stdout
+ * </pre>
+ * <p>
+ * When profiling is disabled, operators have no Stats object, so the
+ * cost is a null check at each counted step.
+ * </p>
+ */
+public class QryProfile {
+
+        /**
+         * Counters of one query operator.
+         */
+        public static class Stats {
+                long initializeNanos = 0;
+                long evaluateNanos = 0;
+                long docsMatched = 0;
+                long postingsAdvanced = 0;
+                long scores = 0;
+                long defaultScores = 0;
+                /**
+                 * The last document matched, so that a match is counted once.
+                 */
+                int lastMatch = Qry.INVALID_DOCID;
+        }
+
+        private static volatile boolean enabled = false;
+        private static boolean json = false;
+        private static PrintWriter output = null;
+
+        private final SearchContext ctx;
+        private final Qry q;
+        private final long start;
+        private long initialized;
+
+        private QryProfile(SearchContext ctx, Qry q) {
+                this.ctx = ctx;
+                this.q = q;
+                attach(q);
+                start = System.nanoTime();
+        }
+
+        /**
+         * Configure profiling as the parameters specify.
+         * @param parameters the parameters
+         * @throws IOException Error opening profile:file
+         */
+        public static synchronized void configure(Map<String, String> parameters) throws IOException {
+                String mode = parameters.get("profile");
+                if (mode == null || mode.toLowerCase().equals("false")) {
+                        return;
+                }
+                mode = mode.toLowerCase();
+                if (!(mode.equals("text") || mode.equals("true") || mode.equals("json"))) {
+                        throw new IllegalArgumentException("Unknown profile mode " + mode + "; use text or json.");
+                }
+                json = mode.equals("json");
+                if (output != null) {
+                        output.close();
+                }
+                output = parameters.containsKey("profile:file")
+                        ? new PrintWriter(new FileWriter(parameters.get("profile:file")))
+                        : new PrintWriter(System.out);
+                enabled = true;
+        }
+
+        /**
+         * Start profiling a query, if profiling is enabled.  Call this
+         * before the query is initialized.
+         * @param ctx the request context
+         * @param q the query
+         * @return the profile, or null if profiling is disabled
+         */
+        public static QryProfile start(SearchContext ctx, Qry q) {
+                return enabled ? new QryProfile(ctx, q) : null;
+        }
+
+        /**
+         * Give every operator new counters.  An operator may be profiled
+         * again (e.g., the original query, as part of an expanded query).
+         */
+        private static void attach(Qry q) {
+                q.stats = new Stats();
+                for (Qry q_i: q.args) {
+                        attach(q_i);
+                }
+        }
+
+        /**
+         * Record that the query is initialized and iteration begins.
+         */
+        public void initialized() {
+                initialized = System.nanoTime();
+        }
+
+        /**
+         * Finish profiling the query and report its profile.
+         * @param numResults the number of results
+         */
+        public void finish(int numResults) {
+                long end = System.nanoTime();
+                String qid = ctx.getQueryId();
+                StringBuilder s = new StringBuilder(1024);
+                if (json) {
+                        s.append("{\"qid\":");
+                        Utils.appendJsonString(s, qid);
+                        s.append(",\"query\":");
+                        Utils.appendJsonString(s, q.toString());
+                        s.append(",\"initializeMs\":").append(ms(initialized - start));
+                        s.append(",\"iterateMs\":").append(ms(end - initialized));
+                        s.append(",\"results\":").append(numResults);
+                        s.append(",\"tree\":");
+                        appendJson(s, q);
+                        s.append('}');
+                } else {
+                        s.append("Profile of query ").append(qid == null ? "" : qid + " ")
+                                .append(ms(end - start)).append(" ms (initialize ").append(ms(initialized - start))
+                                .append(" ms, iterate ").append(ms(end - initialized)).append(" ms), ")
+                                .append(numResults).append(" results\n");
+                        appendText(s, q, 1);
+                }
+                synchronized (QryProfile.class) {
+                        output.println(s);
+                        output.flush();
+                }
+        }
+
+        private static String label(Qry q) {
+                return (q instanceof QryIopTerm) ? q.toString() : q.getDisplayName();
+        }
+
+        private static void appendText(StringBuilder s, Qry q, int depth) {
+                Stats st = q.stats;
+                int start = s.length();
+                for (int i = 0; i < depth; i++) {
+                        s.append("  ");
+                }
+                s.append(label(q));
+                while (s.length() - start < 32) {
+                        s.append(' ');
+                }
+                s.append(String.format(Locale.ROOT, " init %8s ms", ms(st.initializeNanos)));
+                if (q instanceof QryIop) {
+                        s.append(String.format(Locale.ROOT, "  eval %8s ms  advanced %9d", ms(st.evaluateNanos), st.postingsAdvanced));
+                } else {
+                        s.append(String.format(Locale.ROOT, "  matched %9d  scores %9d  default %9d",
+                                               st.docsMatched, st.scores, st.defaultScores));
+                }
+                s.append('\n');
+                for (Qry q_i: q.args) {
+                        appendText(s, q_i, depth + 1);
+                }
+        }
+
+        private static void appendJson(StringBuilder s, Qry q) {
+                Stats st = q.stats;
+                s.append("{\"op\":");
+                Utils.appendJsonString(s, label(q));
+                s.append(",\"initializeMs\":").append(ms(st.initializeNanos));
+                if (q instanceof QryIop) {
+                        s.append(",\"evaluateMs\":").append(ms(st.evaluateNanos));
+                        s.append(",\"postingsAdvanced\":").append(st.postingsAdvanced);
+                } else {
+                        s.append(",\"docsMatched\":").append(st.docsMatched);
+                        s.append(",\"scores\":").append(st.scores);
+                        s.append(",\"defaultScores\":").append(st.defaultScores);
+                }
+                if (!q.args.isEmpty()) {
+                        s.append(",\"args\":[");
+                        for (int i = 0; i < q.args.size(); i++) {
+                                if (i > 0) {
+                                        s.append(',');
+                                }
+                                appendJson(s, q.args.get(i));
+                        }
+                        s.append(']');
+                }
+                s.append('}');
+        }
+
+        private static String ms(long nanos) {
+                return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+}
@@ -45,12 +45,24 @@ public abstract class QrySop extends Qry {
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
+   *  @param ctx The context to evaluate the query operator in
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(SearchContext ctx, RetrievalModel r) throws IOException {
+    long start = (this.stats != null) ? System.nanoTime () : 0L;
+    this.ctx = ctx;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (ctx, r);
+    }
+
+    //  The operator may be reinitialized to evaluate it again (e.g., as
+    //  part of an expanded query), so forget any earlier match.
+
+    this.docIteratorClearMatchCache ();
+
+    if (this.stats != null) {
+      this.stats.initializeNanos += System.nanoTime () - start;
     }
   }
 }
@@ -24,6 +24,10 @@ public class QrySopAnd extends QrySop {
          */
         public double getScore (RetrievalModel r) throws IOException {
 
+                if (this.stats != null) {
+                        this.stats.scores++;
+                }
+
                 if (r instanceof RetrievalModelUnrankedBoolean) {
                         return this.getScoreUnrankedBoolean (r);
                 } else if (r instanceof RetrievalModelRankedBoolean) {
@@ -47,6 +51,10 @@ public class QrySopAnd extends QrySop {
          */
         @Override
         public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+                if (this.stats != null) {
+                        this.stats.defaultScores++;
+                }
+
                 double score = 1.0;
                 for (int i = 0; i < this.args.size(); i++) {
                         QrySop q_i = (QrySop) this.args.get(i);
@@ -26,6 +26,10 @@ public class QrySopOr extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
+    if (this.stats != null) {
+      this.stats.scores ++;
+    }
+
     if (r instanceof RetrievalModelUnrankedBoolean) {
       return this.getScoreUnrankedBoolean (r);
     } else if (r instanceof RetrievalModelRankedBoolean) {
@@ -45,6 +49,10 @@ public class QrySopOr extends QrySop {
    */
   @Override
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+    if (this.stats != null) {
+      this.stats.defaultScores ++;
+    }
+
     double score = 0.0;
     double geometricMean = 1.0;
     for (int i = 0; i < this.args.size(); i++) {
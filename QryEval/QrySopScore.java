@@ -32,6 +32,10 @@ public class QrySopScore extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
+    if (this.stats != null) {
+      this.stats.scores ++;
+    }
+
     if (r instanceof RetrievalModelUnrankedBoolean) {
       return this.getScoreUnrankedBoolean (r);
     } else if (r instanceof RetrievalModelRankedBoolean) {
@@ -82,13 +86,13 @@ public class QrySopScore extends QrySop {
     QryIop q = this.getArg(0);
     double tf = (double)q.docIteratorGetMatchPosting().tf;
     double b = ((RetrievalModelBM25)r).getB();
-    double doclen = (double)Idx.getFieldLength(q.getField(), q.docIteratorGetMatch());
-    double avg_doclen = (double)Idx.getSumOfFieldLengths(q.getField()) / (double)Idx.getDocCount(q.getField());
+    double doclen = (double)this.ctx.getFieldLength(q.getField(), q.docIteratorGetMatch());
+    double avg_doclen = (double)this.ctx.getSumOfFieldLengths(q.getField()) / (double)this.ctx.getDocCount(q.getField());
     // calculate tf weight
     double tfWeight = tf / (tf + k_1 * ((1 - b) + b * doclen / avg_doclen));
 
     // calculate RSJ weight (idf)
-    long N = Idx.getNumDocs();
+    long N = this.ctx.getNumDocs();
     int df = q.getDf();
     double idf = Math.max(0.0, Math.log(((double)N - (double)df + 0.5) / ((double)df + 0.5)));
 
@@ -108,11 +112,11 @@ public class QrySopScore extends QrySop {
       double lambda = ((RetrievalModelIndri)r).getLambda();
       QryIop q = (this.getArg(0));
       double tf = (double)q.docIteratorGetMatchPosting().tf;
-      double doclen = (double)Idx.getFieldLength(q.getField(), q.docIteratorGetMatch());
+      double doclen = (double)this.ctx.getFieldLength(q.getField(), q.docIteratorGetMatch());
 
       // get MLE
       double ctf_qi = q.invertedList.ctf;
-      double lengthC = (double)Idx.getSumOfFieldLengths(q.getField());
+      double lengthC = (double)this.ctx.getSumOfFieldLengths(q.getField());
       double MLE = ctf_qi / lengthC;
 
       // use two-stage smoothing to compute term weights
@@ -132,14 +136,18 @@ public class QrySopScore extends QrySop {
    * @throws IOException Error accessing the Lucene index
    */
   public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    if (this.stats != null) {
+      this.stats.defaultScores ++;
+    }
+
     double mu = ((RetrievalModelIndri)r).getMu();
     double lambda = ((RetrievalModelIndri)r).getLambda();
     QryIop q = (this.getArg(0));
-    double doclen = (double)Idx.getFieldLength(q.getField(), (int)docid);
+    double doclen = (double)this.ctx.getFieldLength(q.getField(), (int)docid);
 
     // get MLE
     double ctf_qi = q.invertedList.ctf;
-    double lengthC = (double)Idx.getSumOfFieldLengths(q.getField());
+    double lengthC = (double)this.ctx.getSumOfFieldLengths(q.getField());
     double MLE = ctf_qi / lengthC;
 
     // use two-stage smoothing to compute term weights
@@ -154,13 +162,21 @@ public class QrySopScore extends QrySop {
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
+   *  @param ctx The context to evaluate the query operator in
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize (RetrievalModel r) throws IOException {
+  public void initialize (SearchContext ctx, RetrievalModel r) throws IOException {
 
+    long start = (this.stats != null) ? System.nanoTime () : 0L;
+    this.ctx = ctx;
     Qry q = this.args.get (0);
-    q.initialize (r);
+    q.initialize (ctx, r);
+    this.docIteratorClearMatchCache ();
+
+    if (this.stats != null) {
+      this.stats.initializeNanos += System.nanoTime () - start;
+    }
 
     /*
      *  STUDENTS:: In HW2 during query initialization you may find it
@@ -23,6 +23,10 @@ public class QrySopSum extends QrySop {
          */
         @Override
         public double getScore(RetrievalModel r) throws IOException {
+                if (this.stats != null) {
+                        this.stats.scores++;
+                }
+
                 if (r instanceof RetrievalModelBM25) {
                         return this.getScoreBM25 (r);
                 } else {
@@ -60,14 +64,18 @@ public class QrySopSum extends QrySop {
          */
         @Override
         public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+                if (this.stats != null) {
+                        this.stats.defaultScores++;
+                }
+
                 double mu = ((RetrievalModelIndri)r).getMu();
                 double lambda = ((RetrievalModelIndri)r).getLambda();
                 QryIop q = (this.getArg(0));
-                double doclen = (double)Idx.getFieldLength(q.getField(), q.docIteratorGetMatch());
+                double doclen = (double)this.ctx.getFieldLength(q.getField(), q.docIteratorGetMatch());
 
                 // get MLE
                 double ctf_qi = q.invertedList.ctf;
-                double lengthC = (double)Idx.getSumOfFieldLengths(q.getField());
+                double lengthC = (double)this.ctx.getSumOfFieldLengths(q.getField());
                 double MLE = ctf_qi / lengthC;
 
                 // use two-stage smoothing to compute term weights
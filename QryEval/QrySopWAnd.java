@@ -44,6 +44,18 @@ public class QrySopWAnd extends QrySop {
         }
 
 
+        /**
+         * Append a weighted argument.  This is used to build a query tree
+         * directly, without formatting and parsing a query string.
+         * @param weight the argument's weight
+         * @param q the argument; a QryIop argument gets an implied #SCORE operator
+         */
+        public void appendWeightedArg(double weight, Qry q) {
+                addWeight(weight);
+                appendArg(q);
+        }
+
+
         /**
          *  Get a score for the document that docIteratorHasMatch matched.
          *  @param r The retrieval model that determines how scores are calculated.
@@ -52,6 +64,10 @@ public class QrySopWAnd extends QrySop {
          */
         @Override
         public double getScore(RetrievalModel r) throws IOException {
+                if (this.stats != null) {
+                        this.stats.scores++;
+                }
+
                 if (r instanceof RetrievalModelIndri) {
                         return getScoreIndri(r);
                 } else {
@@ -101,6 +117,10 @@ public class QrySopWAnd extends QrySop {
          */
         @Override
         public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+                if (this.stats != null) {
+                        this.stats.defaultScores++;
+                }
+
                 double geometricMean = 1.0;
                 double sumWeight = this.sumWeight;
                 for (int i = 0; i < this.args.size(); i++) {
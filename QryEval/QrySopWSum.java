@@ -45,6 +45,10 @@ public class QrySopWSum extends  QrySop {
          */
         public double getScore (RetrievalModel r) throws IOException {
 
+                if (this.stats != null) {
+                        this.stats.scores++;
+                }
+
                 if (r instanceof RetrievalModelBM25) {
                         return this.getScoreBM25(r);
                 } else if (r instanceof RetrievalModelIndri) {
@@ -121,6 +125,10 @@ public class QrySopWSum extends  QrySop {
          */
         @Override
         public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+                if (this.stats != null) {
+                        this.stats.defaultScores++;
+                }
+
                 double sum = 0;
                 for (int i = 0; i < this.args.size(); i++) {
                         QrySop q_i = (QrySop) this.args.get(i);
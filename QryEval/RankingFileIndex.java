@@ -0,0 +1,375 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * A document ranking file in trec_eval input format, e.g., a
+ * prf:initialRankingFile or diversity:initialRankingFile, parsed once
+ * per run and indexed by query id, so that looking up the ranking of a
+ * query reads only that query's rows.
+ * <pre>
+ *   QueryID Q0 DocID Rank Score RunID
+ * </pre>
+ * <p>
+ * Query ids may have an intent suffix (e.g., 12.3).  Rows are grouped
+ * by the query id before the '.', in file order.  External document ids
+ * are converted to internal docids only for the rows of a query that is
+ * looked up, once per index.
+ * </p>
+ * <p>
+ * Optionally (parameter "initialRankingCache=true") the parsed rows
+ * are saved in a binary cache next to the file, FILE.idx, which later
+ * runs load instead of parsing the text.  The cache records the length
+ * and modification time of the file and is ignored if either changes.
+ * </p>
+ * <pre>
+ *   header:  magic (int), file length (long), file modification time (long), numRows (int)
+ *   row:     query (UTF), externalId (UTF), score (double)
+ * </pre>
+ */
+public class RankingFileIndex {
+
+        private static final int MAGIC = 0x52464931;
+        private static final String CACHE_SUFFIX = ".idx";
+
+        /**
+         * Ranking files that are already loaded, by file name.
+         */
+        private static final Map<String, RankingFileIndex> LOADED = new ConcurrentHashMap<>();
+
+        /**
+         * The rows of one query id (before the '.'), in file order.
+         */
+        private static class Group {
+                private int size = 0;
+                private int[] rows = new int[8];
+                private String[] queries = new String[8];
+                private String[] externalIds = new String[8];
+                private double[] scores = new double[8];
+                /**
+                 * Internal docids of the rows, and the index they are from.
+                 */
+                private int[] docids = null;
+                private IndexReader docidsReader = null;
+
+                private void add(int row, String query, String externalId, double score) {
+                        if (size == rows.length) {
+                                int n = 2 * size;
+                                rows = Arrays.copyOf(rows, n);
+                                queries = Arrays.copyOf(queries, n);
+                                externalIds = Arrays.copyOf(externalIds, n);
+                                scores = Arrays.copyOf(scores, n);
+                        }
+                        rows[size] = row;
+                        queries[size] = query;
+                        externalIds[size] = externalId;
+                        scores[size] = score;
+                        size++;
+                }
+
+                private synchronized int[] getDocids(SearchContext ctx) throws Exception {
+                        if (docids == null || docidsReader != ctx.getReader()) {
+                                int[] d = new int[size];
+                                for (int i = 0; i < size; i++) {
+                                        d[i] = ctx.getInternalDocid(externalIds[i]);
+                                }
+                                docids = d;
+                                docidsReader = ctx.getReader();
+                        }
+                        return docids;
+                }
+        }
+
+        private final Map<String, Group> groups = new HashMap<>();
+        /**
+         * Group keys that are integers, by their value (e.g., "012" -> 12).
+         */
+        private final Map<Integer, List<String>> groupsByQid = new HashMap<>();
+        private int numRows = 0;
+
+        private RankingFileIndex() {
+        }
+
+        /**
+         * Get the index of a ranking file, parsing the file (or loading
+         * its cache) the first time it is used in this run.
+         * @param fileName ranking file
+         * @param useCache if true, load FILE.idx if it is valid, and write it if it is not
+         * @return the index
+         * @throws IOException Error reading the file
+         */
+        public static RankingFileIndex get(String fileName, boolean useCache) throws IOException {
+                RankingFileIndex index = LOADED.get(fileName);
+                if (index == null) {
+                        synchronized (LOADED) {
+                                index = LOADED.get(fileName);
+                                if (index == null) {
+                                        index = load(fileName, useCache);
+                                        LOADED.put(fileName, index);
+                                }
+                        }
+                }
+                return index;
+        }
+
+        private static RankingFileIndex load(String fileName, boolean useCache) throws IOException {
+                File f = new File(fileName);
+                if (!f.canRead()) {
+                        throw new IllegalArgumentException("Can't read " + fileName);
+                }
+                File cache = new File(fileName + CACHE_SUFFIX);
+                RankingFileIndex index = null;
+                if (useCache && cache.canRead()) {
+                        index = readCache(cache, f);
+                }
+                if (index == null) {
+                        index = parse(f);
+                        if (useCache) {
+                                index.writeCache(cache, f);
+                        }
+                }
+                System.out.println("Ranking file " + fileName + ": " + index.numRows + " rows, " + index.groups.size() + " queries");
+                return index;
+        }
+
+        /**
+         * Parse a ranking file.  Fields are separated by runs of spaces or
+         * tabs; only the query id, document id and score are used.
+         * @param f ranking file
+         * @return the index
+         * @throws IOException Error reading the file
+         */
+        private static RankingFileIndex parse(File f) throws IOException {
+                RankingFileIndex index = new RankingFileIndex();
+                int[] start = new int[5];
+                int[] end = new int[5];
+                try (BufferedReader input = new BufferedReader(new FileReader(f), 1 << 16)) {
+                        String line;
+                        int lineNo = 0;
+                        while ((line = input.readLine()) != null) {
+                                lineNo++;
+                                int n = splitFields(line, start, end);
+                                if (n == 0) {
+                                        continue;
+                                }
+                                if (n < 5) {
+                                        throw new IllegalArgumentException("Syntax error in " + f + " line " + lineNo + ": " + line);
+                                }
+                                index.add(line.substring(start[0], end[0]),
+                                          line.substring(start[2], end[2]),
+                                          Double.parseDouble(line.substring(start[4], end[4])));
+                        }
+                }
+                return index;
+        }
+
+        /**
+         * Find the first fields of a line without creating substrings.
+         * @param line the line
+         * @param start receives the start of each field
+         * @param end receives the end of each field
+         * @return the number of fields found, at most start.length
+         */
+        private static int splitFields(String line, int[] start, int[] end) {
+                int n = 0;
+                int i = 0;
+                int len = line.length();
+                while (n < start.length) {
+                        while (i < len && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+                                i++;
+                        }
+                        if (i == len) {
+                                break;
+                        }
+                        start[n] = i;
+                        while (i < len && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+                                i++;
+                        }
+                        end[n++] = i;
+                }
+                return n;
+        }
+
+        private void add(String query, String externalId, double score) {
+                int dot = query.indexOf('.');
+                String key = (dot < 0) ? query : query.substring(0, dot);
+                Group g = groups.get(key);
+                if (g == null) {
+                        g = new Group();
+                        groups.put(key, g);
+                        try {
+                                Integer qid = Integer.parseInt(key);
+                                List<String> keys = groupsByQid.get(qid);
+                                if (keys == null) {
+                                        keys = new ArrayList<>(1);
+                                        groupsByQid.put(qid, keys);
+                                }
+                                keys.add(key);
+                        } catch (NumberFormatException e) {
+                                // Not an integer query id; only found by exact match.
+                        }
+                }
+                g.add(numRows++, query, externalId, score);
+        }
+
+        /**
+         * Load a binary cache of a ranking file.
+         * @param cache cache file
+         * @param f ranking file
+         * @return the index, or null if the cache is not valid for the file
+         * @throws IOException Error reading the cache
+         */
+        private static RankingFileIndex readCache(File cache, File f) throws IOException {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache), 1 << 16))) {
+                        if (in.readInt() != MAGIC || in.readLong() != f.length() || in.readLong() != f.lastModified()) {
+                                System.out.println("Ranking cache " + cache + " is out of date; ignoring it.");
+                                return null;
+                        }
+                        RankingFileIndex index = new RankingFileIndex();
+                        int n = in.readInt();
+                        for (int i = 0; i < n; i++) {
+                                String query = in.readUTF();
+                                String externalId = in.readUTF();
+                                index.add(query, externalId, in.readDouble());
+                        }
+                        return index;
+                } catch (EOFException e) {
+                        System.out.println("Ranking cache " + cache + " is truncated; ignoring it.");
+                        return null;
+                }
+        }
+
+        /**
+         * Write the binary cache of a ranking file.  It is written to a
+         * temporary file and renamed, so a failed write leaves no cache.
+         * @param cache cache file
+         * @param f ranking file
+         * @throws IOException Error writing the cache
+         */
+        private void writeCache(File cache, File f) throws IOException {
+                String[] queries = new String[numRows];
+                String[] externalIds = new String[numRows];
+                double[] scores = new double[numRows];
+                for (Group g: groups.values()) {
+                        for (int i = 0; i < g.size; i++) {
+                                queries[g.rows[i]] = g.queries[i];
+                                externalIds[g.rows[i]] = g.externalIds[i];
+                                scores[g.rows[i]] = g.scores[i];
+                        }
+                }
+                File tmp = new File(cache.getPath() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                        out.writeInt(MAGIC);
+                        out.writeLong(f.length());
+                        out.writeLong(f.lastModified());
+                        out.writeInt(numRows);
+                        for (int i = 0; i < numRows; i++) {
+                                out.writeUTF(queries[i]);
+                                out.writeUTF(externalIds[i]);
+                                out.writeDouble(scores[i]);
+                        }
+                }
+                if (!tmp.renameTo(cache)) {
+                        tmp.delete();
+                        System.out.println("Unable to write ranking cache " + cache);
+                }
+        }
+
+        /**
+         * Get the ranking of a query: the rows whose query id is exactly
+         * qid, in file order.
+         * @param ctx the request context
+         * @param qid query id
+         * @return the ranking; empty if the file has no rows for qid
+         * @throws Exception A document does not exist in the index
+         */
+        public ScoreList getRanking(SearchContext ctx, String qid) throws Exception {
+                ScoreList s = new ScoreList(ctx);
+                int dot = qid.indexOf('.');
+                Group g = groups.get((dot < 0) ? qid : qid.substring(0, dot));
+                if (g == null) {
+                        return s;
+                }
+                int[] docids = null;
+                for (int i = 0; i < g.size; i++) {
+                        if (qid.equals(g.queries[i])) {
+                                if (docids == null) {
+                                        docids = g.getDocids(ctx);
+                                }
+                                s.add(docids[i], g.scores[i]);
+                        }
+                }
+                return s;
+        }
+
+        /**
+         * Get the rankings of a query and its intents.  Rows for query
+         * id qid are the query's ranking and rows for qid.i are intent
+         * i's ranking.  A ranking is started the first time a query or
+         * intent is seen, in file order, so intents are expected to
+         * appear in order.
+         * @param ctx the request context
+         * @param qid query id
+         * @return the query's ranking followed by its intents' rankings
+         * @throws Exception A document does not exist in the index
+         */
+        public List<ScoreList> getIntentRankings(SearchContext ctx, int qid) throws Exception {
+                List<ScoreList> rankings = new ArrayList<>();
+                List<String> keys = groupsByQid.get(qid);
+                if (keys == null) {
+                        return rankings;
+                }
+
+                //  Usually one group; merge several (e.g., "12" and "012") by row.
+
+                int numGroups = keys.size();
+                Group[] g = new Group[numGroups];
+                int[][] docids = new int[numGroups][];
+                int[] next = new int[numGroups];
+                for (int k = 0; k < numGroups; k++) {
+                        g[k] = groups.get(keys.get(k));
+                        docids[k] = g[k].getDocids(ctx);
+                }
+                while (true) {
+                        int best = -1;
+                        for (int k = 0; k < numGroups; k++) {
+                                if (next[k] < g[k].size &&
+                                    (best < 0 || g[k].rows[next[k]] < g[best].rows[next[best]])) {
+                                        best = k;
+                                }
+                        }
+                        if (best < 0) {
+                                break;
+                        }
+                        int i = next[best]++;
+                        String query = g[best].queries[i];
+                        int dot = query.indexOf('.');
+                        int intent = (dot < 0) ? 0 : Integer.parseInt(query.substring(dot + 1));
+                        ScoreList s;
+                        if (intent < rankings.size()) {
+                                s = rankings.get(intent);
+                        } else {
+                                s = new ScoreList(ctx);
+                                rankings.add(s);
+                        }
+                        s.add(docids[best][i], g[best].scores[i]);
+                }
+                return rankings;
+        }
+}
@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+/**
+ * Collects the <docid, score> matches of a query as it is evaluated,
+ * and produces its sorted results.  QryEval.processQuery either keeps
+ * every match or, with a TopKCollector, only the best k.
+ */
+public interface ResultCollector {
+
+        /**
+         * Offer a match.
+         * @param docid internal document id
+         * @param score the document's score
+         * @throws IOException Error accessing the Lucene index
+         */
+        void collect(int docid, double score) throws IOException;
+
+        /**
+         * Get the collected matches.
+         * @return the results, sorted
+         * @throws IOException Error accessing the Lucene index
+         */
+        ScoreList getScoreList() throws IOException;
+}
@@ -0,0 +1,230 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Writes search results in trec_eval input format:
+ * <pre>
+ *   QueryID Q0 DocID Rank Score RunID
+ * </pre>
+ * The output file is opened once per run, for append, and lines are
+ * formatted into a reusable byte buffer that is written to a
+ * FileChannel when it fills and when the writer is flushed or closed.
+ * <p>
+ * The output is byte-for-byte the output of
+ * format("%s Q0 %s %d %.12f hw5\n", ...).  Scores are formatted without
+ * a Formatter when the result is certain to be the same: |score| &lt;
+ * 1000 and the score is not within rounding error of a tie at the 12th
+ * decimal.  Other scores (and all scores, if a startup check finds that
+ * this JVM formats differently) use String.format.
+ * </p>
+ */
+public class ResultWriter implements Closeable {
+
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final long SCALE = 1000000000000L;
+        private static final double FAST_PATH_LIMIT = 1000.0;
+        private static final String RUN_ID = "hw5";
+        private static final Charset CHARSET = Charset.defaultCharset();
+        private static final boolean FAST_PATH = checkFastPath();
+
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private byte[] digits = new byte[20];
+
+        private ResultWriter(FileChannel channel) {
+                this.channel = channel;
+        }
+
+        /**
+         * Open a result file for append.
+         * @param fileName the result file
+         * @return the writer
+         * @throws IOException Error opening the file
+         */
+        public static ResultWriter open(String fileName) throws IOException {
+                return new ResultWriter(FileChannel.open(Paths.get(fileName),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        }
+
+        /**
+         * Write the results of a query.
+         * @param queryName query id
+         * @param result results; the external ids come from the ScoreList
+         * @param outputLength the maximum number of results to write
+         * @param dummy the line to write if there are no results
+         * @throws IOException Error writing the file
+         */
+        public synchronized void write(String queryName, ScoreList result, int outputLength, String dummy) throws IOException {
+                if (result.size() < 1) {
+                        putString(dummy);
+                }
+                int printLength = Math.min(outputLength, result.size());
+                for (int i = 0; i < printLength; i++) {
+                        putString(queryName);
+                        putString(" Q0 ");
+                        putString(result.getExternalDocid(i));
+                        putByte((byte) ' ');
+                        putLong(i + 1);
+                        putByte((byte) ' ');
+                        putScore(result.getDocidScore(i));
+                        putByte((byte) ' ');
+                        putString(RUN_ID);
+                        putByte((byte) '\n');
+                }
+        }
+
+        /**
+         * Write the buffered lines to the file.
+         * @throws IOException Error writing the file
+         */
+        public synchronized void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                }
+                buffer.clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+                if (channel.isOpen()) {
+                        flush();
+                        channel.close();
+                }
+        }
+
+        private void ensureCapacity(int n) throws IOException {
+                if (buffer.remaining() < n) {
+                        flush();
+                        if (buffer.capacity() < n) {
+                                buffer = ByteBuffer.allocate(n);
+                        }
+                }
+        }
+
+        private void putByte(byte b) throws IOException {
+                ensureCapacity(1);
+                buffer.put(b);
+        }
+
+        private void putString(String s) throws IOException {
+                int n = s.length();
+                ensureCapacity(n);
+                for (int i = 0; i < n; i++) {
+                        char c = s.charAt(i);
+                        if (c >= 0x80) {
+                                //  Not ASCII; undo and encode the whole string.
+                                buffer.position(buffer.position() - i);
+                                byte[] bytes = s.getBytes(CHARSET);
+                                ensureCapacity(bytes.length);
+                                buffer.put(bytes);
+                                return;
+                        }
+                        buffer.put((byte) c);
+                }
+        }
+
+        /**
+         * Append the decimal digits of a non-negative long, zero-padded to
+         * a minimum width.
+         */
+        private void putDigits(long v, int width) throws IOException {
+                int n = 0;
+                do {
+                        digits[n++] = (byte) ('0' + (v % 10));
+                        v /= 10;
+                } while (v > 0);
+                while (n < width) {
+                        digits[n++] = '0';
+                }
+                ensureCapacity(n);
+                while (n > 0) {
+                        buffer.put(digits[--n]);
+                }
+        }
+
+        private void putLong(long v) throws IOException {
+                if (v < 0) {
+                        putString(String.valueOf(v));
+                        return;
+                }
+                putDigits(v, 1);
+        }
+
+        private void putScore(double score) throws IOException {
+                long units = FAST_PATH ? scaledScore(score) : -1;
+                if (units < 0) {
+                        putString(String.format("%.12f", score));
+                        return;
+                }
+                if (Double.doubleToRawLongBits(score) < 0) {
+                        putByte((byte) '-');
+                }
+                putDigits(units / SCALE, 1);
+                putByte((byte) '.');
+                putDigits(units % SCALE, 12);
+        }
+
+        /**
+         * |score| * 10^12, rounded half-up, if that is certainly how
+         * %.12f rounds it.  %.12f rounds the shortest decimal string of the
+         * double, which is within half an ulp of it; for |score| &lt; 1000
+         * that and the error of the multiplication are less than 0.125 in
+         * the scaled value, so only fractions near 0.5 are ambiguous.
+         * @param score a score
+         * @return the scaled, rounded magnitude, or -1 to use String.format
+         */
+        private static long scaledScore(double score) {
+                double x = Math.abs(score);
+                if (!(x < FAST_PATH_LIMIT)) {
+                        return -1;
+                }
+                double scaled = x * SCALE;
+                double floor = Math.floor(scaled);
+                double fraction = scaled - floor;
+                if (Math.abs(fraction - 0.5) < 0.25) {
+                        return -1;
+                }
+                return (long) floor + ((fraction > 0.5) ? 1 : 0);
+        }
+
+        /**
+         * Check the fast path against String.format on sample scores.
+         * @return true if the fast path may be used
+         */
+        private static boolean checkFastPath() {
+                Random random = new Random(1);
+                for (int i = 0; i < 2000; i++) {
+                        double score;
+                        switch (i % 4) {
+                        case 0:
+                                score = random.nextDouble();
+                                break;
+                        case 1:
+                                score = -Math.exp(-random.nextDouble() * 30);
+                                break;
+                        case 2:
+                                score = random.nextDouble() * FAST_PATH_LIMIT;
+                                break;
+                        default:
+                                score = Math.round(random.nextDouble() * 1e6) / 1e6;
+                        }
+                        long units = scaledScore(score);
+                        if (units < 0) {
+                                continue;
+                        }
+                        String fast = ((Double.doubleToRawLongBits(score) < 0) ? "-" : "")
+                                + (units / SCALE) + "." + String.format("%012d", units % SCALE);
+                        if (!fast.equals(String.format("%.12f", score))) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+}
@@ -16,4 +16,14 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Describe the model and its parameters, e.g., to identify results
+   *  that were computed with it.
+   *  @return The description.
+   */
+  @Override
+  public String toString () {
+    return getClass ().getSimpleName ();
+  }
+
 }
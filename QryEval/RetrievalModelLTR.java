@@ -1,14 +1,11 @@
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +18,10 @@ public class RetrievalModelLTR extends RetrievalModel {
                 return null;
         }
 
+        /**
+         * The index that the model ranks and reads features from.
+         */
+        private SearchContext index;
         /**
          * Use BM25 to get initial rankings.
          */
@@ -49,6 +50,18 @@ public class RetrievalModelLTR extends RetrievalModel {
          * The file of feature vectors that your software writes for the training queries.
          */
         private String trainingFeatureVectorsFile;
+        /**
+         * The number of features.
+         */
+        private static final int NUM_FEATURES = 20;
+        /**
+         * Optional cache of full feature vectors shared by runs with different featureDisable sets, or null.
+         */
+        private String featureCacheFile;
+        /**
+         * Optional binary copy of the training feature vectors, or null.
+         */
+        private String binaryFeatureVectorsFile;
         /**
          * The file where the learning toolkit saves the trained model.
          */
@@ -96,9 +109,14 @@ public class RetrievalModelLTR extends RetrievalModel {
          * SVM or RankLib
          */
         private String toolkit;
+        /**
+         * The feature registry; it computes the enabled features and profiles them.
+         */
+        private LtrFeatureExtractor extractor;
 
         // constructor
-        public RetrievalModelLTR(Map<String, String> parameters,
+        public RetrievalModelLTR(SearchContext index,
+                                 Map<String, String> parameters,
                                  String queryFilePath,
                                  String trainingQrelsFile,
                                  String trainingQueryFile,
@@ -114,12 +132,15 @@ public class RetrievalModelLTR extends RetrievalModel {
                                  String rankLibModel,
                                  String toolkit) {
 
+                this.index = index;
                 BM25 = new RetrievalModelBM25(Double.parseDouble(parameters.get("BM25:k_1")), Double.parseDouble(parameters.get("BM25:b")), Double.parseDouble(parameters.get("BM25:k_3")));
                 indri = new RetrievalModelIndri(Double.parseDouble(parameters.get("Indri:mu")), Double.parseDouble(parameters.get("Indri:lambda")));
                 this.queryFilePath = queryFilePath;
                 this.trainingQrelsFile = trainingQrelsFile;
                 this.trainingQueryFile = trainingQueryFile;
                 this.trainingFeatureVectorsFile = trainingFeatureVectorsFile;
+                this.binaryFeatureVectorsFile = parameters.get("ltr:binaryFeatureVectorsFile");
+                this.featureCacheFile = parameters.get("ltr:featureCacheFile");
                 this.modelFile = modelFile;
                 this.testingFeatureVectorsFile = testingFeatureVectorsFile;
                 this.testingDocumentScores = testingDocumentScores;
@@ -139,11 +160,12 @@ public class RetrievalModelLTR extends RetrievalModel {
                                 listDisable.add(curr);
                         }
                 }
-                for (int feature = 1; feature <= 20; feature++) {
+                for (int feature = 1; feature <= NUM_FEATURES; feature++) {
                         if (!listDisable.contains(feature)) {
                                 listAble.add(feature);
                         }
                 }
+                extractor = new LtrFeatureExtractor(index, registerFeatures(index.getStaticFeatures()), listDisable);
         }
 
         /**
@@ -207,64 +229,86 @@ public class RetrievalModelLTR extends RetrievalModel {
                         isRankLib = true;
                 }
 
-                String qLine = null;
-                //  Each pass of the loop processes one query.
-                while ((qLine = input.readLine()) != null) {
-                        System.out.println("Query " + qLine);
-                        String[] pair = qLine.split(":");
-
-                        if (pair.length != 2) {
-                                throw new IllegalArgumentException
-                                        ("Syntax error:  Each line must contain one ':'.");
-                        }
-                        qid = Integer.parseInt(pair[0]);
-                        query = pair[1];
-                        // use QryParser.tokenizeString to stop & stem the query
-                        String[] tokenizedString = QryParser.tokenizeString(query);
-
-                        // for each document d in the relevance judgements for training query q,
-                        // create an empty feature vector, read the PageRank and spam features from the index,
-                        // fetch the term vector for d, calculate other features for <q, d>
-                        Map<String, Integer> relJudgeMap = trainingQrels.get(qid);
-
-                        Map<String, List<Double>> features = new HashMap<>();
-                        // for later normalization used
-                        Double[] maxFeatures = new Double[20];
-                        Double[] minFeatures = new Double[20];
-                        Arrays.fill(maxFeatures, Double.MIN_VALUE);
-                        Arrays.fill(minFeatures, Double.MAX_VALUE);
-
-
-                        List<String> allKeys = new ArrayList<>();
-                        for (String key : relJudgeMap.keySet()) {
-                                allKeys.add(key);
-                        }
+                // feature matrices hold all features; featureDisable is applied
+                // as a column mask when they are written
+                int[] allFeatureIds = new int[NUM_FEATURES];
+                for (int i = 0; i < NUM_FEATURES; i++) {
+                        allFeatureIds[i] = i + 1;
+                }
+                int[] enabledColumns = new int[listAble.size()];
+                int[] enabledFeatureIds = new int[listAble.size()];
+                for (int i = 0; i < enabledColumns.length; i++) {
+                        enabledFeatureIds[i] = listAble.get(i);
+                        enabledColumns[i] = listAble.get(i) - 1;
+                }
+                FeatureCache featureCache = null;
+                if (featureCacheFile != null) {
+                        featureCache = new FeatureCache(featureCacheFile, FeatureCache.makeKey(parameters.get("indexPath"), BM25, indri), NUM_FEATURES);
+                }
+
+                double[] featureVector = new double[NUM_FEATURES];
 
-                        for (int i = 0; i < relJudgeMap.keySet().size(); i++) {
-                                String externalId = allKeys.get(i);
-                                int docid = Idx.getInternalDocid(externalId);
-                                List<Double> featureVector = new ArrayList<>();
-                                featureVector = combineFeatures(docid, tokenizedString);
-
-                                // get the maximum and minimum values for feature
-                                for (int cnt = 0; cnt < featureVector.size(); cnt++) {
-                                        Double curr = featureVector.get(cnt);
-                                        minFeatures[cnt] = Math.min(curr, minFeatures[cnt]);
-                                        maxFeatures[cnt] = Math.max(curr, maxFeatures[cnt]);
+                // feature vector files are opened once per run and written as a stream;
+                // each file is written in query order by its own writer thread.
+                // Resources are closed in reverse order, so each queue writes its
+                // pending vectors before its writer is closed.
+                String qLine = null;
+                try (FeatureVectorWriter trainWriter = FeatureVectorWriter.openText(trainingFeatureVectorsFile);
+                     FeatureVectorWriter binaryWriter = (binaryFeatureVectorsFile != null) ?
+                             FeatureVectorWriter.openBinary(binaryFeatureVectorsFile, enabledFeatureIds) : null;
+                     OutputQueue trainQueue = new OutputQueue("training-feature-writer");
+                     OutputQueue binaryQueue = (binaryWriter != null) ? new OutputQueue("binary-feature-writer") : null) {
+                        //  Each pass of the loop processes one query.
+                        while ((qLine = input.readLine()) != null) {
+                                System.out.println("Query " + qLine);
+                                String[] pair = qLine.split(":");
+
+                                if (pair.length != 2) {
+                                        throw new IllegalArgumentException
+                                                ("Syntax error:  Each line must contain one ':'.");
+                                }
+                                qid = Integer.parseInt(pair[0]);
+                                query = pair[1];
+                                // use QryParser.tokenizeString to stop & stem the query
+                                String[] tokenizedString = QryParser.tokenizeString(query);
+
+                                // for each document d in the relevance judgements for training query q,
+                                // create an empty feature vector, read the PageRank and spam features from the index,
+                                // fetch the term vector for d, calculate other features for <q, d>
+                                Map<String, Integer> relJudgeMap = trainingQrels.get(qid);
+
+                                QryEvents.FeatureExtraction event = new QryEvents.FeatureExtraction();
+                                event.begin();
+                                int queryHash = Arrays.hashCode(tokenizedString);
+                                LtrFeatureExtractor.Context context = extractor.startQuery(index, tokenizedString);
+                                FeatureMatrix features = new FeatureMatrix(qid, allFeatureIds, relJudgeMap.size());
+                                for (String externalId: relJudgeMap.keySet()) {
+                                        int docid = index.getInternalDocid(externalId);
+                                        extractFeatures(context, featureCache, qid, queryHash, docid, featureVector);
+                                        int relJud = Math.max(relJudgeMap.get(externalId), 0);
+                                        features.addRow(externalId, relJud, featureVector);
+                                }
+                                if (event.shouldCommit()) {
+                                        event.qid = qid;
+                                        event.documents = relJudgeMap.size();
+                                        event.training = true;
+                                        event.commit();
                                 }
-                                features.put(externalId, featureVector);
-                        }
 
-                        if (isSVMRank) {
-                                // // if toolkit is SVMrank, normalize the feature values for query q to [0..1]
-                                // identify the maximum and minimum values for that feature,
-                                // and then do standard [0..1] normalization
-                                // If the min and max are the same value, set the feature value to 0.
-                                SVMNormalization(maxFeatures, minFeatures, features);
+                                if (isSVMRank) {
+                                        // // if toolkit is SVMrank, normalize the feature values for query q to [0..1]
+                                        // identify the maximum and minimum values for that feature,
+                                        // and then do standard [0..1] normalization
+                                        // If the min and max are the same value, set the feature value to 0.
+                                        FeatureNormalizer.normalize(features);
+                                }
                                 // write the feature vectors to file
-                                writeFeatureVectors(relJudgeMap, allKeys, qid, features, trainingFeatureVectorsFile);
-                        } else if (isRankLib) {
-                                writeFeatureVectors(relJudgeMap, allKeys, qid, features, trainingFeatureVectorsFile);
+                                if (isSVMRank || isRankLib) {
+                                        trainQueue.submit(() -> trainWriter.write(features, enabledColumns));
+                                }
+                                if (binaryQueue != null) {
+                                        binaryQueue.submit(() -> binaryWriter.write(features, enabledColumns));
+                                }
                         }
                 }
 
@@ -282,157 +326,182 @@ public class RetrievalModelLTR extends RetrievalModel {
                 // Use BM25 to get initial rankings of length 100 for test queries
 
                 input = new BufferedReader(new FileReader(queryFilePath));
-
-                int queryNo = 0;
-                //  Each pass of the loop processes one query.
-                while ((qLine = input.readLine()) != null) {
-
-                        System.out.println("Query " + qLine);
-                        String[] pair = qLine.split(":");
-                        qid = Integer.parseInt(pair[0]);
-                        query = pair[1];
-
-                        // use QryParser.tokenizeString to stop & stem the query
-                        String[] tokenizedString = QryParser.tokenizeString(query);
-                        ScoreList initialRanking = new ScoreList();
-                        initialRanking = QryEval.processQuery(query, BM25);
-                        ScoreList resList = new ScoreList();
-                        int i = 0;
-                        while (i < 100) {
-                                resList.add(initialRanking.getDocid(i), initialRanking.getDocidScore(i));
-                                i++;
-                        }
-                        Double[] maxFeatures = new Double[20];
-                        Double[] minFeatures = new Double[20];
-                        Arrays.fill(maxFeatures, -Double.MAX_VALUE);
-                        Arrays.fill(minFeatures, Double.MAX_VALUE);
-
-                        Map<String, List<Double>> features = new LinkedHashMap<>();
-
-                        int j = 0;
-                        while (j < 100) {
-                                int docid = resList.getDocid(j);
-                                List<Double> featureVector = new ArrayList<>();
-                                featureVector = combineFeatures(docid, tokenizedString);
-
-                                // get the maximum and minimum values for feature
-                                for (int cnt = 0; cnt < featureVector.size(); cnt++) {
-                                        Double curr = featureVector.get(cnt);
-                                        minFeatures[cnt] = Math.min(curr, minFeatures[cnt]);
-                                        maxFeatures[cnt] = Math.max(curr, maxFeatures[cnt]);
+                try (FeatureVectorWriter testWriter = FeatureVectorWriter.openText(testingFeatureVectorsFile);
+                     ResultWriter resultWriter = ResultWriter.open(parameters.get("trecEvalOutputPath"));
+                     OutputQueue resultQueue = new OutputQueue("result-writer")) {
+                        int queryNo = 0;
+                        //  Each pass of the loop processes one query.
+                        while ((qLine = input.readLine()) != null) {
+
+                                System.out.println("Query " + qLine);
+                                String[] pair = qLine.split(":");
+                                qid = Integer.parseInt(pair[0]);
+                                query = pair[1];
+                                long queryStart = RunMetrics.start();
+
+                                // use QryParser.tokenizeString to stop & stem the query
+                                String[] tokenizedString = QryParser.tokenizeString(query);
+                                SearchContext ctx = index.newRequest();
+                                ScoreList initialRanking = new ScoreList(ctx);
+                                initialRanking = QryEval.processQuery(ctx, query, BM25);
+                                ScoreList resList = new ScoreList(ctx);
+                                int i = 0;
+                                while (i < 100) {
+                                        resList.add(initialRanking.getDocid(i), initialRanking.getDocidScore(i));
+                                        i++;
                                 }
-                                j++;
-                                features.put(Idx.getExternalDocid(docid), featureVector);
-                        }
-                        if (isSVMRank) {
-                                SVMNormalization(maxFeatures, minFeatures, features);
+                                long t = RunMetrics.start();
+                                FeatureMatrix features = testFeatures(ctx, featureCache, qid, tokenizedString, resList, allFeatureIds, featureVector);
+                                RunMetrics.stop(ctx, RunMetrics.Stage.LTR, t);
+
+                                // write features to testingFeatureVectorsFile; the toolkit reads the whole
+                                // file before re-ranking, so write it on this thread
+                                testWriter.write(features, enabledColumns);
+                                testWriter.flush();
+
+                                // commands for SVM and RankLib
+                                String[] commandsSVM = {svmRankClassifyPath, testingFeatureVectorsFile, modelFile, testingDocumentScores};
+                                String[] commandsRankLib = {"-rank", testingFeatureVectorsFile,
+                                                            "-load", modelFile,
+                                                            "-score", testingDocumentScores};
+                                // re-rank test
+                                QryEvents.Rerank rerank = new QryEvents.Rerank();
+                                rerank.begin();
+                                rerankTest(isSVMRank, isRankLib, commandsSVM, commandsRankLib);
+                                // read the new scores and use them to re-rank the initial ranking
+                                resList = readNewScores(resList, isRankLib, testingDocumentScores, queryNo);
+                                // sort the result
+                                resList.sort();
+                                if (rerank.shouldCommit()) {
+                                        rerank.qid = qid;
+                                        rerank.toolkit = toolkit;
+                                        rerank.inProcess = false;
+                                        rerank.documents = resList.size();
+                                        rerank.commit();
+                                }
+                                // write the re-ranked result in trec_eval format
+                                ScoreList results = resList;
+                                String queryName = qid + "";
+                                resultQueue.submit(() -> {
+                                        long o = RunMetrics.start();
+                                        QryEval.printResults(resultWriter, parameters.get("trecEvalOutputLength"), queryName, results);
+                                        RunMetrics.stop(ctx, RunMetrics.Stage.OUTPUT, o);
+                                        RunMetrics.finishQuery(ctx, queryName, queryStart);
+                                });
+                                queryNo++;
                         }
-
-                        // write features to testingFeatureVectorsFile
-                        writeTestFeatureVectors(qid, features, testingFeatureVectorsFile);
-
-                        // commands for SVM and RankLib
-                        String[] commandsSVM = {svmRankClassifyPath, testingFeatureVectorsFile, modelFile, testingDocumentScores};
-                        String[] commandsRankLib = {"-rank", testingFeatureVectorsFile,
-                                                    "-load", modelFile,
-                                                    "-score", testingDocumentScores};
-                        // re-rank test
-                        rerankTest(isSVMRank, isRankLib, commandsSVM, commandsRankLib);
-                        // read the new scores and use them to re-rank the initial ranking
-                        resList = readNewScores(resList, isRankLib, testingDocumentScores, queryNo);
-                        // sort the result
-                        resList.sort();
-                        // write the re-ranked result in trec_eval format
-                        QryEval.printResults(parameters.get("trecEvalOutputLength"), parameters.get("trecEvalOutputPath"), qid + "", resList);
-                        queryNo++;
                 }
+                if (featureCache != null) {
+                        featureCache.save();
+                }
+                extractor.printProfile();
         }
 
 
         /**
-         * Normalization.
-         * Identify the maximum and minimum values for that feature,
-         * and then do standard [0..1] normalization
-         * If the min and max are the same value, set the feature value to 0.
-         * @param maxFeatures
-         * @param minFeatures
-         * @param features
-         */
-        private void SVMNormalization(Double[] maxFeatures, Double[] minFeatures, Map<String, List<Double>> features) {
-                for (String externalId: features.keySet()) {
-                        List<Double> currF = new ArrayList<>();
-                        currF = features.get(externalId);
-                        for (int i = 0; i < currF.size(); i++) {
-                                Double diff = maxFeatures[i] - minFeatures[i];
-                                if (diff == 0.0) {
-                                        currF.set(i, 0.0);
-                                } else {
-                                        double normalized = (currF.get(i) - minFeatures[i]) / diff;
-                                        currF.set(i, normalized);
-                                }
-                        }
+         * Re-rank the top 100 BM25 documents of a query with a model that
+         * is already loaded, without the toolkit or intermediate files.
+         * The features and scores are the same as in trainQuery's test
+         * phase.  Concurrent calls are safe; each query has its own
+         * feature context.
+         * @param ctx the request context, on the model's index
+         * @param qid query id
+         * @param query the query
+         * @param ltrModel the trained model
+         * @return the re-ranked documents, sorted
+         * @throws IOException Error accessing the Lucene index
+         */
+        public ScoreList rerank(SearchContext ctx, int qid, String query, LtrModel ltrModel) throws IOException {
+                int[] allFeatureIds = new int[NUM_FEATURES];
+                for (int i = 0; i < NUM_FEATURES; i++) {
+                        allFeatureIds[i] = i + 1;
+                }
+                int[] enabledColumns = new int[listAble.size()];
+                for (int i = 0; i < enabledColumns.length; i++) {
+                        enabledColumns[i] = listAble.get(i) - 1;
+                }
+
+                ScoreList initialRanking = QryEval.processQuery(ctx, query, BM25, 100);
+                ScoreList resList = new ScoreList(ctx);
+                for (int i = 0; i < Math.min(100, initialRanking.size()); i++) {
+                        resList.add(initialRanking.getDocid(i), initialRanking.getExternalDocid(i), initialRanking.getDocidScore(i));
+                }
+                long t = RunMetrics.start();
+                FeatureMatrix features = testFeatures(ctx, null, qid, QryParser.tokenizeString(query), resList, allFeatureIds, new double[NUM_FEATURES]);
+                RunMetrics.stop(ctx, RunMetrics.Stage.LTR, t);
+                QryEvents.Rerank rerank = new QryEvents.Rerank();
+                rerank.begin();
+                for (int i = 0; i < resList.size(); i++) {
+                        resList.setDocidScore(i, ltrModel.score(features, i, enabledColumns));
+                }
+                resList.sort();
+                if (rerank.shouldCommit()) {
+                        rerank.qid = qid;
+                        rerank.toolkit = toolkit;
+                        rerank.inProcess = true;
+                        rerank.documents = resList.size();
+                        rerank.commit();
                 }
+                return resList;
         }
 
-        /**
-         * Write trained feature vectors to file.
-         * @param relJudgeMap
-         * @param qid
-         * @param features
-         * @throws FileNotFoundException
-         */
-        private void writeFeatureVectors(Map<String, Integer> relJudgeMap, List<String> allKeys, int qid, Map<String, List<Double>> features, String fileName) throws FileNotFoundException {
-                PrintWriter pw = new PrintWriter(new FileOutputStream(new File(fileName), true));
-                for (int i = 0; i < relJudgeMap.keySet().size(); i++) {
-//                for (String externalId: features.keySet()) {
-                        String externalId = allKeys.get(i);
-                        int relJud = 0;
-                        if (relJudgeMap != null) {
-                                relJud = relJudgeMap.get(externalId);
-                                if (relJud < 0) {
-                                        relJud = 0;
-                                }
-                        }
-                        List<Double> featureVectors = features.get(externalId);
-                        StringBuilder sb = new StringBuilder();
 
-                        for (int j = 0; j < featureVectors.size(); j++) {
-                                if (featureVectors.get(j) != null) {
-                                        // feature id should start with 1
-                                        sb.append(listAble.get(j)).append(":").append(featureVectors.get(j)).append(" ");
-                                }
-                        }
-                        // feature vector file output format: score, query id, feature id & feature value pair, external id
-                        pw.format("%d qid:%d %s # %s\n", relJud, qid, sb, externalId);
+        /**
+         * Build the feature vectors of the documents of a test query's
+         * initial ranking; for SVMRank they are normalized per query.
+         * @param ctx the request context
+         * @param featureCache feature cache, or null
+         * @param qid query id
+         * @param tokenizedString the stopped and stemmed query terms
+         * @param resList the initial ranking
+         * @param allFeatureIds the id of each feature matrix column
+         * @param featureVector work space for one feature vector
+         * @return one row per document, in the order of resList
+         * @throws IOException Error accessing the Lucene index
+         */
+        private FeatureMatrix testFeatures(SearchContext ctx, FeatureCache featureCache, int qid, String[] tokenizedString, ScoreList resList, int[] allFeatureIds, double[] featureVector) throws IOException {
+                QryEvents.FeatureExtraction event = new QryEvents.FeatureExtraction();
+                event.begin();
+                int queryHash = Arrays.hashCode(tokenizedString);
+                LtrFeatureExtractor.Context context = extractor.startQuery(ctx, tokenizedString);
+                FeatureMatrix features = new FeatureMatrix(qid, allFeatureIds, resList.size());
+                for (int j = 0; j < resList.size(); j++) {
+                        int docid = resList.getDocid(j);
+                        extractFeatures(context, featureCache, qid, queryHash, docid, featureVector);
+                        features.addRow(resList.getExternalDocid(j), 0, featureVector);
                 }
-                pw.close();
-
+                if (toolkit.equals("SVMRank")) {
+                        FeatureNormalizer.normalize(features);
+                }
+                if (event.shouldCommit()) {
+                        event.qid = qid;
+                        event.documents = resList.size();
+                        event.training = false;
+                        event.commit();
+                }
+                return features;
         }
 
 
         /**
-         * Write test features to file.
-         * @param qid
-         * @param features
-         * @param fileName
-         * @throws FileNotFoundException
+         * Get the full feature vector for <q, d>, from the feature cache if
+         * it has it, otherwise by extracting the features.  Without a cache,
+         * only the enabled features are extracted.
+         * @param context the query's feature context
+         * @param featureCache feature cache, or null
+         * @param qid query id
+         * @param queryHash hash of the query terms
+         * @param docid document ID
+         * @param features receives the score of feature n in features[n-1]
+         * @throws IOException
          */
-        private void writeTestFeatureVectors(int qid, Map<String, List<Double>> features, String fileName) throws FileNotFoundException {
-
-                PrintWriter pw = new PrintWriter(new FileOutputStream(new File(fileName), true));
-                for (String externalId: features.keySet()) {
-                        List<Double> featureVectors = features.get(externalId);
-                        StringBuilder sb = new StringBuilder();
-                        for (int k = 0; k < featureVectors.size(); k++) {
-                                if (featureVectors.get(k) != null) {
-                                        // feature id should start with 1
-                                        sb.append(listAble.get(k)).append(":").append(featureVectors.get(k)).append(" ");
-                                }
-                        }
-                        // feature vector file output format: score, query id, feature id & feature value pair, external id
-                        pw.format("%d qid:%d %s # %s\n", 0, qid, sb, externalId);
+        private void extractFeatures(LtrFeatureExtractor.Context context, FeatureCache featureCache, int qid, int queryHash, int docid, double[] features) throws IOException {
+                if (featureCache == null) {
+                        extractor.extract(context, docid, features, false);
+                } else if (!featureCache.get(qid, docid, queryHash, features)) {
+                        extractor.extract(context, docid, features, true);
+                        featureCache.put(qid, docid, queryHash, features);
                 }
-                pw.close();
         }
 
 
@@ -547,17 +616,81 @@ public class RetrievalModelLTR extends RetrievalModel {
         }
 
 
+        /**
+         * Register the features.  Each feature declares the term vectors,
+         * attributes and statistics it needs, so the extractor fetches them
+         * once per document and only for the features that are computed.
+         * @param store the static feature store of the extractor's index, or null
+         * @return the features, in feature id order
+         */
+        private List<LtrFeature> registerFeatures(StaticFeatureStore store) {
+                String[] noFields = new String[0];
+                String[] noAttributes = new String[0];
+                List<LtrFeature> features = new ArrayList<>();
+
+                // static features come from the static feature store if it is open,
+                // otherwise their attributes are fetched from the index once per document
+                if (store != null) {
+                        features.add(new LtrFeature(1, "spam score", noFields, noAttributes, false,
+                                c -> store.spamScore(c.getDocid())));
+                        features.add(new LtrFeature(2, "url depth", noFields, noAttributes, false,
+                                c -> store.urlDepth(c.getDocid())));
+                        features.add(new LtrFeature(3, "wikipedia score", noFields, noAttributes, false,
+                                c -> store.fromWikipedia(c.getDocid()) ? 1.0 : 0.0));
+                        features.add(new LtrFeature(4, "pageRank score", noFields, noAttributes, false,
+                                c -> store.pageRank(c.getDocid())));
+                } else {
+                        String[] urlAttributes = {"rawUrl"};
+                        features.add(new LtrFeature(1, "spam score", noFields, new String[] {"spamScore"}, false,
+                                c -> getSpamScore(c.attribute("spamScore"))));
+                        features.add(new LtrFeature(2, "url depth", noFields, urlAttributes, false,
+                                c -> countUrlDepth(c.attribute("rawUrl"))));
+                        features.add(new LtrFeature(3, "wikipedia score", noFields, urlAttributes, false,
+                                c -> fromWikipediaScore(c.attribute("rawUrl"))));
+                        features.add(new LtrFeature(4, "pageRank score", noFields, new String[] {"PageRank"}, false,
+                                c -> pageRankScore(c.attribute("PageRank"))));
+                }
+
+                // features 5-16: BM25, Indri and term overlap scores for <q, body>, <q, title>, <q, url>, <q, inlink>
+                String[] fields = {"body", "title", "url", "inlink"};
+                for (int i = 0; i < fields.length; i++) {
+                        String field = fields[i];
+                        String[] tvFields = {field};
+                        features.add(new LtrFeature(5 + 3 * i, "BM25 <q, " + field + ">", tvFields, noAttributes, true,
+                                c -> BM25Feature(c, field)));
+                        features.add(new LtrFeature(6 + 3 * i, "Indri <q, " + field + ">", tvFields, noAttributes, true,
+                                c -> IndriFeature(c, field)));
+                        features.add(new LtrFeature(7 + 3 * i, "term overlap <q, " + field + ">", tvFields, noAttributes, false,
+                                c -> TermOverlapFeature(c.termVector(field), c.getTerms())));
+                }
+
+                features.add(new LtrFeature(17, "query length", noFields, noAttributes, false,
+                        c -> queryLength(c.getTerms())));
+                if (store != null) {
+                        features.add(new LtrFeature(18, "url length", noFields, noAttributes, false,
+                                c -> store.urlLength(c.getDocid())));
+                } else {
+                        features.add(new LtrFeature(18, "url length", noFields, new String[] {"rawUrl"}, false,
+                                c -> urlLength(c.attribute("rawUrl"))));
+                }
+                features.add(new LtrFeature(19, "RankedBoolean <q, body>", new String[] {"body"}, noAttributes, false,
+                        c -> RankedBooleanFeature(c.termVector("body"), c.getTerms())));
+                features.add(new LtrFeature(20, "number of inlinks", new String[] {"inlink"}, noAttributes, false,
+                        c -> numberInlinksFeature(c.termVector("inlink"), c.getTerms())));
+                return features;
+        }
+
+
         /**
          * feature 1: Spam score for d(read from index).
          * The score represents the document percentile in a spam quality ranking.
          * A document in the 1% percentile is probably spam.
          * A document in the 99% percentile is probably not spam.
-         * @param docid document ID
+         * @param spamScore the spamScore attribute
          * @return spam score
-         * @throws IOException
          */
-        public int getSpamScore(int docid) throws IOException {
-                return Integer.parseInt(Idx.getAttribute("spamScore", docid));
+        public int getSpamScore(String spamScore) {
+                return Integer.parseInt(spamScore);
         }
 
 
@@ -593,36 +726,37 @@ public class RetrievalModelLTR extends RetrievalModel {
 
         /**
          * feature 4: PageRank score for d (read from index).
-         * @param docid document ID
+         * @param pageRank the PageRank attribute
          * @return score for PageRank
-         * @throws IOException
          */
-        public Double pageRankScore(int docid) throws IOException {
-                float prScore = Float.parseFloat (Idx.getAttribute ("PageRank", docid));
+        public Double pageRankScore(String pageRank) {
+                float prScore = Float.parseFloat (pageRank);
                 return (double)prScore;
         }
 
 
         /**
          * feature 5, 8, 11, 14: Calculate BM25 feature score.
+         * @param c the document's feature dependencies
          * @param field field
-         * @param docid document ID
-         * @param terms terms
          * @return feature score for BM25
          * @throws IOException
          */
-        public Double BM25Feature(String field, int docid, String[] terms) throws IOException {
+        public Double BM25Feature(LtrFeatureExtractor.Context c, String field) throws IOException {
+
+                TermVector tv = c.termVector(field);
+                LtrFeatureExtractor.FieldStats stats = c.fieldStats(field);
+                String[] terms = c.getTerms();
 
                 double featureScore = 0.0;
-                TermVector tv = new TermVector(docid, field);
                 if (tv.positionsLength() == 0 || tv.stemsLength() == 0) {
                         return featureScore;
                 }
                 double k_1 = BM25.getK_1();
                 double b = BM25.getB();
-                long N = Idx.getNumDocs();
-                long doclen = Idx.getFieldLength(field, docid);
-                double avg_doclen = (double)Idx.getSumOfFieldLengths(field) / (double)Idx.getDocCount(field);
+                long N = stats.numDocs;
+                long doclen = c.fieldLength(field);
+                double avg_doclen = stats.avgFieldLength;
 
                 for (int i = 0; i < terms.length; i++) {
                         int stemIndex = tv.indexOfStem(terms[i]);
@@ -642,20 +776,18 @@ public class RetrievalModelLTR extends RetrievalModel {
 
         /**
          * feature 6, 9, 12, 15: Calculate Indri feature score.
+         * @param c the document's feature dependencies
          * @param field field
-         * @param docid document ID
-         * @param terms terms
          * @return feature score for Indri
          * @throws IOException
          */
-        public Double IndriFeature(String field, int docid, String[] terms) throws IOException {
+        public Double IndriFeature(LtrFeatureExtractor.Context c, String field) throws IOException {
 
                 double featureScore = 1.0;
                 double mu = indri.getMu();
                 double lambda = indri.getLambda();
-                double doclen = Idx.getFieldLength(field, docid);
-                double lengthC = (double)Idx.getSumOfFieldLengths(field);
-                TermVector tv = new TermVector(docid, field);
+                TermVector tv = c.termVector(field);
+                String[] terms = c.getTerms();
 
                 if (tv.positionsLength() == 0 || tv.stemsLength() == 0) {
                         return 0.0;
@@ -674,9 +806,11 @@ public class RetrievalModelLTR extends RetrievalModel {
                         return 0.0;
                 }
 
+                double doclen = c.fieldLength(field);
+                double lengthC = (double)c.fieldStats(field).sumOfFieldLengths;
                 for (int i = 0; i < terms.length; i++) {
                         int stemIndex = tv.indexOfStem(terms[i]);
-                        double ctf = Idx.getTotalTermFreq(field, terms[i]);
+                        double ctf = c.totalTermFreq(field, i);
                         double MLE = ctf / lengthC;
                         if (stemIndex != -1) {
                                 int tf = tv.stemFreq(stemIndex);
@@ -694,14 +828,12 @@ public class RetrievalModelLTR extends RetrievalModel {
         /**
          * feature 7, 10, 13, 16: Calculate Term Overlap (coordinate match) feature score.
          * Term overlap is defined as the count of query terms that match the document field.
-         * @param field field
-         * @param docid document id
+         * @param tv term vector of the field
          * @param terms terms
          * @return feature score for Term Overlap
          */
-        public Double TermOverlapFeature(String field, int docid, String[] terms) throws IOException {
+        public Double TermOverlapFeature(TermVector tv, String[] terms) {
                 double res = 0.0;
-                TermVector tv = new TermVector(docid, field);
                 if (tv.positionsLength() == 0 || tv.stemsLength() == 0) {
                         return 0.0;
                 }
@@ -718,9 +850,8 @@ public class RetrievalModelLTR extends RetrievalModel {
          * feature 17: Calculate Query Length.
          * @param terms terms
          * @return feature score for query length
-         * @throws IOException
          */
-        public Double queryLength(String[] terms) throws IOException {
+        public Double queryLength(String[] terms) {
 
                 double featureScore = 0.0;
                 if (terms.length != 0) {
@@ -746,15 +877,12 @@ public class RetrievalModelLTR extends RetrievalModel {
 
         /**
          * feature 19: Calculate RankedBoolean feature score
-         * @param field field
-         * @param docid document id
+         * @param tv term vector of the body field
          * @param terms terms
          * @return RankedBoolean feature score
-         * @throws IOException
          */
-        public Double RankedBooleanFeature(String field, int docid, String[] terms) throws IOException {
+        public Double RankedBooleanFeature(TermVector tv, String[] terms) {
                 double featureScore = 0.0;
-                TermVector tv = new TermVector(docid, field);
                 if (tv.positionsLength() == 0 || tv.stemsLength() == 0) {
                         return featureScore;
                 }
@@ -770,157 +898,15 @@ public class RetrievalModelLTR extends RetrievalModel {
 
         /**
          * feature 20: Calculate number of inlinks
-         * @param field field
-         * @param docid document id
+         * @param tv term vector of the inlink field
          * @param terms terms
          * @return number of inlinks feature score
-         * @throws IOException
          */
-        public Double numberInlinksFeature(String field, int docid, String[] terms) throws IOException {
-                int cnt = 0;
-                TermVector tv = new TermVector(docid, field);
-                if (tv.positionsLength() == 0 || tv.stemsLength() == 0) {
+        public Double numberInlinksFeature(TermVector tv, String[] terms) {
+                if (tv.positionsLength() == 0 || tv.stemsLength() == 0 || terms.length == 0) {
                         return 0.0;
                 }
-                for (int i = 0; i < terms.length; i++) {
-                        cnt = tv.positionsLength();
-                }
-                return (double)cnt;
-        }
-
-
-        /**
-         * Combine all feature scores.
-         * @param docid document ID
-         * @param terms terms
-         * @return all scores in a list
-         * @throws IOException
-         */
-        private List<Double> combineFeatures(int docid, String[] terms) throws IOException {
-                ArrayList<Double> features = new ArrayList<>();
-
-                // feature 1: spam score
-                if (!listDisable.contains(1)) {
-                        double score = getSpamScore(docid);
-                        features.add(score);
-                }
-
-                // feature 2: url depth
-                if (!listDisable.contains(2)) {
-                        double score = countUrlDepth(Idx.getAttribute("rawUrl", docid));
-                        features.add(score);
-                }
-
-                // feature 3: wikipedia score
-                if (!listDisable.contains(3)) {
-                        double score = fromWikipediaScore(Idx.getAttribute("rawUrl", docid));
-                        features.add(score);
-                }
-
-                // feature 4: pageRank score
-                if (!listDisable.contains(4)) {
-                        double score = pageRankScore(docid);
-                        features.add(score);
-                }
-
-                // feature 5: BM25 score for <q, body>
-                if (!listDisable.contains(5)) {
-                        double score = BM25Feature("body", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 6: Indri score for <q, body>
-                if (!listDisable.contains(6)) {
-                        double score = IndriFeature("body", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 7: Term overlap score for <q, body>
-                if (!listDisable.contains(7)) {
-                        double score = TermOverlapFeature("body", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 8: BM25 score for <q, title>
-                if (!listDisable.contains(8)) {
-                        double score = BM25Feature("title", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 9: Indri score for <q, title>
-                if (!listDisable.contains(9)) {
-                        double score = IndriFeature("title", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 10: Term overlap score for <q, title>
-                if (!listDisable.contains(10)) {
-                        double score = TermOverlapFeature("title", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 11: BM25 score for <q, url>
-                if (!listDisable.contains(11)) {
-                        double score = BM25Feature("url", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 12: Indri score for <q, url>
-                if (!listDisable.contains(12)) {
-                        double score = IndriFeature("url", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 13: Term overlap score for <q, url>
-                if (!listDisable.contains(13)) {
-                        double score = TermOverlapFeature("url", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 14: BM25 score for <q, inlink>
-                if (!listDisable.contains(14)) {
-                        double score = BM25Feature("inlink", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 15: Indri score for <q, inlink>
-                if (!listDisable.contains(15)) {
-                        double score = IndriFeature("inlink", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 16: Term overlap score for <q, inlink>
-                if (!listDisable.contains(16)) {
-                        double score = TermOverlapFeature("inlink", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 17: Query Length
-                if (!listDisable.contains(17)) {
-                        double score = queryLength(terms);
-                        features.add(score);
-                }
-
-                // feature 18: url Length
-                if (!listDisable.contains(18)) {
-                        double score = urlLength(Idx.getAttribute("rawUrl", docid));
-                        features.add(score);
-                }
-
-
-                // feature 19: RankedBoolean score for <q, body>
-                if (!listDisable.contains(19)) {
-                        double score = RankedBooleanFeature("body", docid, terms);
-                        features.add(score);
-                }
-
-                // feature 20: Number of inlinks score for <q, inlink>
-                if (!listDisable.contains(20)) {
-                        double score = numberInlinksFeature("inlink", docid, terms);
-                        features.add(score);
-                }
-
-                return features;
+                return (double)tv.positionsLength();
         }
 
 }
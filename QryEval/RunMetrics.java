@@ -0,0 +1,256 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Run-level latency metrics.  The time that each query spends in each
+ * stage of the pipeline is accumulated in its request context, and
+ * when the query's results are written, each stage's time is recorded
+ * in a histogram.  At the end of the run, report prints p50, p90, p99
+ * and max for each stage, and the queries per second.
+ * <p>
+ * Parameters:
+ * </p>
+ * <pre>
+ *   metrics=true             record and report stage latencies
+ *   metrics:csvFile=PATH     also write each query's stage times (ms)
+ * </pre>
+ * <p>
+ * The histograms are log-linear, like HDR histograms: values below
+ * 2^(SUB_BITS+1) ns are exact, and larger values are kept to SUB_BITS
+ * significant bits (a relative error below 0.4%), in a fixed number of
+ * buckets, so recording is constant time and space.
+ * </p>
+ */
+public class RunMetrics {
+
+        /**
+         * Pipeline stages.  A query's stages may overlap (e.g., the
+         * initial ranking of PRF is in INITIALIZE and SCORE); TOTAL is
+         * from the start of the query to the end of its output.  The
+         * intent queries of a diversified query are evaluated
+         * concurrently, in subrequests; INTENTS is the wall time of all
+         * of them, and their own stages are not recorded.
+         */
+        public enum Stage {
+                PARSE, INITIALIZE, SCORE, SORT, PRF, INTENTS, DIVERSITY, LTR, OUTPUT, TOTAL
+        }
+
+        /**
+         * A log-linear latency histogram (nanoseconds).
+         */
+        public static class Histogram {
+                private static final int SUB_BITS = 8;
+                private static final int SUB = 1 << SUB_BITS;
+
+                private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+                private long count = 0;
+                private long max = 0;
+                private long sum = 0;
+
+                private static int index(long v) {
+                        if (v < 2 * SUB) {
+                                return (int) v;
+                        }
+                        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+                        return shift * SUB + (int) (v >>> shift);
+                }
+
+                /**
+                 * @return the largest value that is recorded in bucket i
+                 */
+                private static long highestValue(int i) {
+                        if (i < 2 * SUB) {
+                                return i;
+                        }
+                        int shift = i / SUB - 1;
+                        return (((long) (i - shift * SUB)) << shift) + (1L << shift) - 1;
+                }
+
+                public synchronized void record(long nanos) {
+                        nanos = Math.max(0L, nanos);
+                        counts[index(nanos)]++;
+                        count++;
+                        sum += nanos;
+                        max = Math.max(max, nanos);
+                }
+
+                public synchronized long getCount() {
+                        return count;
+                }
+
+                public synchronized long getMax() {
+                        return max;
+                }
+
+                public synchronized double getMean() {
+                        return (count == 0) ? 0.0 : (double) sum / count;
+                }
+
+                /**
+                 * @param p a percentile, e.g., 99.0
+                 * @return the value that p percent of the values are at
+                 *         most, within the histogram's precision
+                 */
+                public synchronized long getPercentile(double p) {
+                        if (count == 0) {
+                                return 0;
+                        }
+                        long rank = Math.max(1L, (long) Math.ceil(p / 100.0 * count));
+                        long seen = 0;
+                        for (int i = 0; i < counts.length; i++) {
+                                seen += counts[i];
+                                if (seen >= rank) {
+                                        return Math.min(highestValue(i), max);
+                                }
+                        }
+                        return max;
+                }
+        }
+
+        private static volatile boolean enabled = false;
+        private static final Histogram[] HISTOGRAMS = new Histogram[Stage.values().length];
+        private static PrintWriter csv = null;
+        private static long runStart = 0;
+        private static long lastFinish = 0;
+        private static long queries = 0;
+
+        /**
+         * Configure metrics as the parameters specify.
+         * @param parameters the parameters
+         * @throws IOException Error opening metrics:csvFile
+         */
+        public static synchronized void configure(Map<String, String> parameters) throws IOException {
+                if (!(parameters.containsKey("metrics") && parameters.get("metrics").toLowerCase().equals("true"))) {
+                        return;
+                }
+                for (int s = 0; s < HISTOGRAMS.length; s++) {
+                        HISTOGRAMS[s] = new Histogram();
+                }
+                if (csv != null) {
+                        csv.close();
+                        csv = null;
+                }
+                if (parameters.containsKey("metrics:csvFile")) {
+                        csv = new PrintWriter(new FileWriter(parameters.get("metrics:csvFile")));
+                        StringBuilder header = new StringBuilder("qid");
+                        for (Stage s: Stage.values()) {
+                                header.append(',').append(s.name().toLowerCase()).append("_ms");
+                        }
+                        csv.println(header);
+                }
+                queries = 0;
+                runStart = System.nanoTime();
+                lastFinish = runStart;
+                enabled = true;
+        }
+
+        /**
+         * Start timing a stage.
+         * @return the start time, or 0 if metrics are disabled
+         */
+        public static long start() {
+                return enabled ? System.nanoTime() : 0L;
+        }
+
+        /**
+         * Add the time since start to a stage of the context's query.
+         * The output queue's thread stops OUTPUT, so updates are
+         * synchronized.
+         * @param ctx the request context of the query
+         * @param stage the stage
+         * @param start the time that start returned
+         */
+        public static void stop(SearchContext ctx, Stage stage, long start) {
+                if (enabled) {
+                        long elapsed = System.nanoTime() - start;
+                        long[] nanos = ctx.getStageNanos();
+                        int s = stage.ordinal();
+                        synchronized (nanos) {
+                                nanos[s] = Math.max(nanos[s], 0L) + elapsed;
+                        }
+                }
+        }
+
+        /**
+         * Finish a query: its TOTAL is the time since queryStart, and its
+         * stage times are recorded in the histograms (and the CSV file).
+         * @param ctx the request context of the query
+         * @param qid the query id
+         * @param queryStart the time that start returned when the query started
+         */
+        public static void finishQuery(SearchContext ctx, String qid, long queryStart) {
+                if (!enabled) {
+                        return;
+                }
+                stop(ctx, Stage.TOTAL, queryStart);
+                long[] nanos = ctx.getStageNanos();
+                synchronized (nanos) {
+                        nanos = nanos.clone();
+                }
+                StringBuilder row = (csv != null) ? new StringBuilder(qid) : null;
+                for (int s = 0; s < nanos.length; s++) {
+                        if (nanos[s] >= 0) {
+                                HISTOGRAMS[s].record(nanos[s]);
+                        }
+                        if (row != null) {
+                                row.append(',');
+                                if (nanos[s] >= 0) {
+                                        row.append(ms(nanos[s]));
+                                }
+                        }
+                }
+                synchronized (RunMetrics.class) {
+                        queries++;
+                        lastFinish = System.nanoTime();
+                        if (row != null) {
+                                csv.println(row);
+                        }
+                }
+        }
+
+        /**
+         * Print the latency of each stage that ran and the throughput
+         * of the run, and close the CSV file.
+         */
+        public static synchronized void report() {
+                if (!enabled) {
+                        return;
+                }
+                double seconds = (lastFinish - runStart) / 1e9;
+                System.out.printf(Locale.ROOT, "Queries:  %d in %.3f s, %.2f queries/s%n", queries, seconds,
+                                  (seconds > 0) ? queries / seconds : 0.0);
+                System.out.printf(Locale.ROOT, "%-12s %8s %10s %10s %10s %10s %10s%n",
+                                  "stage (ms)", "count", "mean", "p50", "p90", "p99", "max");
+                for (Stage s: Stage.values()) {
+                        Histogram h = HISTOGRAMS[s.ordinal()];
+                        if (h.getCount() == 0) {
+                                continue;
+                        }
+                        System.out.printf(Locale.ROOT, "%-12s %8d %10s %10s %10s %10s %10s%n",
+                                          s.name().toLowerCase(), h.getCount(), ms((long) h.getMean()),
+                                          ms(h.getPercentile(50.0)), ms(h.getPercentile(90.0)),
+                                          ms(h.getPercentile(99.0)), ms(h.getMax()));
+                }
+                if (csv != null) {
+                        csv.close();
+                        csv = null;
+                }
+        }
+
+        /**
+         * @return a new array of stage times, -1 for stages that didn't run
+         */
+        static long[] newStageNanos() {
+                long[] nanos = new long[Stage.values().length];
+                Arrays.fill(nanos, -1L);
+                return nanos;
+        }
+
+        private static String ms(long nanos) {
+                return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+}
@@ -18,12 +18,18 @@ public class ScoreList {
     private String externalId;
     private double score;
 
+    private ScoreListEntry(int internalDocid, String externalId, double score) {
+      this.docid = internalDocid;
+      this.externalId = externalId;
+      this.score = score;
+    }
+
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
 
       try {
-	      this.externalId = Idx.getExternalDocid (this.docid);
+	      this.externalId = ctx.getExternalDocid (this.docid);
       }
       catch (IOException ex){
 	      ex.printStackTrace();
@@ -36,6 +42,19 @@ public class ScoreList {
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The context of the index that the documents are from.
+   */
+  private SearchContext ctx;
+
+  /**
+   *  A score list of documents from an index.
+   *  @param ctx The context of the index.
+   */
+  public ScoreList (SearchContext ctx) {
+    this.ctx = ctx;
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
@@ -45,6 +64,16 @@ public class ScoreList {
     scores.add(new ScoreListEntry(docid, score));
   }
 
+  /**
+   *  Append a document score whose external id is already known.
+   *  @param docid An internal document id.
+   *  @param externalId The document's external id.
+   *  @param score The document's score.
+   */
+  public void add(int docid, String externalId, double score) {
+    scores.add(new ScoreListEntry(docid, externalId, score));
+  }
+
   /**
    *  Get the internal docid of the n'th entry.
    *  @param n The index of the requested document.
@@ -54,6 +83,15 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    return this.scores.get(n).externalId;
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -125,4 +163,18 @@ public class ScoreList {
     this.scores.clear();
     this.scores = truncated;
   }
+
+  /**
+   *  Copy the score list, e.g., to keep a cached copy that callers
+   *  can't modify.
+   *  @return A new score list with the same entries.
+   */
+  public ScoreList copy () {
+    ScoreList c = new ScoreList (this.ctx);
+
+    for (ScoreListEntry e : this.scores) {
+      c.scores.add (new ScoreListEntry (e.docid, e.externalId, e.score));
+    }
+    return c;
+  }
 }
@@ -0,0 +1,535 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Everything that evaluating one request needs: the index reader, its
+ * auxiliary data (static features, forward indexes), cached collection
+ * statistics, and request state such as the query's intents.
+ * <p>
+ * The index state is shared by every context on the same index and is
+ * safe to use from several threads; IndexReaders are thread-safe and
+ * the caches are concurrent maps.  Request state belongs to one
+ * context, so concurrent requests each use their own context from
+ * newRequest.  Several indexes can be open at once, each with its own
+ * contexts.
+ * </p>
+ */
+public class SearchContext {
+
+        private static final String EXTERNAL_ID_FIELD = "externalId";
+
+        /**
+         * The state of one open index, shared by its contexts.
+         */
+        private static class IndexState {
+                private final String indexPath;
+                private final IndexReader reader;
+                private final long numDocs;
+                private volatile StaticFeatureStore staticFeatures = null;
+                private final Map<String, ForwardIndex> forwardIndexes = new ConcurrentHashMap<>();
+                private final Map<String, Long> sumOfFieldLengths = new ConcurrentHashMap<>();
+                private final Map<String, Integer> docCounts = new ConcurrentHashMap<>();
+                /**
+                 * Caches shared by all requests, if enabled.
+                 */
+                private volatile boolean sharedCaches = false;
+                private volatile Map<String, InvList> invertedLists = Collections.emptyMap();
+                private volatile Map<String, TermVector> termVectors = Collections.emptyMap();
+                private volatile Map<String, ScoreList> results = Collections.emptyMap();
+                private final AtomicLong cacheHits = new AtomicLong();
+                private final AtomicLong cacheMisses = new AtomicLong();
+
+                private IndexState(String indexPath, IndexReader reader) {
+                        this.indexPath = indexPath;
+                        this.reader = reader;
+                        this.numDocs = reader.numDocs();
+                }
+        }
+
+        /**
+         * Computes the results of a query for the result cache.
+         */
+        public interface ResultSupplier {
+                ScoreList get() throws IOException;
+        }
+
+        private final IndexState index;
+        /**
+         * The intents of the current query, for diversification.
+         */
+        private List<String> intents = Collections.emptyList();
+        /**
+         * The id of the current query, for reports, or null.
+         */
+        private String queryId = null;
+        /**
+         * The time the current query spent in each stage, if metrics are
+         * enabled (see RunMetrics).
+         */
+        private long[] stageNanos = null;
+        /**
+         * The open expansion query file of the current query file and the
+         * queue that writes it, or null.
+         */
+        private Writer expansionQueryWriter = null;
+        private OutputQueue expansionQueryQueue = null;
+
+        private SearchContext(IndexState index) {
+                this.index = index;
+        }
+
+        /**
+         * Open a Lucene index.
+         * @param indexPath A directory that contains a Lucene index.
+         * @return a context for the index
+         * @throws IOException Error accessing the index.
+         */
+        public static SearchContext open(String indexPath) throws IOException {
+                return open(indexPath, FSDirectory.open(Paths.get(indexPath)));
+        }
+
+        /**
+         * Open a Lucene index in a specific Directory implementation.
+         * @param indexPath the index path, to identify the index
+         * @param directory the index directory
+         * @return a context for the index
+         * @throws IOException Error accessing the index.
+         */
+        public static SearchContext open(String indexPath, Directory directory) throws IOException {
+                IndexReader reader = DirectoryReader.open(directory);
+                if (reader == null) {
+                        throw new IllegalArgumentException("Unable to open the index.");
+                }
+                return new SearchContext(new IndexState(indexPath, reader));
+        }
+
+        /**
+         * Start a request: a new context on the same index, with its own
+         * request state.
+         * @return the new context
+         */
+        public SearchContext newRequest() {
+                return new SearchContext(index);
+        }
+
+        /**
+         * Start a subrequest of this request, e.g., an intent query that
+         * is evaluated concurrently with the others: a new context with
+         * the same query id, and its own request state.
+         * @return the new context
+         */
+        public SearchContext newSubrequest() {
+                SearchContext subrequest = new SearchContext(index);
+                subrequest.queryId = queryId;
+                return subrequest;
+        }
+
+        /**
+         * Share inverted lists, term vectors and query results among all
+         * requests on this index, e.g., when many configurations run the
+         * same queries.  Each cache holds at most maxEntries entries; the
+         * least recently used entry is evicted to make room.
+         * @param maxEntries the size of each cache
+         */
+        public void enableSharedCaches(int maxEntries) {
+                if (maxEntries < 1) {
+                        throw new IllegalArgumentException("The cache size must be at least 1: " + maxEntries);
+                }
+                index.invertedLists = lruCache(maxEntries);
+                index.termVectors = lruCache(maxEntries);
+                index.results = lruCache(maxEntries);
+                index.sharedCaches = true;
+        }
+
+        /**
+         * Make a thread-safe map that evicts its least recently used
+         * entry when it has more than maxEntries entries.
+         */
+        private static <V> Map<String, V> lruCache(int maxEntries) {
+                return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                                return size() > maxEntries;
+                        }
+                });
+        }
+
+        /**
+         * Describe the use of the shared caches.
+         * @return hits, misses and sizes
+         */
+        public String getCacheStats() {
+                return "cache hits " + index.cacheHits.get() + ", misses " + index.cacheMisses.get()
+                        + "; " + index.invertedLists.size() + " inverted lists, "
+                        + index.termVectors.size() + " term vectors, " + index.results.size() + " results";
+        }
+
+        /**
+         * Get the inverted list of a term, from the shared cache if it is
+         * enabled.  Inverted lists are not modified by iteration, so one
+         * list can be used by many queries.
+         * @param term The term.
+         * @param field The field name.
+         * @return the inverted list
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public InvList getInvertedList(String term, String field) throws IOException {
+                if (!index.sharedCaches) {
+                        return new InvList(this, term, field);
+                }
+                String key = term + "." + field;
+                InvList list = index.invertedLists.get(key);
+                if (list == null) {
+                        index.cacheMisses.incrementAndGet();
+                        list = new InvList(this, term, field);
+                        index.invertedLists.put(key, list);
+                } else {
+                        index.cacheHits.incrementAndGet();
+                }
+                return list;
+        }
+
+        /**
+         * Get the term vector of a document field, from the shared cache
+         * if it is enabled.
+         * @param docid The internal docid.
+         * @param field The field name.
+         * @return the term vector
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public TermVector getTermVector(int docid, String field) throws IOException {
+                if (!index.sharedCaches) {
+                        return new TermVector(this, docid, field);
+                }
+                String key = docid + "." + field;
+                TermVector tv = index.termVectors.get(key);
+                if (tv == null) {
+                        index.cacheMisses.incrementAndGet();
+                        tv = new TermVector(this, docid, field);
+                        index.termVectors.put(key, tv);
+                } else {
+                        index.cacheHits.incrementAndGet();
+                }
+                return tv;
+        }
+
+        /**
+         * Get the results of a query, from the shared cache if it is
+         * enabled.  The caller gets its own copy, which it may modify.
+         * @param key identifies the query, the retrieval model and its
+         *            parameters, and anything else that the results depend on
+         * @param supplier computes the results on a cache miss
+         * @return the results, or null if the supplier returns null
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public ScoreList getResults(String key, ResultSupplier supplier) throws IOException {
+                if (!index.sharedCaches) {
+                        return supplier.get();
+                }
+                ScoreList r = index.results.get(key);
+                if (r != null) {
+                        index.cacheHits.incrementAndGet();
+                        return r.copy();
+                }
+                index.cacheMisses.incrementAndGet();
+                r = supplier.get();
+                if (r != null) {
+                        index.results.put(key, r.copy());
+                }
+                return r;
+        }
+
+        public String getIndexPath() {
+                return index.indexPath;
+        }
+
+        public IndexReader getReader() {
+                return index.reader;
+        }
+
+        public List<String> getIntents() {
+                return intents;
+        }
+
+        public int getNumIntents() {
+                return intents.size();
+        }
+
+        public void setIntents(List<String> intents) {
+                this.intents = new ArrayList<>(intents);
+        }
+
+        public String getQueryId() {
+                return queryId;
+        }
+
+        public void setQueryId(String queryId) {
+                this.queryId = queryId;
+        }
+
+        public Writer getExpansionQueryWriter() {
+                return expansionQueryWriter;
+        }
+
+        public OutputQueue getExpansionQueryQueue() {
+                return expansionQueryQueue;
+        }
+
+        /**
+         * Write this request's expansion query to an open file.
+         * @param writer the expansion query file
+         * @param queue writes the file in query order
+         */
+        public void setExpansionQueryOutput(Writer writer, OutputQueue queue) {
+                this.expansionQueryWriter = writer;
+                this.expansionQueryQueue = queue;
+        }
+
+        synchronized long[] getStageNanos() {
+                if (stageNanos == null) {
+                        stageNanos = RunMetrics.newStageNanos();
+                }
+                return stageNanos;
+        }
+
+        public StaticFeatureStore getStaticFeatures() {
+                return index.staticFeatures;
+        }
+
+        void setStaticFeatures(StaticFeatureStore staticFeatures) {
+                index.staticFeatures = staticFeatures;
+        }
+
+        /**
+         * Get the forward index of a field.
+         * @param fieldName The field name.
+         * @return the forward index, or null if the field has none
+         */
+        public ForwardIndex getForwardIndex(String fieldName) {
+                return index.forwardIndexes.get(fieldName);
+        }
+
+        void putForwardIndex(String fieldName, ForwardIndex forwardIndex) {
+                index.forwardIndexes.put(fieldName, forwardIndex);
+        }
+
+        /**
+         * Get the specified attribute from the specified document.
+         * @param attributeName Name of attribute
+         * @param docid The internal docid in the lucene index.
+         * @return the attribute value, or null if there is no attribute or value
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public String getAttribute(String attributeName, int docid) throws IOException {
+                Document d = index.reader.document(docid);
+                return d.get(attributeName);
+        }
+
+        /**
+         * Get several attributes of a document, reading its stored
+         * fields once.
+         * @param attributeNames Names of the attributes
+         * @param docid The internal docid in the lucene index.
+         * @return the value of each attribute, or null if it has none
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public String[] getAttributes(String[] attributeNames, int docid) throws IOException {
+                Document d = index.reader.document(docid);
+                String[] values = new String[attributeNames.length];
+                for (int i = 0; i < attributeNames.length; i++) {
+                        values[i] = d.get(attributeNames[i]);
+                }
+                return values;
+        }
+
+        /**
+         * Get the number of documents that contain the specified field.
+         * @param fieldName the field name
+         * @return the number of documents that contain the field
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public int getDocCount(String fieldName) throws IOException {
+                Integer count = index.docCounts.get(fieldName);
+                if (count == null) {
+                        count = index.reader.getDocCount(fieldName);
+                        index.docCounts.put(fieldName, count);
+                }
+                return count;
+        }
+
+        /**
+         * Get the document frequency (df) of a term in a field.
+         * @param fieldName The field name.
+         * @param term The term.
+         * @return The document frequency
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public long getDocFreq(String fieldName, String term) throws IOException {
+                return index.reader.docFreq(new Term(fieldName, new BytesRef(term)));
+        }
+
+        /**
+         * Get the external document id for a document specified by an
+         * internal document id.
+         * @param iid The internal document id of the document.
+         * @return the external document id
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public String getExternalDocid(int iid) throws IOException {
+                Document d = index.reader.document(iid);
+                return d.get(EXTERNAL_ID_FIELD);
+        }
+
+        /**
+         * Get the length of the specified field in the specified document.
+         * @param fieldName Name of field to access lengths.
+         * @param docid The internal docid in the Lucene index.
+         * @return the length of the field, including stopword positions.
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public long getFieldLength(String fieldName, int docid) throws IOException {
+                LeafReaderContext leafContext = getLeafReaderContext(docid);
+                int leafDocid = docid - leafContext.docBase;
+                NumericDocValues norms = leafContext.reader().getNormValues(fieldName);
+                long fieldLength = 0;
+                if (norms != null && norms.advanceExact(leafDocid)) {
+                        fieldLength = norms.longValue();
+                }
+                return fieldLength;
+        }
+
+        /**
+         * Get the internal document id for a document specified by its
+         * external id, e.g. clueweb09-enwp00-88-09710.
+         * @param externalId The external docid in the Lucene index.
+         * @return internal docid.
+         * @throws Exception The document does not exist, or its id is not unique.
+         */
+        public int getInternalDocid(String externalId) throws Exception {
+                Term term = new Term(EXTERNAL_ID_FIELD, externalId);
+                if (index.reader.docFreq(term) > 1) {
+                        throw new Exception("Multiple matches for external id " + externalId);
+                }
+                for (LeafReaderContext leafContext: index.reader.leaves()) {
+                        PostingsEnum postings = leafContext.reader().postings(term);
+                        if (postings != null) {
+                                if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                                        return leafContext.docBase + postings.docID();
+                                }
+                                throw new Exception("External id should exist, but isn't found.");
+                        }
+                }
+                throw new Exception("External id " + externalId + " not found.");
+        }
+
+        /**
+         * Get the context of the LeafReader that contains the specified document.
+         * @param docid An internal document id
+         * @return the LeafReaderContext that contains the document, or null
+         */
+        private LeafReaderContext getLeafReaderContext(long docid) {
+                for (LeafReaderContext leafContext: index.reader.leaves()) {
+                        LeafReader leafReader = leafContext.reader();
+                        int minDocid = leafContext.docBase;
+                        int maxDocid = leafContext.docBase + leafReader.numDocs();
+                        if ((docid >= minDocid) && (docid < maxDocid)) {
+                                return leafContext;
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * Get the total number of documents in the corpus.
+         * @return The total number of documents.
+         */
+        public long getNumDocs() {
+                return index.numDocs;
+        }
+
+        /**
+         * Get the total number of term occurrences contained in all
+         * instances of the specified field in the corpus.
+         * @param fieldName The field name.
+         * @return The total number of term occurrence
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public long getSumOfFieldLengths(String fieldName) throws IOException {
+                Long sum = index.sumOfFieldLengths.get(fieldName);
+                if (sum == null) {
+                        sum = index.reader.getSumTotalTermFreq(fieldName);
+                        index.sumOfFieldLengths.put(fieldName, sum);
+                }
+                return sum;
+        }
+
+        /**
+         * Get the collection term frequency (ctf) of a term in a field.
+         * @param fieldName The field name.
+         * @param term The term.
+         * @return The total number of term occurrence
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public long getTotalTermFreq(String fieldName, String term) throws IOException {
+                return index.reader.totalTermFreq(new Term(fieldName, new BytesRef(term)));
+        }
+
+        /**
+         * Get the collection term frequencies (ctf) of several terms in a
+         * field in one pass over each index segment.  The terms are looked
+         * up with TermsEnum.seekExact in sorted order, so each lookup starts
+         * near the previous one.
+         * @param fieldName The field name.
+         * @param terms The terms.
+         * @return The ctf of each term, in the order of terms
+         * @throws IOException Error accessing the Lucene index.
+         */
+        public long[] getTotalTermFreqs(String fieldName, String[] terms) throws IOException {
+                Integer[] order = new Integer[terms.length];
+                BytesRef[] bytes = new BytesRef[terms.length];
+                for (int i = 0; i < terms.length; i++) {
+                        order[i] = i;
+                        bytes[i] = new BytesRef(terms[i]);
+                }
+                Arrays.sort(order, (a, b) -> bytes[a].compareTo(bytes[b]));
+
+                long[] ctf = new long[terms.length];
+                for (LeafReaderContext leaf: index.reader.leaves()) {
+                        Terms leafTerms = leaf.reader().terms(fieldName);
+                        if (leafTerms == null) {
+                                continue;
+                        }
+                        TermsEnum termsEnum = leafTerms.iterator();
+                        for (int i: order) {
+                                if (termsEnum.seekExact(bytes[i])) {
+                                        ctf[i] += termsEnum.totalTermFreq();
+                                }
+                        }
+                }
+                return ctf;
+        }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Columnar sidecar for the static (query-independent) document features
+ * used by learning to rank: spamScore, PageRank and the values derived
+ * from rawUrl.  Reading them through SearchContext.getAttribute loads the whole
+ * stored document, so they are extracted once and memory-mapped.
+ * <pre>
+ *   header:        magic, version, numDocs (int each)
+ *   spamScore:     int[numDocs]
+ *   PageRank:      float[numDocs]
+ *   urlDepth:      int[numDocs]   number of '/' in rawUrl
+ *   urlLength:     int[numDocs]   length of rawUrl
+ *   fromWikipedia: byte[numDocs]  1 if rawUrl contains wikipedia.org
+ * </pre>
+ * Documents without an attribute store 0 for it.
+ */
+public class StaticFeatureStore {
+
+        private static final int MAGIC = 0x53544654;
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 12;
+
+        private static final String USAGE =
+                "Usage:  java StaticFeatureStore -index INDEX_PATH -out FILE\n\n";
+
+        /**
+         * The mapped file.
+         */
+        private MappedByteBuffer buffer;
+        /**
+         * The number of documents covered by the file.
+         */
+        private int numDocs;
+        /**
+         * Byte offsets of each column.
+         */
+        private int spamOffset;
+        private int pageRankOffset;
+        private int urlDepthOffset;
+        private int urlLengthOffset;
+        private int wikipediaOffset;
+
+        /**
+         * Constructor.  Use open to map an existing file.
+         * @param buffer the mapped file
+         */
+        private StaticFeatureStore(MappedByteBuffer buffer) {
+                this.buffer = buffer;
+
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                        throw new IllegalArgumentException("Not a static feature file.");
+                }
+                this.numDocs = buffer.getInt(8);
+                this.spamOffset = HEADER_SIZE;
+                this.pageRankOffset = spamOffset + 4 * numDocs;
+                this.urlDepthOffset = pageRankOffset + 4 * numDocs;
+                this.urlLengthOffset = urlDepthOffset + 4 * numDocs;
+                this.wikipediaOffset = urlLengthOffset + 4 * numDocs;
+        }
+
+        /**
+         * Memory-map a static feature file.
+         * @param fileName the static feature file
+         * @return the mapped store
+         * @throws IOException Error reading the file
+         */
+        public static StaticFeatureStore open(String fileName) throws IOException {
+                try (RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+                     FileChannel channel = raf.getChannel()) {
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        return new StaticFeatureStore(buffer);
+                }
+        }
+
+        /**
+         * Extract the static features of every document in the index and
+         * write them to a static feature file.
+         * @param reader the index to read from
+         * @param fileName the file to write
+         * @throws IOException Error accessing the Lucene index or writing the file
+         */
+        public static void build(IndexReader reader, String fileName) throws IOException {
+                int numDocs = reader.maxDoc();
+                int[] spam = new int[numDocs];
+                float[] pageRank = new float[numDocs];
+                int[] urlDepth = new int[numDocs];
+                int[] urlLength = new int[numDocs];
+                byte[] wikipedia = new byte[numDocs];
+
+                for (int docid = 0; docid < numDocs; docid++) {
+                        Document d = reader.document(docid);
+                        String spamScore = d.get("spamScore");
+                        String pr = d.get("PageRank");
+                        String rawUrl = d.get("rawUrl");
+
+                        if (spamScore != null) {
+                                spam[docid] = Integer.parseInt(spamScore);
+                        }
+                        if (pr != null) {
+                                pageRank[docid] = Float.parseFloat(pr);
+                        }
+                        if (rawUrl != null) {
+                                int depth = 0;
+                                for (int i = 0; i < rawUrl.length(); i++) {
+                                        if (rawUrl.charAt(i) == '/') {
+                                                depth++;
+                                        }
+                                }
+                                urlDepth[docid] = depth;
+                                urlLength[docid] = rawUrl.length();
+                                wikipedia[docid] = (byte) (rawUrl.contains("wikipedia.org") ? 1 : 0);
+                        }
+                }
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)), 1 << 16))) {
+                        out.writeInt(MAGIC);
+                        out.writeInt(VERSION);
+                        out.writeInt(numDocs);
+                        for (int v: spam) {
+                                out.writeInt(v);
+                        }
+                        for (float v: pageRank) {
+                                out.writeFloat(v);
+                        }
+                        for (int v: urlDepth) {
+                                out.writeInt(v);
+                        }
+                        for (int v: urlLength) {
+                                out.writeInt(v);
+                        }
+                        out.write(wikipedia);
+                }
+        }
+
+        /**
+         * The number of documents covered by the store.
+         * @return number of documents
+         */
+        public int numDocs() {
+                return numDocs;
+        }
+
+        /**
+         * feature 1: spam score.
+         * @param docid internal document id
+         * @return spam score
+         */
+        public int spamScore(int docid) {
+                return buffer.getInt(spamOffset + 4 * docid);
+        }
+
+        /**
+         * feature 4: PageRank score.
+         * @param docid internal document id
+         * @return PageRank score
+         */
+        public float pageRank(int docid) {
+                return buffer.getFloat(pageRankOffset + 4 * docid);
+        }
+
+        /**
+         * feature 2: url depth.
+         * @param docid internal document id
+         * @return number of '/' in rawUrl
+         */
+        public int urlDepth(int docid) {
+                return buffer.getInt(urlDepthOffset + 4 * docid);
+        }
+
+        /**
+         * feature 18: url length.
+         * @param docid internal document id
+         * @return length of rawUrl
+         */
+        public int urlLength(int docid) {
+                return buffer.getInt(urlLengthOffset + 4 * docid);
+        }
+
+        /**
+         * feature 3: whether rawUrl is from wikipedia.org.
+         * @param docid internal document id
+         * @return true if the url contains wikipedia.org
+         */
+        public boolean fromWikipedia(int docid) {
+                return buffer.get(wikipediaOffset + docid) != 0;
+        }
+
+        /**
+         * Build a static feature file for an index.
+         * @param args -index INDEX_PATH -out FILE
+         * @throws IOException Error accessing the Lucene index
+         */
+        public static void main(String[] args) throws IOException {
+                String indexPath = null;
+                String out = null;
+                for (int i = 0; i + 1 < args.length; i += 2) {
+                        if ("-index".equals(args[i])) {
+                                indexPath = args[i + 1];
+                        } else if ("-out".equals(args[i])) {
+                                out = args[i + 1];
+                        }
+                }
+                if (indexPath == null || out == null) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+
+                Timer timer = new Timer();
+                timer.start();
+                IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+                build(reader, out);
+                reader.close();
+                timer.stop();
+                System.out.println("Static features for " + indexPath + " written to " + out + " in " + timer);
+        }
+}
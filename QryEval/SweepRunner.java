@@ -0,0 +1,450 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many configurations of the same experiment (e.g., Indri mu and
+ * lambda, or diversity lambda and algorithm) against one index in one
+ * process.  The index is opened once, and the inverted lists, term
+ * vectors and query results that the configurations read are shared
+ * among them (see SearchContext.enableSharedCaches).  Configurations
+ * run in parallel; each writes its own trecEvalOutputPath (and
+ * prf:expansionQueryFile).
+ * <p>
+ * The configurations are either parameter files:
+ * </p>
+ * <pre>
+ *   java SweepRunner [-parallel N] a.param b.param ...
+ * </pre>
+ * <p>
+ * or a base parameter file and a grid of values; every combination of
+ * the values is a configuration:
+ * </p>
+ * <pre>
+ *   java SweepRunner [-parallel N] -grid base.param Indri:mu=1000,2500 Indri:lambda=0.4,0.7
+ * </pre>
+ * <p>
+ * Grid configurations are numbered from 1.  Configuration n writes
+ * trecEvalOutputPath (and prf:expansionQueryFile) with "_n" before the
+ * extension, and the settings of each configuration are written to
+ * trecEvalOutputPath with the extension ".sweep".
+ * </p>
+ * <p>
+ * All configurations must use the same indexPath.  The index options
+ * (threads, indexDirectory, forwardIndexPath, sweepCacheSize, etc.) of
+ * the first configuration are used.  Learning to rank (ltr) configurations are
+ * not supported; they train and run toolkits with their own files.
+ * </p>
+ * <p>
+ * If the configurations are plain Indri or BM25 runs that differ only
+ * in the model's parameters, each query is evaluated once: its
+ * candidate documents are extracted into a CandidateMatrix, which is
+ * rescored for every configuration.  Queries that are not flat (see
+ * CandidateMatrix) are evaluated once per configuration.  -norescore
+ * evaluates every query once per configuration.
+ * </p>
+ * <p>
+ * The shared caches cost heap memory.  Each of the three caches holds
+ * at most sweepCacheSize entries (default 100000), evicting the least
+ * recently used.  An inverted list entry holds the postings and
+ * positions of one term; a term vector entry holds the terms and
+ * positions of one document field, and PRF reads one per feedback
+ * document; a result entry holds one query's ranking.  Lower
+ * sweepCacheSize (or raise -Xmx) for long queries, many feedback
+ * documents or large indexes.
+ * </p>
+ */
+public class SweepRunner {
+
+        private static final String USAGE =
+                "Usage:  java SweepRunner [-parallel N] [-norescore] paramFile...\n" +
+                "        java SweepRunner [-parallel N] [-norescore] -grid paramFile name=value,value... ...\n\n";
+
+        /**
+         * The default size of each shared cache (parameter "sweepCacheSize").
+         */
+        private static final int DEFAULT_CACHE_SIZE = 100000;
+
+        /**
+         * Parameters that may differ among configurations that are
+         * rescored from one CandidateMatrix per query.
+         */
+        private static final Set<String> MODEL_PARAMETERS =
+                Set.of("Indri:mu", "Indri:lambda", "BM25:k_1", "BM25:b", "BM25:k_3", "trecEvalOutputPath");
+
+        /**
+         * @param args see USAGE
+         * @throws Exception Error accessing the Lucene index, or a configuration failed.
+         */
+        public static void main(String[] args) throws Exception {
+                Timer timer = new Timer();
+                timer.start();
+
+                int parallel = 2;
+                boolean rescore = true;
+                int i = 0;
+                while (i < args.length && args[i].startsWith("-") && !args[i].equals("-grid")) {
+                        if (args[i].equals("-parallel") && i + 1 < args.length) {
+                                parallel = Integer.parseInt(args[i + 1]);
+                                i += 2;
+                        } else if (args[i].equals("-norescore")) {
+                                rescore = false;
+                                i++;
+                        } else {
+                                throw new IllegalArgumentException(USAGE);
+                        }
+                }
+                if (i >= args.length || parallel < 1) {
+                        throw new IllegalArgumentException(USAGE);
+                }
+
+                List<Map<String, String>> configs;
+                List<String> names = new ArrayList<>();
+                if (args[i].equals("-grid")) {
+                        if (i + 1 >= args.length) {
+                                throw new IllegalArgumentException(USAGE);
+                        }
+                        configs = gridConfigs(args[i + 1], args, i + 2, names);
+                } else {
+                        configs = new ArrayList<>();
+                        for (; i < args.length; i++) {
+                                configs.add(QryEval.readParameterFile(args[i]));
+                                names.add(args[i]);
+                        }
+                }
+                validate(configs, names);
+
+                //  One index and one set of caches for all configurations.
+
+                SearchContext index = QryEval.openIndex(configs.get(0));
+                String cacheSize = configs.get(0).get("sweepCacheSize");
+                index.enableSharedCaches(cacheSize != null ? Integer.parseInt(cacheSize) : DEFAULT_CACHE_SIZE);
+
+                ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallel, configs.size()), r -> {
+                        Thread t = new Thread(r, "sweep");
+                        t.setDaemon(true);
+                        return t;
+                });
+                if (rescore && canRescore(configs)) {
+                        rescoreQueryFile(index, configs, pool);
+                } else {
+                        List<Future<?>> runs = new ArrayList<>();
+                        for (int c = 0; c < configs.size(); c++) {
+                                Map<String, String> parameters = configs.get(c);
+                                String name = names.get(c);
+                                runs.add(pool.submit(() -> {
+                                        runConfig(index, name, parameters);
+                                        return null;
+                                }));
+                        }
+                        for (Future<?> run: runs) {
+                                run.get();
+                        }
+                }
+                pool.shutdown();
+
+                RunMetrics.report();
+                timer.stop();
+                System.out.println("Sweep of " + configs.size() + " configurations:  " + index.getCacheStats());
+                System.out.println("Time:  " + timer);
+        }
+
+        /**
+         * Run one configuration.
+         * @param index the shared index
+         * @param name the configuration's name, for messages
+         * @param parameters the configuration
+         * @throws Exception Error accessing the Lucene index
+         */
+        private static void runConfig(SearchContext index, String name, Map<String, String> parameters) throws Exception {
+                Timer timer = new Timer();
+                timer.start();
+                RetrievalModel model = QryEval.initializeRetrievalModel(index, parameters);
+                QryEval.processQueryFile(index, parameters.get("trecEvalOutputLength"), parameters.get("queryFilePath"),
+                                         parameters.get("trecEvalOutputPath"), model, parameters);
+                timer.stop();
+                System.out.println("Configuration " + name + " (" + model + ") wrote " +
+                                   parameters.get("trecEvalOutputPath") + ":  " + timer);
+        }
+
+        /**
+         * Check whether configurations can be rescored from one
+         * CandidateMatrix per query: plain Indri or BM25 runs that
+         * differ only in MODEL_PARAMETERS.
+         * @param configs the configurations
+         * @return true if they can
+         */
+        private static boolean canRescore(List<Map<String, String>> configs) {
+                Map<String, String> first = configs.get(0);
+                String algorithm = first.get("retrievalAlgorithm").toLowerCase();
+                if (!(algorithm.equals("indri") || algorithm.equals("bm25"))) {
+                        return false;
+                }
+                for (Map<String, String> parameters: configs) {
+                        Set<String> keys = new HashSet<>(parameters.keySet());
+                        keys.addAll(first.keySet());
+                        for (String key: keys) {
+                                if (key.startsWith("prf") || key.startsWith("diversity")) {
+                                        return false;
+                                }
+                                if (!MODEL_PARAMETERS.contains(key) &&
+                                    !Objects.equals(parameters.get(key), first.get(key))) {
+                                        return false;
+                                }
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Run configurations that can be rescored.  Each query is
+         * evaluated once, on the pool, and its candidates are rescored
+         * for every configuration.  Results are written in query order.
+         * The first query that fails stops the run:  no more queries are
+         * read or started, and its error is thrown.
+         * @param index the shared index
+         * @param configs the configurations
+         * @param pool runs the queries
+         * @throws Exception Error accessing the Lucene index
+         */
+        private static void rescoreQueryFile(SearchContext index, List<Map<String, String>> configs, ExecutorService pool)
+                throws Exception {
+                Timer timer = new Timer();
+                timer.start();
+                int numConfigs = configs.size();
+                Map<String, String> first = configs.get(0);
+                String outputLength = first.get("trecEvalOutputLength");
+                int k = Integer.parseInt(outputLength);
+                RetrievalModel[] models = new RetrievalModel[numConfigs];
+                ResultWriter[] writers = new ResultWriter[numConfigs];
+                OutputQueue[] queues = new OutputQueue[numConfigs];
+                AtomicInteger rescored = new AtomicInteger();
+                AtomicInteger evaluated = new AtomicInteger();
+                List<Future<?>> queries = new ArrayList<>();
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+
+                try (BufferedReader input = new BufferedReader(new FileReader(first.get("queryFilePath")))) {
+                        for (int c = 0; c < numConfigs; c++) {
+                                models[c] = QryEval.initializeRetrievalModel(index, configs.get(c));
+                                writers[c] = ResultWriter.open(configs.get(c).get("trecEvalOutputPath"));
+                                queues[c] = new OutputQueue("result-writer-" + (c + 1));
+                        }
+
+                        String qLine;
+                        while (failure.get() == null && (qLine = input.readLine()) != null) {
+                                String[] pair = qLine.split(":");
+                                if (pair.length != 2) {
+                                        throw new IllegalArgumentException("Syntax error:  Each line must contain one ':'.");
+                                }
+                                String qid = pair[0];
+                                String query = pair[1];
+                                long[] sequence = new long[numConfigs];
+                                for (int c = 0; c < numConfigs; c++) {
+                                        sequence[c] = queues[c].reserve();
+                                }
+                                queries.add(pool.submit(() -> {
+                                        boolean[] submitted = new boolean[numConfigs];
+                                        try {
+                                                long queryStart = RunMetrics.start();
+                                                SearchContext ctx = index.newRequest();
+                                                long t = RunMetrics.start();
+                                                Qry q = QryParser.getQuery(models[0].defaultQrySopName() + "(" + query + ")");
+                                                RunMetrics.stop(ctx, RunMetrics.Stage.PARSE, t);
+                                                t = RunMetrics.start();
+                                                CandidateMatrix m = CandidateMatrix.extract(ctx, q, models[0]);
+                                                RunMetrics.stop(ctx, RunMetrics.Stage.INITIALIZE, t);
+                                                (m != null ? rescored : evaluated).incrementAndGet();
+                                                for (int c = 0; c < numConfigs; c++) {
+                                                        ScoreList results;
+                                                        if (m != null) {
+                                                                t = RunMetrics.start();
+                                                                results = m.score(models[c], k);
+                                                                RunMetrics.stop(ctx, RunMetrics.Stage.SCORE, t);
+                                                        } else {
+                                                                results = QryEval.processQuery(ctx, query, models[c]);
+                                                        }
+                                                        ResultWriter w = writers[c];
+                                                        queues[c].submit(sequence[c], () -> QryEval.printResults(w, outputLength, qid, results));
+                                                        submitted[c] = true;
+                                                }
+                                                RunMetrics.finishQuery(ctx, qid, queryStart);
+                                                return null;
+                                        } catch (Exception | Error e) {
+                                                failure.compareAndSet(null, e);
+                                                throw e;
+                                        } finally {
+
+                                                //  Fill the sequence numbers that this query did not
+                                                //  use, so that the writers do not stop at the gap and
+                                                //  the read loop is not blocked in reserve.
+
+                                                for (int c = 0; c < numConfigs; c++) {
+                                                        if (!submitted[c]) {
+                                                                try {
+                                                                        queues[c].submit(sequence[c], () -> { });
+                                                                } catch (IOException e) {
+                                                                        //  The queue's own error is thrown by close.
+                                                                }
+                                                        }
+                                                }
+                                        }
+                                }));
+                        }
+                        for (Future<?> query: queries) {
+                                if (failure.get() != null) {
+                                        break;
+                                }
+                                try {
+                                        query.get();
+                                } catch (ExecutionException e) {
+                                        //  Thrown below, as the first failure.
+                                }
+                        }
+                        Throwable e = failure.get();
+                        if (e instanceof Exception) {
+                                throw (Exception) e;
+                        } else if (e != null) {
+                                throw (Error) e;
+                        }
+                } finally {
+
+                        //  After a failure, the queries that have not started
+                        //  are not run.  Running queries are not interrupted;
+                        //  an interrupt would close the index's file channels.
+
+                        for (Future<?> query: queries) {
+                                query.cancel(false);
+                        }
+                        for (int c = 0; c < numConfigs; c++) {
+                                if (queues[c] != null) {
+                                        queues[c].close();
+                                }
+                                if (writers[c] != null) {
+                                        writers[c].close();
+                                }
+                        }
+                }
+                timer.stop();
+                System.out.println("Rescored " + numConfigs + " configurations:  " + rescored.get() + " queries rescored, " +
+                                   evaluated.get() + " evaluated per configuration:  " + timer);
+        }
+
+        /**
+         * Make the configurations of a grid.
+         * @param baseFile the base parameter file
+         * @param args the arguments
+         * @param first the first name=values argument
+         * @param names receives the configurations' names
+         * @return the configurations
+         * @throws IOException Error reading the parameter file or writing the manifest
+         */
+        private static List<Map<String, String>> gridConfigs(String baseFile, String[] args, int first, List<String> names)
+                throws IOException {
+                Map<String, String> base = QryEval.readParameterFile(baseFile);
+                Map<String, String[]> grid = new LinkedHashMap<>();
+                for (int i = first; i < args.length; i++) {
+                        int eq = args[i].indexOf('=');
+                        if (eq <= 0 || eq == args[i].length() - 1) {
+                                throw new IllegalArgumentException("Bad grid parameter " + args[i] + "\n" + USAGE);
+                        }
+                        grid.put(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).split(","));
+                }
+
+                //  Every combination, the last parameter varying fastest.
+
+                List<Map<String, String>> configs = new ArrayList<>();
+                configs.add(new LinkedHashMap<>());
+                for (Map.Entry<String, String[]> e: grid.entrySet()) {
+                        List<Map<String, String>> next = new ArrayList<>();
+                        for (Map<String, String> settings: configs) {
+                                for (String value: e.getValue()) {
+                                        Map<String, String> s = new LinkedHashMap<>(settings);
+                                        s.put(e.getKey(), value.trim());
+                                        next.add(s);
+                                }
+                        }
+                        configs = next;
+                }
+
+                String outputPath = base.get("trecEvalOutputPath");
+                try (PrintWriter manifest = new PrintWriter(replaceExtension(outputPath, ".sweep"))) {
+                        for (int n = 1; n <= configs.size(); n++) {
+                                Map<String, String> settings = configs.get(n - 1);
+                                Map<String, String> parameters = new LinkedHashMap<>(base);
+                                parameters.putAll(settings);
+                                parameters.put("trecEvalOutputPath", numbered(outputPath, n));
+                                if (base.containsKey("prf:expansionQueryFile")) {
+                                        parameters.put("prf:expansionQueryFile", numbered(base.get("prf:expansionQueryFile"), n));
+                                }
+                                manifest.println(n + "\t" + parameters.get("trecEvalOutputPath") + "\t" + settings);
+                                configs.set(n - 1, parameters);
+                                names.add(baseFile + " #" + n);
+                        }
+                }
+                return configs;
+        }
+
+        /**
+         * Check that the configurations can share an index.
+         * @param configs the configurations
+         * @param names their names
+         */
+        private static void validate(List<Map<String, String>> configs, List<String> names) {
+                String indexPath = configs.get(0).get("indexPath");
+                List<String> outputs = new ArrayList<>();
+                List<String> expansionQueryFiles = new ArrayList<>();
+                for (int c = 0; c < configs.size(); c++) {
+                        Map<String, String> parameters = configs.get(c);
+                        if (!parameters.get("indexPath").equals(indexPath)) {
+                                throw new IllegalArgumentException(names.get(c) + " uses index " + parameters.get("indexPath") +
+                                                                   ", not " + indexPath);
+                        }
+                        if (parameters.get("retrievalAlgorithm").toLowerCase().equals("ltr")) {
+                                throw new IllegalArgumentException(names.get(c) + ": ltr configurations can't be swept");
+                        }
+                        String output = new File(parameters.get("trecEvalOutputPath")).getAbsolutePath();
+                        if (outputs.contains(output)) {
+                                throw new IllegalArgumentException(names.get(c) + " writes the same output as another configuration: " + output);
+                        }
+                        outputs.add(output);
+                        if (parameters.containsKey("prf") && parameters.containsKey("prf:expansionQueryFile")) {
+                                String expansion = new File(parameters.get("prf:expansionQueryFile")).getAbsolutePath();
+                                if (expansionQueryFiles.contains(expansion)) {
+                                        throw new IllegalArgumentException(names.get(c) + " writes the same expansion query file as another configuration: " + expansion);
+                                }
+                                expansionQueryFiles.add(expansion);
+                        }
+                }
+        }
+
+        /**
+         * Add "_n" before the extension of a path, e.g., out.teIn -> out_3.teIn.
+         */
+        private static String numbered(String path, int n) {
+                return replaceExtension(path, "_" + n + extension(path));
+        }
+
+        private static String extension(String path) {
+                int dot = path.lastIndexOf('.');
+                return (dot > path.lastIndexOf(File.separatorChar)) ? path.substring(dot) : "";
+        }
+
+        private static String replaceExtension(String path, String suffix) {
+                return path.substring(0, path.length() - extension(path).length()) + suffix;
+        }
+}
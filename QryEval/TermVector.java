@@ -3,6 +3,7 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
@@ -18,6 +19,12 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  <p>
+ *  If the index has a forward index for the field, the TermVector is read
+ *  from it instead of from Lucene.  The forward index stores stems,
+ *  frequencies and the number of positions, but not positions, so the
+ *  first call of stemAt reads positions from the Lucene term vector.
+ *  </p>
  */
 public class TermVector {
 
@@ -35,26 +42,66 @@ public class TermVector {
 
   private int fieldLength;
   private Terms luceneTerms;
-  private int[] positions;	// Index of the stem that at this position
+  private volatile int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
   private Term[] terms;
+  private ForwardIndex forwardIndex;	// Non-null if read from a forward index
+  private int[] termIds;		// Forward index term id of each stem
+  private int forwardPositionsLength;
+  private SearchContext ctx;
 
   //  --------------- Methods ---------------------------------------
 
   /**
+   *  @param ctx The context of the index to read.
    *  @param docId An internal document id
    *  @param fieldName The name of a document field.
    *  @throws IOException Error accessing the Lucene index
    **/
-  public TermVector(int docId, String fieldName) throws IOException {
+  public TermVector(SearchContext ctx, int docId, String fieldName) throws IOException {
+
+    QryEvents.TermVectorDecoded event = new QryEvents.TermVectorDecoded ();
+    event.begin ();
+
+    this.read (ctx, docId, fieldName);
+
+    if (event.shouldCommit ()) {
+      event.docid = docId;
+      event.field = fieldName;
+      event.terms = this.stemsLength ();
+      event.fieldLength = this.fieldLength;
+      event.forwardIndex = (this.forwardIndex != null);
+      event.commit ();
+    }
+  }
+
+  /**
+   *  Read the term vector from a forward index, if the field has one,
+   *  otherwise from Lucene.
+   *  @param ctx The context of the index to read.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  private void read (SearchContext ctx, int docId, String fieldName) throws IOException {
+    this.ctx = ctx;
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
+    //  Use the forward index, if the field has one.
+
+    ForwardIndex forwardIndex = ctx.getForwardIndex (fieldName);
+
+    if (forwardIndex != null) {
+      readForwardIndex (forwardIndex);
+      return;
+    }
+
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = ctx.getReader().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -98,9 +145,20 @@ public class TermVector {
 
     // Create and fill the positions array. Since we have position indexes, the array's size needs 
     // to be one bigger than the biggest position.
-    positions = new int[lastPosition + 1];
+    positions = readPositions (this.luceneTerms, lastPosition + 1);
+  }
+
+  /**
+   *  Create and fill a positions array from a Lucene term vector.
+   *  @param luceneTerms The Lucene term vector.
+   *  @param positionsLength The biggest position + 1.
+   *  @return the positions array
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static int[] readPositions (Terms luceneTerms, int positionsLength) throws IOException {
+    int[] positions = new int[positionsLength];
 
-    ithTerm = this.luceneTerms.iterator();
+    TermsEnum ithTerm = luceneTerms.iterator();
 
     for (int i = 0; ithTerm.next() != null; i++) {
       PostingsEnum ithPositions = ithTerm.postings (null, PostingsEnum.POSITIONS);
@@ -110,6 +168,53 @@ public class TermVector {
       for (int j = 0; j < ithPositions.freq(); j++)
         positions[ithPositions.nextPosition()] = i + 1;
     }
+    return positions;
+  }
+
+  /**
+   *  Read the positions of a TermVector that was read from a forward
+   *  index.  Forward index term ids are in the same order as the stems
+   *  of the Lucene term vector, so stem indexes are the same.  A
+   *  TermVector may be shared by several threads, so this is
+   *  synchronized.
+   *  @return the positions array
+   */
+  private synchronized int[] readForwardIndexPositions () {
+    if (this.positions == null) {
+      try {
+        Terms luceneTerms = ctx.getReader().getTermVector(docId, fieldName);
+        this.positions = (luceneTerms == ((Terms) null)) ? new int[0] :
+          readPositions (luceneTerms, this.forwardPositionsLength);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+    return this.positions;
+  }
+
+  /**
+   *  Fill the TermVector from a forward index.  Stem strings are
+   *  decoded when they are first requested.
+   *  @param forwardIndex The forward index of this field.
+   */
+  private void readForwardIndex (ForwardIndex forwardIndex) {
+    this.forwardIndex = forwardIndex;
+
+    ForwardIndex.Doc doc = forwardIndex.read (this.docId);
+
+    //  The 0'th stem indicates a stopword.
+
+    int stemsLength = doc.termIds.length;
+    stems = new String[stemsLength + 1];
+    termIds = new int[stemsLength + 1];
+    stemsFreq = new int[stemsLength + 1];
+
+    for (int i = 1; i <= stemsLength; i++) {
+      termIds[i] = doc.termIds[i - 1];
+      stemsFreq[i] = doc.tfs[i - 1];
+      fieldLength += stemsFreq[i];
+    }
+    forwardPositionsLength = doc.positionsLength;
   }
 
   /**
@@ -119,6 +224,16 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
+
+    //  Forward index stems are sorted by term id, so search by id.
+
+    if (this.forwardIndex != null) {
+      int termId = this.forwardIndex.termId (stem);
+      if (termId < 0)
+        return -1;
+      int s = Arrays.binarySearch (this.termIds, 1, this.termIds.length, termId);
+      return (s > 0) ? s : -1;
+    }
     
     for (int s=1; s<this.stems.length; s++)
       if (stem.equals (this.stems [s]))
@@ -136,6 +251,9 @@ public class TermVector {
     if (this.fieldLength == 0)
       return 0;
 
+    if (this.forwardIndex != null)
+      return this.forwardPositionsLength;
+
     return this.positions.length;
   }
 
@@ -144,8 +262,16 @@ public class TermVector {
    *  document.  If positions are not stored, it returns -1.
    *  @param i A position in the document.
    *  @return Index of the stem.
+   *  @throws UncheckedIOException Error reading positions from the
+   *          Lucene index, for a TermVector read from a forward index
    */
   public int stemAt(int i) {
+    int[] positions = this.positions;
+    if (positions == null) {
+      if (this.forwardIndex == null)
+        return -1;
+      positions = readForwardIndexPositions ();
+    }
     if (i < positions.length)
       return positions[i];
     else
@@ -172,6 +298,9 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
+    if ((this.forwardIndex != null) && (i > 0) && (i < stems.length) &&
+        (stems[i] == null))
+      stems[i] = this.forwardIndex.term (termIds[i]);
     if (i < stems.length)
       return stems[i];
     else
@@ -196,7 +325,9 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    if (this.forwardIndex != null)
+      return this.forwardIndex.ctf (termIds[i]);
+    return this.ctx.getReader().totalTermFreq(terms[i]);
   }
   
   /**
@@ -206,7 +337,9 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    if (this.forwardIndex != null)
+      return this.forwardIndex.df (termIds[i]);
+    return this.ctx.getReader().docFreq(terms[i]);
   }
   
 }
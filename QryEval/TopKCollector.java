@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Collects the k best <docid, score> matches of a query in a bounded
+ * heap.  The order is the ScoreList sort order (score descending, then
+ * external id ascending), so the collected list is the same as adding
+ * every match to a ScoreList, sorting it and truncating it to k.
+ * <p>
+ * External ids are read from the index only to break ties between
+ * equal scores, so most documents that do not make the top k are never
+ * looked up.
+ * </p>
+ */
+public class TopKCollector implements ResultCollector {
+
+        private SearchContext ctx;
+        private int k;
+        private int size = 0;
+        private int[] docids;
+        private double[] scores;
+        /**
+         * External ids, or null if they have not been looked up yet.
+         */
+        private String[] externalIds;
+        /**
+         * A min-heap of entry indexes: the root is the worst collected entry.
+         */
+        private int[] heap;
+
+        /**
+         * Constructor.
+         * @param ctx the context of the index that the matches are from
+         * @param k the number of matches to keep
+         */
+        public TopKCollector(SearchContext ctx, int k) {
+                this.ctx = ctx;
+                this.k = Math.max(0, k);
+                docids = new int[this.k];
+                scores = new double[this.k];
+                externalIds = new String[this.k];
+                heap = new int[this.k];
+        }
+
+        /**
+         * Offer a match.
+         * @param docid internal document id
+         * @param score the document's score
+         * @throws IOException Error accessing the Lucene index
+         */
+        @Override
+        public void collect(int docid, double score) throws IOException {
+                if (size < k) {
+                        docids[size] = docid;
+                        scores[size] = score;
+                        externalIds[size] = null;
+                        heap[size] = size;
+                        siftUp(size);
+                        size++;
+                        return;
+                }
+                if (k == 0) {
+                        return;
+                }
+
+                int root = heap[0];
+                if (score < scores[root]) {
+                        return;
+                }
+                String externalId = null;
+                if (score == scores[root]) {
+                        externalId = ctx.getExternalDocid(docid);
+                        if (externalId.compareTo(externalId(root)) >= 0) {
+                                return;
+                        }
+                }
+                docids[root] = docid;
+                scores[root] = score;
+                externalIds[root] = externalId;
+                siftDown(0);
+        }
+
+        /**
+         * Get the collected matches.
+         * @return a ScoreList of at most k matches, sorted
+         * @throws IOException Error accessing the Lucene index
+         */
+        @Override
+        public ScoreList getScoreList() throws IOException {
+                Integer[] order = new Integer[size];
+                for (int i = 0; i < size; i++) {
+                        order[i] = i;
+                        externalId(i);
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                                if (scores[a] != scores[b]) {
+                                        return (scores[a] > scores[b]) ? -1 : 1;
+                                }
+                                return externalIds[a].compareTo(externalIds[b]);
+                        }
+                });
+                ScoreList results = new ScoreList(ctx);
+                for (int i: order) {
+                        results.add(docids[i], externalIds[i], scores[i]);
+                }
+                return results;
+        }
+
+        private String externalId(int i) throws IOException {
+                if (externalIds[i] == null) {
+                        externalIds[i] = ctx.getExternalDocid(docids[i]);
+                }
+                return externalIds[i];
+        }
+
+        /**
+         * Is entry a worse than entry b?
+         */
+        private boolean worse(int a, int b) throws IOException {
+                if (scores[a] != scores[b]) {
+                        return scores[a] < scores[b];
+                }
+                return externalId(a).compareTo(externalId(b)) > 0;
+        }
+
+        private void siftUp(int pos) throws IOException {
+                int entry = heap[pos];
+                while (pos > 0) {
+                        int parent = (pos - 1) >>> 1;
+                        if (!worse(entry, heap[parent])) {
+                                break;
+                        }
+                        heap[pos] = heap[parent];
+                        pos = parent;
+                }
+                heap[pos] = entry;
+        }
+
+        private void siftDown(int pos) throws IOException {
+                int entry = heap[pos];
+                while (true) {
+                        int child = 2 * pos + 1;
+                        if (child >= size) {
+                                break;
+                        }
+                        if (child + 1 < size && worse(heap[child + 1], heap[child])) {
+                                child++;
+                        }
+                        if (!worse(heap[child], entry)) {
+                                break;
+                        }
+                        heap[pos] = heap[child];
+                        pos = child;
+                }
+                heap[pos] = entry;
+        }
+}
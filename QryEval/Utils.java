@@ -48,4 +48,46 @@ public class Utils {
       }
   }
 
+  /**
+   *  Append a string to JSON output as a quoted, escaped JSON string.
+   *  @param json the JSON output
+   *  @param s the string, or null for a JSON null
+   */
+  public static void appendJsonString (StringBuilder json, String s) {
+
+    if (s == null) {
+      json.append ("null");
+      return;
+    }
+
+    json.append ('"');
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+      switch (c) {
+      case '"':
+        json.append ("\\\"");
+        break;
+      case '\\':
+        json.append ("\\\\");
+        break;
+      case '\n':
+        json.append ("\\n");
+        break;
+      case '\r':
+        json.append ("\\r");
+        break;
+      case '\t':
+        json.append ("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          json.append (String.format ("\\u%04x", (int) c));
+        } else {
+          json.append (c);
+        }
+      }
+    }
+    json.append ('"');
+  }
+
 }
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of worker threads shared by the whole process, for
+ * index reads that can run in parallel (e.g., decoding the term vectors
+ * of feedback documents).  Lucene IndexReaders are safe to use from
+ * several threads.
+ * <p>
+ * The number of threads is the number of processors unless setThreads
+ * is called before the pool is first used (parameter "threads").  With
+ * one thread, tasks run in the caller's thread.
+ * </p>
+ */
+public class WorkerPool {
+
+        /**
+         * A task that maps one input to one output.
+         */
+        public interface Task<I, O> {
+                O apply(I input) throws IOException;
+        }
+
+        private static int threads = Runtime.getRuntime().availableProcessors();
+        private static ExecutorService executor = null;
+
+        /**
+         * Set the number of worker threads.  It must be called before the
+         * pool is first used.
+         * @param n number of threads
+         */
+        public static synchronized void setThreads(int n) {
+                if (n < 1) {
+                        throw new IllegalArgumentException("threads must be at least 1: " + n);
+                }
+                if (executor != null) {
+                        throw new IllegalStateException("The worker pool is already running.");
+                }
+                threads = n;
+        }
+
+        public static int getThreads() {
+                return threads;
+        }
+
+        /**
+         * Get the shared executor, starting it on first use.  Its threads
+         * are daemon threads, so the pool does not need to be shut down.
+         * @return the executor
+         */
+        public static synchronized ExecutorService getExecutor() {
+                if (executor == null) {
+                        AtomicInteger count = new AtomicInteger();
+                        executor = Executors.newFixedThreadPool(threads, r -> {
+                                Thread t = new Thread(r, "worker-" + count.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                        });
+                }
+                return executor;
+        }
+
+        /**
+         * Apply a task to each input in parallel.
+         * @param inputs inputs
+         * @param task the task
+         * @return the outputs, in the order of the inputs
+         * @throws IOException the first error thrown by a task
+         */
+        public static <I, O> List<O> map(List<I> inputs, Task<I, O> task) throws IOException {
+                List<O> outputs = new ArrayList<>(inputs.size());
+                if (threads == 1 || inputs.size() <= 1) {
+                        for (I input: inputs) {
+                                outputs.add(task.apply(input));
+                        }
+                        return outputs;
+                }
+
+                ExecutorService e = getExecutor();
+                List<Future<O>> futures = new ArrayList<>(inputs.size());
+                for (I input: inputs) {
+                        futures.add(e.submit(() -> task.apply(input)));
+                }
+                try {
+                        for (Future<O> f: futures) {
+                                outputs.add(f.get());
+                        }
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for worker tasks.", ex);
+                } catch (ExecutionException ex) {
+                        Throwable cause = ex.getCause();
+                        if (cause instanceof IOException) {
+                                throw (IOException) cause;
+                        } else if (cause instanceof RuntimeException) {
+                                throw (RuntimeException) cause;
+                        } else if (cause instanceof Error) {
+                                throw (Error) cause;
+                        }
+                        throw new IOException(cause);
+                } finally {
+                        for (Future<O> f: futures) {
+                                f.cancel(false);
+                        }
+                }
+                return outputs;
+        }
+}